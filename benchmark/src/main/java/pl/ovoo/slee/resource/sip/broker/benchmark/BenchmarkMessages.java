@@ -0,0 +1,145 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+import javax.sip.PeerUnavailableException;
+import javax.sip.SipFactory;
+import javax.sip.address.AddressFactory;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+
+/**
+ * SIP factories of the reference implementation and the sample messages the benchmarks work on.
+ */
+public class BenchmarkMessages {
+
+    public static final AddressFactory ADDRESS_FACTORY;
+    public static final HeaderFactory HEADER_FACTORY;
+    public static final MessageFactory MESSAGE_FACTORY;
+
+    static {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        try {
+            ADDRESS_FACTORY = sipFactory.createAddressFactory();
+            HEADER_FACTORY = sipFactory.createHeaderFactory();
+            MESSAGE_FACTORY = sipFactory.createMessageFactory();
+        } catch (PeerUnavailableException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // INVITE passed back to the broker by an AS of the chain (broker Route on the top)
+    private static final String AS_INVITE =
+            "INVITE tel:+48500123456 SIP/2.0\r\n" +
+            "Via: SIP/2.0/UDP as1.app0.domain.org:5060;branch=z9hG4bK-as1-1f3a\r\n" +
+            "Via: SIP/2.0/UDP 10.0.0.1:5060;branch=z9hG4bK-broker-77d1;received=10.0.0.1\r\n" +
+            "Via: SIP/2.0/UDP scscf.ims.domain.org:5060;branch=z9hG4bK-scscf-0c2e\r\n" +
+            "Max-Forwards: 67\r\n" +
+            "Route: <sip:10.0.0.1:5060;lr;x-attempt=a1>\r\n" +
+            "Route: <sip:scscf.ims.domain.org:5060;lr;ODI=1733562>\r\n" +
+            "Record-Route: <sip:as1.app0.domain.org:5060;lr>\r\n" +
+            "From: <sip:+48600987654@ims.domain.org;user=phone>;tag=4cf1a2b3\r\n" +
+            "To: <tel:+48500123456>\r\n" +
+            "Call-ID: as1-8a6c1f0e2d@as1.app0.domain.org\r\n" +
+            "CSeq: 1 INVITE\r\n" +
+            "Contact: <sip:as1.app0.domain.org:5060>\r\n" +
+            "P-Asserted-Identity: <sip:+48600987654@ims.domain.org;user=phone>\r\n" +
+            "P-Charging-Vector: icid-value=ims-5a1c-2f08;orig-ioi=ims.domain.org\r\n" +
+            "P-Charging-Function-Addresses: ccf=pri-ccf.domain.org\r\n" +
+            "P-Served-User: <sip:+48600987654@ims.domain.org>;sescase=term;regstate=reg\r\n" +
+            "Supported: 100rel,timer\r\n" +
+            "Allow: INVITE,ACK,CANCEL,BYE,PRACK,UPDATE,INFO,OPTIONS\r\n" +
+            "Session-Expires: 1800\r\n" +
+            "Content-Length: 0\r\n" +
+            "\r\n";
+
+    static final String SDP =
+            "v=0\r\n" +
+            "o=- 3719582215 3719582215 IN IP4 10.1.2.3\r\n" +
+            "s=-\r\n" +
+            "c=IN IP4 10.1.2.3\r\n" +
+            "t=0 0\r\n" +
+            "m=audio 30000 RTP/AVP 8 0 96 101\r\n" +
+            "a=rtpmap:8 PCMA/8000\r\n" +
+            "a=rtpmap:0 PCMU/8000\r\n" +
+            "a=rtpmap:96 AMR/8000\r\n" +
+            "a=fmtp:96 mode-change-capability=2;max-red=0\r\n" +
+            "a=rtpmap:101 telephone-event/8000\r\n" +
+            "a=fmtp:101 0-15\r\n" +
+            "a=ptime:20\r\n" +
+            "a=sendrecv\r\n";
+
+    static final String BOUNDARY = "unique-boundary-1";
+
+    // ISUP IAM (ITU-T Q.763) carried next to the SDP by the MGCF
+    static final byte[] ISUP_IAM = {
+            0x01, 0x00, 0x60, 0x01, 0x0a, 0x00, 0x02, 0x0a, 0x08, (byte) 0x83, (byte) 0x90, (byte) 0x89, 0x67,
+            0x10, 0x02, 0x00, 0x0f, 0x0a, 0x07, 0x03, 0x13, 0x09, 0x61, 0x54, 0x12, (byte) 0xf0, 0x1d, 0x03,
+            (byte) 0x80, (byte) 0x90, (byte) 0xa3, 0x31, 0x02, 0x00, 0x5a, 0x39, 0x04, 0x31, (byte) 0xc0,
+            0x3d, (byte) 0xc0, 0x00};
+
+    /**
+     * @return INVITE sent by an AS towards the broker, with the SDP offer
+     */
+    public static Request asInvite() throws ParseException {
+        return asInvite(HEADER_FACTORY.createContentTypeHeader("application", "sdp"),
+                SDP.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return INVITE sent by an AS towards the broker, with multipart/mixed SDP offer and ISUP IAM
+     */
+    public static Request asMultipartInvite() throws ParseException {
+        ContentTypeHeader contentType = HEADER_FACTORY.createContentTypeHeader("multipart", "mixed");
+        contentType.setParameter("boundary", BOUNDARY);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeAscii(body, "--" + BOUNDARY + "\r\nContent-Type: application/sdp\r\n\r\n" + SDP + "\r\n");
+        writeAscii(body, "--" + BOUNDARY + "\r\nContent-Type: application/isup;version=itu-t92+;base=itu-t92+\r\n" +
+                "Content-Disposition: signal;handling=required\r\n\r\n");
+        body.write(ISUP_IAM, 0, ISUP_IAM.length);
+        writeAscii(body, "\r\n--" + BOUNDARY + "--\r\n");
+        return asInvite(contentType, body.toByteArray());
+    }
+
+    /**
+     * @param contentType - body Content-Type
+     * @param body        - body bytes
+     *
+     * @return INVITE sent by an AS towards the broker, with the given body
+     */
+    public static Request asInvite(ContentTypeHeader contentType, byte[] body) throws ParseException {
+        Request invite = MESSAGE_FACTORY.createRequest(AS_INVITE);
+        invite.setContent(body, contentType);
+        return invite;
+    }
+
+    private static void writeAscii(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.benchmark;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.address.Address;
+import javax.sip.address.SipURI;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.RouteHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.Request;
+
+import gov.nist.javax.sip.message.SIPMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+
+import pl.ovoo.slee.resource.sip.broker.utils.InviteTemplate;
+import pl.ovoo.slee.resource.sip.broker.utils.MessageUtils;
+
+/**
+ * Body forwarding of one hop: the INVITE for the next hop is built by InviteTemplate (which forwards
+ * the raw body bytes) and encoded for sending. The previous String round-trip is measured by setting
+ * the body of the built INVITE once more as String, for an SDP body and a multipart/mixed SDP + ISUP body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BodyForwardingBenchmark {
+
+    @Param({"sdp", "multipart"})
+    public String body;
+
+    // debug logging of the whole INVITE would dominate the measurement
+    private static final Logger LOGGER = NOPLogger.NOP_LOGGER;
+
+    private Request incomingInvite;
+    private RouteHeader endpointRoute;
+    private CallIdHeader callId;
+    private InviteTemplate template;
+    // Via the SIP stack adds on sending
+    private ViaHeader via;
+
+    @Setup
+    public void setup() throws Exception {
+        incomingInvite = "multipart".equals(body) ? BenchmarkMessages.asMultipartInvite() : BenchmarkMessages.asInvite();
+        Address endpoint = BenchmarkMessages.ADDRESS_FACTORY.createAddress("sip:ep1.app1.domain.org:5060");
+        ((SipURI) endpoint.getURI()).setLrParam();
+        endpointRoute = BenchmarkMessages.HEADER_FACTORY.createRouteHeader(endpoint);
+        callId = BenchmarkMessages.HEADER_FACTORY.createCallIdHeader("8a6c1f0e2d-broker@10.0.0.1");
+        template = new InviteTemplate(BenchmarkMessages.MESSAGE_FACTORY, BenchmarkMessages.HEADER_FACTORY,
+                MessageUtils.createBrokerContactHeader(BenchmarkMessages.HEADER_FACTORY,
+                        BenchmarkMessages.ADDRESS_FACTORY, "10.0.0.1", "udp", 5060));
+        via = BenchmarkMessages.HEADER_FACTORY.createViaHeader("10.0.0.1", 5060, "udp", "z9hG4bK-broker-1");
+    }
+
+    @Benchmark
+    public byte[] rawBytes() throws ParseException {
+        Request outgoingInvite = template.createInvite(incomingInvite, endpointRoute, null, callId, LOGGER);
+        outgoingInvite.addHeader(via);
+        return ((SIPMessage) outgoingInvite).encodeAsBytes("UDP");
+    }
+
+    @Benchmark
+    public byte[] stringRoundTrip() throws ParseException {
+        Request outgoingInvite = template.createInvite(incomingInvite, endpointRoute, null, callId, LOGGER);
+        // body forwarding as it was before the raw bytes forwarding
+        outgoingInvite.setContent(new String(incomingInvite.getRawContent()),
+                (ContentTypeHeader) incomingInvite.getHeader(ContentTypeHeader.NAME));
+        outgoingInvite.addHeader(via);
+        return ((SIPMessage) outgoingInvite).encodeAsBytes("UDP");
+    }
+}
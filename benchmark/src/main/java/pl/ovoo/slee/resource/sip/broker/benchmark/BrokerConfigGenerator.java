@@ -0,0 +1,165 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * Generates synthetic broker-config xml of the given size.
+ * Used by the benchmarks, might be also run from the command line to write the configuration to stdout:
+ * <pre>
+ * java -cp benchmark/target/benchmarks.jar pl.ovoo.slee.resource.sip.broker.benchmark.BrokerConfigGenerator \
+ *      rulesets=100000 prefixes=1000 ranges=100 conditions=true
+ * </pre>
+ */
+public class BrokerConfigGenerator {
+
+    public int applications = 100;
+    public int endpoints = 2;
+    public int rulesets = 10000;
+    public int services = 3;
+    public int prefixes = 0;
+    public int ranges = 0;
+    // add conditional ruleset for every servicekey (ahead of the unconditional one, so both are selectable)
+    public boolean conditions = false;
+
+    public static void main(String[] args) {
+        BrokerConfigGenerator generator = new BrokerConfigGenerator();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("name=value expected: " + arg);
+            }
+            String value = arg.substring(separator + 1);
+            switch (arg.substring(0, separator)) {
+                case "applications":
+                    generator.applications = Integer.parseInt(value);
+                    break;
+                case "endpoints":
+                    generator.endpoints = Integer.parseInt(value);
+                    break;
+                case "rulesets":
+                    generator.rulesets = Integer.parseInt(value);
+                    break;
+                case "services":
+                    generator.services = Integer.parseInt(value);
+                    break;
+                case "prefixes":
+                    generator.prefixes = Integer.parseInt(value);
+                    break;
+                case "ranges":
+                    generator.ranges = Integer.parseInt(value);
+                    break;
+                case "conditions":
+                    generator.conditions = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown parameter: " + arg);
+            }
+        }
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        generator.write(out);
+        out.flush();
+    }
+
+    /**
+     * Writes the configuration to a temporary file deleted on exit
+     *
+     * @return path of the written file
+     */
+    public String writeTempFile() throws IOException {
+        File file = File.createTempFile("broker-config-", ".xml");
+        file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            write(out);
+        }
+        return file.getAbsolutePath();
+    }
+
+    public void write(PrintWriter out) {
+        if (applications < 1 || endpoints < 1) {
+            throw new IllegalArgumentException("at least one application with one endpoint required");
+        }
+        out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        out.println("<broker-config>");
+        out.println("    <services>");
+        for (int a = 0; a < applications; a++) {
+            out.println("        <application alias=\"app" + a + "\" external=\"true\">");
+            for (int e = 0; e < endpoints; e++) {
+                out.println("            <endpoint>sip:ep" + e + ".app" + a + ".domain.org:5060</endpoint>");
+            }
+            out.println("        </application>");
+        }
+        out.println("    </services>");
+
+        out.println("    <orchestration-rules>");
+        for (int r = 0; r < rulesets; r++) {
+            if (conditions) {
+                ruleset(out, "servicekey", String.valueOf(servicekey(r)), r + 1, true);
+            }
+            ruleset(out, "servicekey", String.valueOf(servicekey(r)), r, false);
+        }
+        for (int p = 0; p < prefixes; p++) {
+            ruleset(out, "servicekeyPrefix", String.valueOf(prefix(p)), p, false);
+        }
+        for (int g = 0; g < ranges; g++) {
+            ruleset(out, "servicekeyRange", rangeStart(g) + "-" + (rangeStart(g) + 99), g, false);
+        }
+        out.println("    </orchestration-rules>");
+        out.println("</broker-config>");
+    }
+
+    public static int servicekey(int ruleset) {
+        return 1000000 + ruleset;
+    }
+
+    public static int prefix(int prefix) {
+        return 2000000 + prefix;
+    }
+
+    public static int rangeStart(int range) {
+        return 30000000 + range * 100;
+    }
+
+    private void ruleset(PrintWriter out, String keyAttr, String key, int index, boolean withConditions) {
+        out.println("        <orchestration-ruleset " + keyAttr + "=\"" + key + "\" defaultErrorResponseHandling=\"" +
+                (index % 2 == 0 ? "SKIP" : "STOP") + "\">");
+        if (withConditions) {
+            out.println("            <conditions sessionCase=\"TERM\" requestUriPrefix=\"48\">");
+            out.println("                <header-present>P-Charging-Vector</header-present>");
+            out.println("            </conditions>");
+        }
+        for (int s = 0; s < services; s++) {
+            out.println("            <service>app" + ((index + s) % applications) + "</service>");
+        }
+        out.println("            <error-responses-to-skip-service>");
+        out.println("                <response-code>404</response-code>");
+        out.println("            </error-responses-to-skip-service>");
+        out.println("            <error-responses-to-stop-orchestration>");
+        out.println("                <response-code>302</response-code>");
+        out.println("            </error-responses-to-stop-orchestration>");
+        out.println("        </orchestration-ruleset>");
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.SipFactory;
+import javax.sip.address.AddressFactory;
+import javax.sip.header.HeaderFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.ovoo.slee.resource.sip.broker.service.config.OrchestrationConfig;
+
+/**
+ * Broker configuration load time (OrchestrationConfig.loadConfig) for synthetic configurations
+ * with the given number of servicekey rulesets, each with a conditional twin, plus N/10 prefix and range rulesets.
+ * Every operation parses the file from scratch, as raActive/raConfigure does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ConfigLoadBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int rulesets;
+
+    private String configFile;
+    private AddressFactory addressFactory;
+    private HeaderFactory headerFactory;
+    private Logger logger;
+
+    @Setup
+    public void setup() throws Exception {
+        BrokerConfigGenerator generator = new BrokerConfigGenerator();
+        generator.rulesets = rulesets;
+        generator.prefixes = rulesets / 10;
+        generator.ranges = rulesets / 10;
+        generator.conditions = true;
+        configFile = generator.writeTempFile();
+
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        addressFactory = sipFactory.createAddressFactory();
+        headerFactory = sipFactory.createHeaderFactory();
+        logger = LoggerFactory.getLogger(ConfigLoadBenchmark.class);
+    }
+
+    @Benchmark
+    public OrchestrationConfig loadConfig() {
+        OrchestrationConfig config = new OrchestrationConfig(logger);
+        config.loadConfig(configFile, addressFactory, headerFactory);
+        return config;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import gov.nist.javax.sip.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import pl.ovoo.slee.resource.sip.broker.utils.IdGenerator;
+
+/**
+ * Call-ID and tag generation of an outgoing leg by concurrent threads: the SIP stack generators
+ * (used by SipProvider.getNewCallId and for the To tag) compared with the broker IdGenerator.
+ * The threads number is set with -t (16 by default).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class IdGeneratorBenchmark {
+
+    private static final String HOST = "broker.ims.domain.org";
+
+    private final IdGenerator idGenerator = new IdGenerator(HOST);
+
+    @Benchmark
+    public void stack(Blackhole blackhole) {
+        blackhole.consume(Utils.getInstance().generateCallIdentifier(HOST));
+        blackhole.consume(Utils.getInstance().generateTag());
+    }
+
+    @Benchmark
+    public void broker(Blackhole blackhole) {
+        blackhole.consume(idGenerator.newCallId());
+        blackhole.consume(idGenerator.newTag());
+    }
+}
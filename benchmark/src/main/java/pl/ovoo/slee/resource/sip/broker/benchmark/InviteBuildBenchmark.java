@@ -0,0 +1,183 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.benchmark;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.InvalidArgumentException;
+import javax.sip.address.Address;
+import javax.sip.address.SipURI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.ContentLengthHeader;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.Header;
+import javax.sip.header.MaxForwardsHeader;
+import javax.sip.header.RecordRouteHeader;
+import javax.sip.header.RouteHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.Request;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+
+import pl.ovoo.slee.resource.sip.broker.utils.InviteTemplate;
+import pl.ovoo.slee.resource.sip.broker.utils.MessageUtils;
+
+/**
+ * Cost of building the INVITE for the next hop of the chain: the InviteTemplate fill-in compared with
+ * the previous MessageUtils.createInvite, which created Max-Forwards and CSeq through the HeaderFactory,
+ * cloned every copied header, set the body twice (as String) and was given the Route stack built into
+ * an intermediate list by the caller. The previous code is kept here, the template is used through its public API.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InviteBuildBenchmark {
+
+    private static final int DEFAULT_MAX_FORWARDS = 70;
+    private static final long SEQ_NUMBER_BASE = 1L;
+    // headers not copied by the previous MessageUtils.copyRequestHeaders
+    private static final Set<String> EXCLUDED_REQUEST_HEADERS = new HashSet<>(Arrays.asList(FromHeader.NAME,
+            ToHeader.NAME, CallIdHeader.NAME, CSeqHeader.NAME, ViaHeader.NAME, RouteHeader.NAME,
+            RecordRouteHeader.NAME, ContentLengthHeader.NAME, ContactHeader.NAME));
+
+    // debug logging of the whole INVITE would dominate the measurement
+    private static final Logger LOGGER = NOPLogger.NOP_LOGGER;
+
+    private Request incomingInvite;
+    private RouteHeader endpointRoute;
+    private CallIdHeader callId;
+    private ContactHeader contact;
+    private InviteTemplate template;
+
+    @Setup
+    public void setup() throws Exception {
+        incomingInvite = BenchmarkMessages.asInvite();
+        Address endpoint = BenchmarkMessages.ADDRESS_FACTORY.createAddress("sip:ep1.app1.domain.org:5060");
+        ((SipURI) endpoint.getURI()).setLrParam();
+        endpointRoute = BenchmarkMessages.HEADER_FACTORY.createRouteHeader(endpoint);
+        callId = BenchmarkMessages.HEADER_FACTORY.createCallIdHeader("8a6c1f0e2d-broker@10.0.0.1");
+        contact = MessageUtils.createBrokerContactHeader(BenchmarkMessages.HEADER_FACTORY,
+                BenchmarkMessages.ADDRESS_FACTORY, "10.0.0.1", "udp", 5060);
+        template = new InviteTemplate(BenchmarkMessages.MESSAGE_FACTORY, BenchmarkMessages.HEADER_FACTORY, contact);
+    }
+
+    @Benchmark
+    public Request template() throws ParseException {
+        return template.createInvite(incomingInvite, endpointRoute, null, callId, LOGGER);
+    }
+
+    @Benchmark
+    public Request legacy() throws ParseException {
+        // Route stack built by ASHandler before the template
+        ListIterator<RouteHeader> incomingRoutes = incomingInvite.getHeaders(RouteHeader.NAME);
+        List<RouteHeader> outgoingRoutes = new ArrayList<>();
+        outgoingRoutes.add(endpointRoute);
+        while (incomingRoutes.hasNext()) {
+            RouteHeader route = incomingRoutes.next();
+            if (outgoingRoutes.size() == 1 && MessageUtils.getAttemptId(route) != null) {
+                route = MessageUtils.markAttempt(route, null);
+            }
+            outgoingRoutes.add(route);
+        }
+        return legacyCreateInvite(incomingInvite, outgoingRoutes, callId);
+    }
+
+    /*
+     * MessageUtils.createInvite as it was before InviteTemplate
+     */
+    private Request legacyCreateInvite(Request incomingRequest, List<RouteHeader> routeHeaders, CallIdHeader callId)
+            throws ParseException {
+        FromHeader fromHeader = (FromHeader) incomingRequest.getHeader(FromHeader.NAME);
+        ToHeader toHeader = (ToHeader) incomingRequest.getHeader(ToHeader.NAME);
+        ContentTypeHeader contentTypeHeader = (ContentTypeHeader) incomingRequest.getHeader(ContentTypeHeader.NAME);
+        Request newInvite;
+        try {
+            MaxForwardsHeader maxForwardsHeader =
+                    BenchmarkMessages.HEADER_FACTORY.createMaxForwardsHeader(DEFAULT_MAX_FORWARDS);
+            CSeqHeader cSeqHeader = BenchmarkMessages.HEADER_FACTORY.createCSeqHeader(SEQ_NUMBER_BASE, Request.INVITE);
+            if (contentTypeHeader != null) {
+                newInvite = BenchmarkMessages.MESSAGE_FACTORY.createRequest(incomingRequest.getRequestURI(),
+                        Request.INVITE, callId, cSeqHeader, fromHeader, toHeader, new ArrayList<ViaHeader>(),
+                        maxForwardsHeader, contentTypeHeader, incomingRequest.getContent());
+            } else {
+                newInvite = BenchmarkMessages.MESSAGE_FACTORY.createRequest(incomingRequest.getRequestURI(),
+                        Request.INVITE, callId, cSeqHeader, fromHeader, toHeader, new ArrayList<ViaHeader>(),
+                        maxForwardsHeader);
+            }
+        } catch (InvalidArgumentException e) {
+            throw new IllegalArgumentException(e);
+        }
+
+        legacyCopyRequestHeaders(incomingRequest, newInvite);
+
+        for (RouteHeader routeHeader : routeHeaders) {
+            newInvite.addHeader(routeHeader);
+        }
+        return newInvite;
+    }
+
+    /*
+     * MessageUtils.copyRequestHeaders as it was before the header copy plans and raw body forwarding
+     */
+    @SuppressWarnings("unchecked")
+    private void legacyCopyRequestHeaders(Request incomingRequest, Request outgoingRequest) throws ParseException {
+        ListIterator<String> headerNames = incomingRequest.getHeaderNames();
+        while (headerNames.hasNext()) {
+            String name = headerNames.next();
+            if (!EXCLUDED_REQUEST_HEADERS.contains(name)) {
+                outgoingRequest.removeHeader(name);
+                ListIterator<Header> newHeaders = incomingRequest.getHeaders(name);
+                while (newHeaders.hasNext()) {
+                    outgoingRequest.addHeader((Header) newHeaders.next().clone());
+                }
+            }
+        }
+        if (incomingRequest.getContentLength() != null && incomingRequest.getContentLength().getContentLength() > 0) {
+            outgoingRequest.setContent(new String(incomingRequest.getRawContent()),
+                    (ContentTypeHeader) incomingRequest.getHeader(ContentTypeHeader.NAME));
+        }
+        outgoingRequest.setHeader(contact);
+    }
+}
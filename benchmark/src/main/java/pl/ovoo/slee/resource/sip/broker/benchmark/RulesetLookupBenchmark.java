@@ -0,0 +1,113 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.benchmark;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.SipFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import pl.ovoo.slee.resource.sip.broker.service.config.InviteFields;
+import pl.ovoo.slee.resource.sip.broker.service.config.OrchestrationConfig;
+import pl.ovoo.slee.resource.sip.broker.service.config.OrchestrationRuleset;
+
+/**
+ * Orchestration ruleset selection (OrchestrationConfig.getRulesForKey) for the servicekey keyed rulesets,
+ * each with a conditional twin, plus servicekeyPrefix and servicekeyRange rulesets.
+ * The looked up keys mix exact, prefix, range hits and misses, originating and terminating INVITEs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RulesetLookupBenchmark {
+
+    private static final int LOOKUPS = 1024;
+
+    @Param({"1000", "10000"})
+    public int rulesets;
+
+    private OrchestrationConfig config;
+    private String[] keys;
+    private InviteFields[] fields;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        BrokerConfigGenerator generator = new BrokerConfigGenerator();
+        generator.rulesets = rulesets;
+        generator.prefixes = rulesets / 10;
+        generator.ranges = rulesets / 10;
+        generator.conditions = true;
+
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        config = new OrchestrationConfig(LoggerFactory.getLogger(RulesetLookupBenchmark.class));
+        config.loadConfig(generator.writeTempFile(), sipFactory.createAddressFactory(),
+                sipFactory.createHeaderFactory());
+
+        Set<String> chargingVector = Collections.singleton("p-charging-vector");
+        Random random = new Random(1);
+        keys = new String[LOOKUPS];
+        fields = new InviteFields[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            switch (i % 4) {
+                case 0:
+                    keys[i] = String.valueOf(BrokerConfigGenerator.servicekey(random.nextInt(rulesets)));
+                    break;
+                case 1:
+                    keys[i] = BrokerConfigGenerator.prefix(random.nextInt(generator.prefixes)) + "1234";
+                    break;
+                case 2:
+                    keys[i] = String.valueOf(BrokerConfigGenerator.rangeStart(random.nextInt(generator.ranges)) +
+                            random.nextInt(100));
+                    break;
+                default:
+                    keys[i] = String.valueOf(900000000 + random.nextInt(rulesets));
+            }
+            boolean originating = random.nextBoolean();
+            fields[i] = new InviteFields(originating, "ims.domain.org", "48" + (500000000 + random.nextInt(1000000)),
+                    originating ? null : chargingVector);
+        }
+    }
+
+    @Benchmark
+    public OrchestrationRuleset getRulesForKey() {
+        int i = next++ & (LOOKUPS - 1);
+        return config.getRulesForKey(keys[i], fields[i]);
+    }
+}
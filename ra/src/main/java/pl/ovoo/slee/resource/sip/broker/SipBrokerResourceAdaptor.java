@@ -21,6 +21,7 @@ package pl.ovoo.slee.resource.sip.broker;
 
 import gov.nist.javax.sip.SipListenerExt;
 import org.slf4j.Logger;
+import pl.ovoo.slee.resource.sip.broker.service.EndpointManagement;
 import pl.ovoo.slee.resource.sip.broker.service.SessionManager;
 import pl.ovoo.slee.resource.sip.broker.service.SipBrokerContext;
 import pl.ovoo.slee.resource.sip.broker.service.SipMessageListener;
@@ -28,6 +29,8 @@ import pl.ovoo.slee.resource.sip.broker.service.config.BrokerConfiguration;
 import pl.ovoo.slee.resource.sip.broker.service.config.OrchestrationConfig;
 import pl.ovoo.slee.resource.sip.broker.utils.SipBrokerLogger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.sip.InvalidArgumentException;
 import javax.sip.ListeningPoint;
 import javax.sip.SipException;
@@ -39,6 +42,7 @@ import javax.slee.resource.ConfigProperties;
 import javax.slee.resource.InvalidConfigurationException;
 import javax.slee.resource.ResourceAdaptor;
 import javax.slee.resource.ResourceAdaptorContext;
+import java.lang.management.ManagementFactory;
 import java.text.ParseException;
 import java.util.Properties;
 import java.util.TooManyListenersException;
@@ -59,7 +63,17 @@ public class SipBrokerResourceAdaptor implements ResourceAdaptor {
     private static final String BROKER_QUEUE_THREAD_KEEP_ALIVE = "BROKER_QUEUE_THREAD_KEEP_ALIVE";
     private static final String STACK_NAME_BIND = "javax.sip.STACK_NAME";
     private static final String SIP_OUTGOING_RETRANSMIT_TIMER = "SIP_OUTGOING_RETRANSMIT_TIMER";
+    private static final String SIP_OUTGOING_RETRANSMIT_TIMER_MIN = "SIP_OUTGOING_RETRANSMIT_TIMER_MIN";
+    private static final String SIP_OUTGOING_RETRANSMIT_TIMER_MAX = "SIP_OUTGOING_RETRANSMIT_TIMER_MAX";
+    private static final String ENDPOINT_BACKOFF_DEFAULT = "ENDPOINT_BACKOFF_DEFAULT";
+    private static final String ENDPOINT_BACKOFF_MAX = "ENDPOINT_BACKOFF_MAX";
+    private static final String ENDPOINT_RESOLUTION_TTL = "ENDPOINT_RESOLUTION_TTL";
+    private static final String COMPACT_HEADERS_TRANSPORTS = "COMPACT_HEADERS_TRANSPORTS";
+    private static final String INVITE_RETRANSMISSION_WINDOW = "INVITE_RETRANSMISSION_WINDOW";
+    private static final String TEARDOWN_TIMEOUT = "TEARDOWN_TIMEOUT";
     private static final String SIP_STACK_IMPL_PATH = "gov.nist";
+    private static final String ENDPOINT_MANAGEMENT_MBEAN =
+            "pl.ovoo.slee.resource.sip.broker:type=EndpointManagement,name=";
 
     // keeps all the broker settings/parameters
     private BrokerConfiguration brokerConfig  = new BrokerConfiguration();
@@ -76,6 +90,7 @@ public class SipBrokerResourceAdaptor implements ResourceAdaptor {
     private SipFactory sipFactory = null;
     private SipStack sipStack = null;
     private SipProvider sipProvider;
+    private ObjectName endpointManagementName;
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////
     // Begin ResourceAdaptor methods implementation
@@ -98,6 +113,19 @@ public class SipBrokerResourceAdaptor implements ResourceAdaptor {
         brokerConfig.setImScfHost( (String) props.getProperty(IM_SCF_HOST).getValue());
         brokerConfig.setImScfPort( (Integer) props.getProperty(IM_SCF_PORT).getValue());
         brokerConfig.setRetransmitTimer((Integer) props.getProperty(SIP_OUTGOING_RETRANSMIT_TIMER).getValue());
+        brokerConfig.setRetransmitTimerMin((Integer) props.getProperty(SIP_OUTGOING_RETRANSMIT_TIMER_MIN).getValue());
+        brokerConfig.setRetransmitTimerMax((Integer) props.getProperty(SIP_OUTGOING_RETRANSMIT_TIMER_MAX).getValue());
+        if (brokerConfig.getRetransmitTimerMax() > 0 &&
+                brokerConfig.getRetransmitTimerMin() > brokerConfig.getRetransmitTimerMax()) {
+            throw new IllegalArgumentException("Broker config error: " + SIP_OUTGOING_RETRANSMIT_TIMER_MIN +
+                    " greater than " + SIP_OUTGOING_RETRANSMIT_TIMER_MAX);
+        }
+        brokerConfig.setEndpointBackoffDefault((Integer) props.getProperty(ENDPOINT_BACKOFF_DEFAULT).getValue());
+        brokerConfig.setEndpointBackoffMax((Integer) props.getProperty(ENDPOINT_BACKOFF_MAX).getValue());
+        brokerConfig.setEndpointResolutionTtl((Integer) props.getProperty(ENDPOINT_RESOLUTION_TTL).getValue());
+        brokerConfig.setCompactHeadersTransports((String) props.getProperty(COMPACT_HEADERS_TRANSPORTS).getValue());
+        brokerConfig.setInviteRetransmissionWindow((Integer) props.getProperty(INVITE_RETRANSMISSION_WINDOW).getValue());
+        brokerConfig.setTeardownTimeout((Integer) props.getProperty(TEARDOWN_TIMEOUT).getValue());
         configurationFile = (String) (props.getProperty(BROKER_CONFIGURATION_FILE).getValue());
         queueMaxSize = (Integer) (props.getProperty(BROKER_QUEUE_MAX_SIZE).getValue());
         queueInitialThreads = (Integer) (props.getProperty(BROKER_QUEUE_INITIAL_THREADS).getValue());
@@ -141,6 +169,7 @@ public class SipBrokerResourceAdaptor implements ResourceAdaptor {
             brokerContext.updateConfig(orchestrationConf);
 
             sipMessageListener.initListener(brokerContext, queueMaxSize, queueInitialThreads, queueMaxThreads, queueThreadKeepAlive);
+            registerEndpointManagement();
 
             logger.debug("Broker SIP Resource Adapter initialized");
         } catch (IllegalArgumentException | TooManyListenersException | InvalidArgumentException | SipException |
@@ -173,14 +202,55 @@ public class SipBrokerResourceAdaptor implements ResourceAdaptor {
     }
 
 
+    /*
+     * Registers the endpoint management MBean of this RA entity
+     */
+    private void registerEndpointManagement() {
+        try {
+            endpointManagementName = new ObjectName(ENDPOINT_MANAGEMENT_MBEAN +
+                    ObjectName.quote(raContext.getEntityName()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new EndpointManagement(brokerContext, logger), endpointManagementName);
+            logger.info("Endpoint management registered: {}", endpointManagementName);
+        } catch (JMException e) {
+            logger.warn("Unable to register endpoint management MBean", e);
+            endpointManagementName = null;
+        }
+    }
+
+    /*
+     * Unregisters the endpoint management MBean (if registered)
+     */
+    private void unregisterEndpointManagement() {
+        if (endpointManagementName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(endpointManagementName);
+            } catch (JMException e) {
+                logger.warn("Unable to unregister endpoint management MBean", e);
+            }
+            endpointManagementName = null;
+        }
+    }
+
+
     public void raStopping() {
         logger.debug("Stopping sip stack ");
 
+        unregisterEndpointManagement();
+
         if(sessionManager!=null) {
             sessionManager.printManagerStatus();
             sessionManager.removeAllSessions();
         }
 
+        if(brokerContext != null && brokerContext.getBrokerTimer() != null){
+            brokerContext.getBrokerTimer().shutdown();
+        }
+
+        if(brokerContext != null && brokerContext.hostResolver != null){
+            brokerContext.hostResolver.shutdown();
+        }
+
         if(sipStack != null){
             sipStack.stop();
         }
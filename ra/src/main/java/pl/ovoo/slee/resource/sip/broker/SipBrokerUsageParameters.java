@@ -19,6 +19,8 @@
  */
 package pl.ovoo.slee.resource.sip.broker;
 
+import javax.slee.usage.SampleStatistics;
+
 /**
  * This is the Usage Parameters interface for the SIP Broker.
  */
@@ -37,6 +39,9 @@ public interface SipBrokerUsageParameters {
     void incrementAbortedSessionsCount(long i);
     long getAbortedSessionsCount();
 
+    void incrementUnknownServiceKeysCount(long i);
+    long getUnknownServiceKeysCount();
+
     // Ping session stats
     void incrementPingSessionsStarted(long i);
     long getPingSessionsStarted();
@@ -59,4 +64,99 @@ public interface SipBrokerUsageParameters {
 
     void incrementAbortedAuxSessionsCount(long i);
     long getAbortedAuxSessionsCount();
+
+    // Endpoint failover stats
+    void incrementFailoverAttemptsCount(long i);
+    long getFailoverAttemptsCount();
+
+    void incrementFailoverSuccessCount(long i);
+    long getFailoverSuccessCount();
+
+    void incrementImScfFailoverAttemptsCount(long i);
+    long getImScfFailoverAttemptsCount();
+
+    // Hedged INVITE stats
+    void incrementHedgedInvitesCount(long i);
+    long getHedgedInvitesCount();
+
+    void incrementHedgedInvitesWonCount(long i);
+    long getHedgedInvitesWonCount();
+
+    void incrementHedgedInvitesSuppressedCount(long i);
+    long getHedgedInvitesSuppressedCount();
+
+    // Setup deadline stats
+    void incrementSetupTimeoutsCount(long i);
+    long getSetupTimeoutsCount();
+
+    // Endpoint INVITE limit stats
+    void incrementInviteLimitRejectsCount(long i);
+    long getInviteLimitRejectsCount();
+
+    // Endpoint backoff stats
+    void incrementEndpointBackoffsCount(long i);
+    long getEndpointBackoffsCount();
+
+    void incrementEndpointBackoffSkipsCount(long i);
+    long getEndpointBackoffSkipsCount();
+
+    // Adaptive retransmission timer stats
+    void sampleRoundTripTime(long value);
+    SampleStatistics getRoundTripTime();
+
+    void incrementRetransmitTimerBackoffsCount(long i);
+    long getRetransmitTimerBackoffsCount();
+
+    // Endpoint host resolution stats
+    void sampleHostResolutionTime(long value);
+    SampleStatistics getHostResolutionTime();
+
+    void incrementHostResolutionFailuresCount(long i);
+    long getHostResolutionFailuresCount();
+
+    // Outgoing messages encoding stats
+    void sampleOutgoingMessageSize(long value);
+    SampleStatistics getOutgoingMessageSize();
+
+    void incrementCompactHeadersSavedBytes(long i);
+    long getCompactHeadersSavedBytes();
+
+    // INVITE retransmissions dropped as their server transaction was already created by the listener
+    void incrementAbsorbedInviteRetransmissionsCount(long i);
+    long getAbsorbedInviteRetransmissionsCount();
+
+    // Listener INVITE retransmission filter stats, hit rate is hits / lookups
+    void incrementRetransmissionFilterLookupsCount(long i);
+    long getRetransmissionFilterLookupsCount();
+
+    void incrementRetransmissionFilterHitsCount(long i);
+    long getRetransmissionFilterHitsCount();
+
+    // INFO/UPDATE requests of the established sessions passed by the dialog relays instead of the FSM
+    void incrementRelayedRequestsCount(long i);
+    long getRelayedRequestsCount();
+
+    // Parallel group members stats
+    void incrementParallelInvitesCount(long i);
+    long getParallelInvitesCount();
+
+    void incrementParallelStopsCount(long i);
+    long getParallelStopsCount();
+
+    // Session teardown (all legs CANCELed/BYEd at once) stats
+    void sampleTeardownTime(long value);
+    SampleStatistics getTeardownTime();
+
+    // teardown time per the number of legs torn down (services, parallel group members and IM-SCF B leg)
+    void sampleTeardownTimeUpTo2Legs(long value);
+    SampleStatistics getTeardownTimeUpTo2Legs();
+
+    void sampleTeardownTime3To4Legs(long value);
+    SampleStatistics getTeardownTime3To4Legs();
+
+    void sampleTeardownTime5OrMoreLegs(long value);
+    SampleStatistics getTeardownTime5OrMoreLegs();
+
+    void incrementTeardownLegsTimedOutCount(long i);
+    long getTeardownLegsTimedOutCount();
 }
@@ -19,6 +19,8 @@
  */
 package pl.ovoo.slee.resource.sip.broker.dispatcher;
 
+import pl.ovoo.slee.resource.sip.broker.utils.IdGenerator;
+
 import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
 import javax.sip.ServerTransaction;
@@ -28,8 +30,10 @@ import javax.sip.Transaction;
 import javax.sip.TransactionAlreadyExistsException;
 import javax.sip.TransactionUnavailableException;
 import javax.sip.header.CallIdHeader;
+import javax.sip.header.HeaderFactory;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
+import java.text.ParseException;
 
 /**
  * This is the ServiceProvider implementation that connects and sends SIP messages
@@ -38,9 +42,18 @@ import javax.sip.message.Response;
 public class ExternalServiceProvider implements ServiceProvider {
 
     private final SipProvider sipProvider;
+    private final HeaderFactory headerFactory;
+    private final IdGenerator idGenerator;
 
-    public ExternalServiceProvider(SipProvider provider){
+    /**
+     * @param provider      - SIP provider
+     * @param headerFactory - SIP HeaderFactory
+     * @param idGenerator   - generator of the Call-IDs (used instead of the SIP provider one)
+     */
+    public ExternalServiceProvider(SipProvider provider, HeaderFactory headerFactory, IdGenerator idGenerator){
         this.sipProvider = provider;
+        this.headerFactory = headerFactory;
+        this.idGenerator = idGenerator;
     }
 
     public ClientTransaction getNewClientTransaction(Request request) throws TransactionUnavailableException {
@@ -64,7 +77,12 @@ public class ExternalServiceProvider implements ServiceProvider {
     }
 
     public CallIdHeader getNewCallId() {
-        return sipProvider.getNewCallId();
+        try {
+            return headerFactory.createCallIdHeader(idGenerator.newCallId());
+        } catch (ParseException e) {
+            // will never happen for the generated Call-ID
+            throw new IllegalArgumentException(e);
+        }
     }
 
 }
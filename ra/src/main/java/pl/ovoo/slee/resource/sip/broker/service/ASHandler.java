@@ -21,32 +21,79 @@ package pl.ovoo.slee.resource.sip.broker.service;
 
 import pl.ovoo.slee.resource.sip.broker.dispatcher.ServiceProvider;
 import pl.ovoo.slee.resource.sip.broker.service.config.Endpoint;
+import pl.ovoo.slee.resource.sip.broker.service.config.OrchestratedService;
+import pl.ovoo.slee.resource.sip.broker.service.config.RttEstimator;
 import pl.ovoo.slee.resource.sip.broker.service.sessionfsm.SessionContext;
 import pl.ovoo.slee.resource.sip.broker.utils.MessageUtils;
 
 import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
 import javax.sip.InvalidArgumentException;
+import javax.sip.RequestEvent;
 import javax.sip.ServerTransaction;
 import javax.sip.SipException;
-import javax.sip.header.RouteHeader;
+import javax.sip.header.CSeqHeader;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * This is an AS logical entity. I handles dialogs and in-call data related to this AS (service).
  */
 public class ASHandler extends B2BDialogsHandler {
-    // an endpoint selected for this service
-    private final Endpoint endpoint;
+    // the service this handler represents
+    private final OrchestratedService service;
+    // an endpoint selected for this service, might be replaced on failover or by hedged INVITE
+    private Endpoint endpoint;
+    // subscriber identity the endpoint selection sticks to, null if the service balances in round-robin way
+    private final String affinityKey;
+    // endpoints already INVITEd within this session
+    private final List<Endpoint> triedEndpoints = new ArrayList<>(1);
+    // INVITE passed to this service, reused when INVITE is sent to the alternative endpoint
+    private Request passedInvite;
+    // time of the first INVITE towards this service
+    private long firstInviteTime;
+    // number of alternative endpoints tried on failover
+    private int failoverCount;
+    // indicates that the current endpoint was selected on failover
+    private boolean failoverPending;
 
-    public ASHandler(Endpoint endpoint, SessionContext context, ServiceProvider serviceProvider) {
+    // identifier of the current INVITE attempt, set only if the INVITE might be hedged
+    private String attemptId;
+    // time the current INVITE attempt was sent
+    private long inviteSentTime;
+    // retransmission timer of the current INVITE attempt, round-trip time sampled on its first response
+    private int inviteRetransmitTimer;
+    private boolean rttPending;
+    // endpoint the current INVITE attempt holds the INVITE limiter permit of, null if released
+    private Endpoint permitEndpoint;
+    // endpoint counted as serving this session (active sessions statistics), null if none or released
+    private Endpoint sessionEndpoint;
+    // indicates any provisional response received on the current INVITE attempt
+    private boolean provisionalReceived;
+    // indicates the service responded (other than 100 Trying) or sent INVITE
+    private boolean answered;
+    // timer to send hedged INVITE
+    private ScheduledFuture<?> hedgeTimer;
+    // setup deadline timer of the current INVITE attempt, the event identifies the timer still pending
+    private ScheduledFuture<?> setupTimer;
+    private HandlerTimerEvent setupTimerEvent;
+    // hedged INVITE attempt towards alternative endpoint, racing with the current one
+    private InviteAttempt hedgedAttempt;
+    // client transactions (INVITE, CANCEL, BYE) of the attempts that lost the race
+    private final Map<ClientTransaction, InviteAttempt> discardedAttempts = new HashMap<>();
+
+    public ASHandler(OrchestratedService service, Endpoint endpoint, SessionContext context,
+                     ServiceProvider serviceProvider) {
         super(context, serviceProvider);
+        this.service = service;
         this.endpoint = endpoint;
+        this.affinityKey = context.getAffinityKey(service);
     }
 
     /**
@@ -55,39 +102,142 @@ public class ASHandler extends B2BDialogsHandler {
      * @param inviteRequestToPass - incoming INVITE request (from previous dialog)
      */
     @Override
-    @SuppressWarnings("unchecked")
     public void processOutgoingInvite(Request inviteRequestToPass) throws UnrecoverableError {
         logger.trace("processOutgoingInvite");
 
+        if (passedInvite == null) {
+            firstInviteTime = System.currentTimeMillis();
+        }
+        passedInvite = inviteRequestToPass;
+        answered = false;
+        provisionalReceived = false;
+        cancelTimers();
+        releaseInvitePermit(-1);
+
+        endpoint = acquireInviteEndpoint(endpoint);
+        permitEndpoint = endpoint;
+        bindSessionEndpoint(endpoint);
+
+        // hedging requires both enough latency samples and an endpoint not tried yet
+        long hedgeDelay = triedEndpoints.size() < service.getEndpoints().size() ? service.getHedgeDelay() : -1;
+        long setupTimeout = service.getSetupTimeout();
+        // attempt must be identifiable if it might be abandoned or if its INVITE is not chained (parallel member)
+        attemptId = hedgeDelay >= 0 || setupTimeout > 0 || isParallelMember() ? context.nextAttemptId() : null;
+
+        inviteRetransmitTimer = getRetransmitTimer();
+        ClientTransaction ct;
         try {
-            ListIterator<RouteHeader> incomingRoutes = inviteRequestToPass.getHeaders(RouteHeader.NAME);
-            List<RouteHeader> outgoingRoutes = new ArrayList<>();
-
-            // as endpoint Route goes first -> on the top
-            outgoingRoutes.add(endpoint.getRouteHeader());
-            // then all incoming Route headers (including broker's own Route)
-            while(incomingRoutes.hasNext()){
-                outgoingRoutes.add(incomingRoutes.next());
+            ct = sendInvite(endpoint, inviteRequestToPass, attemptId, inviteRetransmitTimer);
+        } catch (UnrecoverableError e) {
+            releaseInvitePermit(-1);
+            throw e;
+        }
+        // INVITE request sent, should have dialog now
+        setLastOutgoingInvite(ct.getRequest());
+        setLastClientTransaction(ct);
+        setOutgoingDialog(ct.getDialog());
+        inviteSentTime = System.currentTimeMillis();
+        rttPending = true;
+        service.addInviteToHedgeBudget();
+
+        if (hedgeDelay >= 0) {
+            logger.trace("Hedged INVITE scheduled in {} ms", hedgeDelay);
+            hedgeTimer = context.brokerContext.getBrokerTimer().schedule(
+                    new HandlerTimerEvent(this, HandlerTimerEvent.TimerType.HEDGE), context.itsSession, hedgeDelay);
+        }
+        if (setupTimeout > 0) {
+            setupTimerEvent = new HandlerTimerEvent(this, HandlerTimerEvent.TimerType.SETUP_DEADLINE);
+            setupTimer = context.brokerContext.getBrokerTimer().schedule(setupTimerEvent, context.itsSession,
+                    setupTimeout);
+        }
+
+        logger.trace("INVITE sent to the next AS in the chain");
+    }
+
+
+    /*
+     * Returns the preferred endpoint or other endpoint of this service not tried yet
+     * if the preferred one is backed off, disabled or has reached its INVITE limit.
+     * The INVITE limiter permit is acquired.
+     *
+     * @throws UnrecoverableError if none of the endpoints not tried yet is available
+     */
+    private Endpoint acquireInviteEndpoint(Endpoint preferred) throws UnrecoverableError {
+        Endpoint candidate = preferred != null ? preferred : service.nextEndpoint(affinityKey, triedEndpoints);
+        while (candidate != null && !acquireInvite(candidate)) {
+            if (!triedEndpoints.contains(candidate)) {
+                triedEndpoints.add(candidate);
             }
+            candidate = service.nextEndpoint(affinityKey, triedEndpoints);
+        }
 
-            Request newInvite = MessageUtils.createInvite(context.brokerContext, inviteRequestToPass, outgoingRoutes,
-                    logger, serviceProvider.getNewCallId());
+        if (candidate == null) {
+            throw new UnrecoverableError("No endpoint available for " + service.getAlias());
+        }
+        if (!triedEndpoints.contains(candidate)) {
+            triedEndpoints.add(candidate);
+        }
+        return candidate;
+    }
+
+    /*
+     * Checks the endpoint is neither disabled nor backed off and acquires its INVITE limiter permit.
+     * Draining endpoint selected before is still used, the session started before the drain.
+     */
+    private boolean acquireInvite(Endpoint candidate) {
+        if (candidate.getAdminState() == Endpoint.AdminState.DISABLED) {
+            logger.debug("Endpoint {} disabled", candidate.getUriString());
+            return false;
+        }
+        if (candidate.isBackedOff()) {
+            logger.debug("Endpoint {} backed off for {} ms", candidate.getUriString(),
+                    candidate.getBackoffRemaining());
+            context.brokerContext.getUsageParameters().incrementEndpointBackoffSkipsCount(1);
+            return false;
+        }
+        if (!candidate.tryAcquireInvite()) {
+            logger.debug("INVITE limit reached for {}", candidate.getUriString());
+            context.brokerContext.getUsageParameters().incrementInviteLimitRejectsCount(1);
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Releases the INVITE limiter permit of the current attempt (if held)
+     */
+    private void releaseInvitePermit(long latency) {
+        if (permitEndpoint != null) {
+            permitEndpoint.releaseInvite(latency);
+            permitEndpoint = null;
+        }
+    }
+
+    /*
+     * Sends INVITE to the given endpoint of this service
+     *
+     * @return client transaction of the INVITE
+     */
+    @SuppressWarnings("unchecked")
+    private ClientTransaction sendInvite(Endpoint target, Request inviteRequestToPass, String inviteAttemptId,
+                                         int retransmitTimer) throws UnrecoverableError {
+        try {
+            // endpoint Route goes on the top, then all incoming Route headers (including broker's own Route)
+            Request newInvite = context.brokerContext.getInviteTemplate().createInvite(inviteRequestToPass,
+                    target.getRouteHeader(), inviteAttemptId, serviceProvider.getNewCallId(), logger);
+            context.brokerContext.prepareOutgoingMessage(newInvite, service, target);
 
             logger.debug("Sending request:\n{}", newInvite);
 
             ClientTransaction ct = serviceProvider.getNewClientTransaction(newInvite);
-            ct.setRetransmitTimer(context.brokerContext.outgoingRetransmitTimer);
+            ct.setRetransmitTimer(retransmitTimer);
             ct.sendRequest();
-            // INVITE request sent, should have dialog now
-            setLastOutgoingInvite(newInvite);
-            setLastClientTransaction(ct);
-            setOutgoingDialog(ct.getDialog());
+            target.incrementInvitesCount();
 
             // associate dialog/transaction with handler
             ct.setApplicationData(itsReferenceWrapper);
             ct.getDialog().setApplicationData(itsReferenceWrapper);
-
-            logger.trace("INVITE sent to the next AS in the chain");
+            return ct;
 
         } catch (SipException | ParseException e) {
             logger.error("Unable to send INVITE", e);
@@ -96,6 +246,578 @@ public class ASHandler extends B2BDialogsHandler {
     }
 
 
+    /**
+     * Selects alternative endpoint of this service to resend the INVITE to.
+     * The selection is limited by the service failover attempts and deadline.
+     *
+     * @return true if alternative endpoint has been selected
+     */
+    public boolean selectFailoverEndpoint() {
+        logger.trace("selectFailoverEndpoint");
+
+        if (passedInvite == null || failoverCount >= service.getFailoverAttempts()) {
+            return false;
+        }
+
+        long deadline = service.getFailoverDeadline();
+        if (deadline > 0 && System.currentTimeMillis() - firstInviteTime >= deadline) {
+            logger.debug("Failover deadline of {} ms exceeded for {}", deadline, this);
+            return false;
+        }
+
+        Endpoint alternative = service.nextEndpoint(affinityKey, triedEndpoints);
+        if (alternative == null) {
+            logger.debug("No alternative endpoint left for {}", this);
+            return false;
+        }
+
+        logger.info("Failover of service {} from {} to {}", new Object[]{getAlias(), endpoint.getUriString(),
+                alternative.getUriString()});
+        endpoint = alternative;
+        triedEndpoints.add(alternative);
+        failoverCount++;
+        failoverPending = true;
+
+        service.incrementFailoverAttemptsCount();
+        context.brokerContext.getUsageParameters().incrementFailoverAttemptsCount(1);
+        return true;
+    }
+
+    /**
+     * Counts successful failover once the alternative endpoint responded to INVITE.
+     */
+    public void confirmFailover() {
+        if (failoverPending) {
+            failoverPending = false;
+            service.incrementFailoverSuccessCount();
+            context.brokerContext.getUsageParameters().incrementFailoverSuccessCount(1);
+        }
+    }
+
+    /**
+     * Returns the INVITE request passed to this service (from previous dialog)
+     */
+    public Request getPassedInvite() {
+        return passedInvite;
+    }
+
+
+    /**
+     * Sends hedged INVITE to an alternative endpoint of this service.
+     * To be called on hedge timer expiry, it does nothing if the service has already responded.
+     * The first attempt to respond wins, the other one is CANCELled (or BYEd).
+     */
+    public void sendHedgedInvite() {
+        logger.trace("sendHedgedInvite");
+        hedgeTimer = null;
+
+        if (answered || hedgedAttempt != null || attemptId == null) {
+            return;
+        }
+
+        Endpoint alternative = service.nextEndpoint(affinityKey, triedEndpoints);
+        if (alternative == null) {
+            logger.debug("No alternative endpoint to hedge INVITE for {}", this);
+            return;
+        }
+        if (!alternative.tryAcquireInvite()) {
+            logger.debug("INVITE limit reached for {}, INVITE not hedged", alternative.getUriString());
+            context.brokerContext.getUsageParameters().incrementInviteLimitRejectsCount(1);
+            return;
+        }
+        if (!service.tryAcquireHedge()) {
+            logger.debug("Hedge budget of {} exhausted, INVITE not hedged", service.getAlias());
+            alternative.releaseInvite(-1);
+            context.brokerContext.getUsageParameters().incrementHedgedInvitesSuppressedCount(1);
+            return;
+        }
+
+        String hedgedAttemptId = context.nextAttemptId();
+        int retransmitTimer = context.brokerContext.getRetransmitTimer(alternative);
+        try {
+            ClientTransaction ct = sendInvite(alternative, passedInvite, hedgedAttemptId, retransmitTimer);
+            triedEndpoints.add(alternative);
+            hedgedAttempt = new InviteAttempt(hedgedAttemptId, alternative, ct);
+            hedgedAttempt.retransmitTimer = retransmitTimer;
+            hedgedAttempt.permitHeld = true;
+            context.addDialog(ct.getDialog());
+            context.brokerContext.getUsageParameters().incrementHedgedInvitesCount(1);
+
+            logger.debug("No response from {}, INVITE hedged to {}", endpoint.getUriString(),
+                    alternative.getUriString());
+        } catch (UnrecoverableError e) {
+            alternative.releaseInvite(-1);
+            logger.warn("Unable to send hedged INVITE to {}", alternative.getUriString(), e);
+        }
+    }
+
+
+    /**
+     * Processes the INVITE attempts related part of the response:
+     * measures the service response latency and resolves the race between hedged INVITE attempts.
+     *
+     * @param ct       - client transaction the response was received on
+     * @param response - received response
+     *
+     * @return true if the response belongs to an attempt that is not part of the chain and must not be processed
+     */
+    public boolean processAttemptResponse(ClientTransaction ct, Response response) {
+        InviteAttempt discardedAttempt = discardedAttempts.get(ct);
+        if (discardedAttempt != null) {
+            processDiscardedAttemptResponse(discardedAttempt, ct, response);
+            return true;
+        }
+
+        CSeqHeader cseq = (CSeqHeader) response.getHeader(CSeqHeader.NAME);
+        if (!cseq.getMethod().equals(Request.INVITE)) {
+            return false;
+        }
+
+        int statusCode = response.getStatusCode();
+        if (ct == getLastClientTransaction()) {
+            if (rttPending) {
+                rttPending = false;
+                addRoundTripTime(endpoint, System.currentTimeMillis() - inviteSentTime, inviteRetransmitTimer);
+            }
+            if (statusCode < Response.OK) {
+                provisionalReceived = true;
+            }
+
+            if (statusCode > Response.TRYING && !answered) {
+                updateEndpointBackoff(endpoint, response);
+                if (hedgedAttempt != null && statusCode >= Response.MULTIPLE_CHOICES) {
+                    logger.debug("Error response {} from {}, hedged attempt continues", statusCode, this);
+                    releaseInvitePermit(-1);
+                    promoteHedgedAttempt();
+                    return true;
+                }
+
+                answered = true;
+                cancelTimers();
+                if (statusCode < Response.MULTIPLE_CHOICES) {
+                    long latency = System.currentTimeMillis() - inviteSentTime;
+                    service.addResponseLatency(latency);
+                    releaseInvitePermit(latency);
+                } else {
+                    releaseInvitePermit(-1);
+                }
+                discardHedgedAttempt();
+            }
+            return false;
+
+        } else if (hedgedAttempt != null && ct == hedgedAttempt.clientTransaction) {
+            if (hedgedAttempt.rttPending) {
+                hedgedAttempt.rttPending = false;
+                addRoundTripTime(hedgedAttempt.endpoint, System.currentTimeMillis() - hedgedAttempt.sentTime,
+                        hedgedAttempt.retransmitTimer);
+            }
+            if (statusCode < Response.OK) {
+                hedgedAttempt.provisionalReceived = true;
+            }
+
+            if (statusCode == Response.TRYING) {
+                return true;
+            }
+
+            updateEndpointBackoff(hedgedAttempt.endpoint, response);
+            if (statusCode >= Response.MULTIPLE_CHOICES) {
+                logger.debug("Error response {} from hedged attempt {}", statusCode, hedgedAttempt.endpoint);
+                releaseAttemptPermit(hedgedAttempt, -1);
+                hedgedAttempt = null;
+                return true;
+            }
+
+            // hedged attempt responded first
+            long latency = System.currentTimeMillis() - hedgedAttempt.sentTime;
+            service.addResponseLatency(latency);
+            releaseAttemptPermit(hedgedAttempt, latency);
+            winHedgedAttempt();
+            answered = true;
+            return false;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Processes INVITE attempts related client transaction timeout.
+     *
+     * @param ct - client transaction that timed out
+     *
+     * @return true if the timeout belongs to an attempt that is not part of the chain and must not be processed
+     */
+    public boolean processAttemptTimeout(ClientTransaction ct) {
+        if (discardedAttempts.containsKey(ct)) {
+            return true;
+        }
+
+        // timeout is sampled as the latency, the INVITE limit is decreased in adaptive mode
+        if (ct == getLastClientTransaction()) {
+            endpoint.incrementFailuresCount();
+            backoffRetransmitTimer(endpoint, inviteRetransmitTimer);
+            releaseInvitePermit(System.currentTimeMillis() - inviteSentTime);
+        } else if (hedgedAttempt != null && ct == hedgedAttempt.clientTransaction) {
+            hedgedAttempt.endpoint.incrementFailuresCount();
+            backoffRetransmitTimer(hedgedAttempt.endpoint, hedgedAttempt.retransmitTimer);
+            releaseAttemptPermit(hedgedAttempt, System.currentTimeMillis() - hedgedAttempt.sentTime);
+        }
+
+        if (hedgedAttempt != null) {
+            if (ct == hedgedAttempt.clientTransaction) {
+                logger.debug("Hedged attempt {} timed out", hedgedAttempt.endpoint);
+                hedgedAttempt = null;
+                return true;
+            } else if (ct == getLastClientTransaction()) {
+                logger.debug("{} timed out, hedged attempt continues", this);
+                promoteHedgedAttempt();
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Processes INVITE received from this service.
+     * Such INVITE proves the service is alive, the race between hedged INVITE attempts is resolved.
+     *
+     * @param invite - INVITE request received from this service
+     */
+    public void processIncomingInvite(Request invite) {
+        if (!answered) {
+            answered = true;
+            cancelTimers();
+            long latency = System.currentTimeMillis() - inviteSentTime;
+            service.addResponseLatency(latency);
+            releaseInvitePermit(latency);
+        }
+
+        if (hedgedAttempt != null) {
+            if (hedgedAttempt.id.equals(MessageUtils.getAttemptId(invite))) {
+                releaseAttemptPermit(hedgedAttempt, System.currentTimeMillis() - hedgedAttempt.sentTime);
+                winHedgedAttempt();
+            } else {
+                discardHedgedAttempt();
+            }
+        }
+    }
+
+
+    /**
+     * Checks if the INVITE attempt is the one passed to the chain or the hedged one still racing
+     *
+     * @param inviteAttemptId - attempt identifier
+     *
+     * @return true if the attempt is not discarded
+     */
+    public boolean isCurrentAttempt(String inviteAttemptId) {
+        return inviteAttemptId.equals(attemptId) || (hedgedAttempt != null && inviteAttemptId.equals(hedgedAttempt.id));
+    }
+
+
+    /**
+     * Rejects INVITE sent by the attempt of this service that lost the race
+     *
+     * @param event - request event of the INVITE
+     */
+    public void rejectDiscardedAttemptInvite(RequestEvent event) {
+        logger.trace("rejectDiscardedAttemptInvite");
+
+        try {
+            ServerTransaction st = event.getServerTransaction();
+            if (st == null) {
+                st = getNewServerTransaction(event.getRequest());
+            }
+            // no session for further requests on this dialog
+            st.getDialog().setApplicationData(new HandlerReferenceWrapper(null));
+            st.sendResponse(context.getMessageFactory().createResponse(Response.REQUEST_TERMINATED,
+                    event.getRequest()));
+
+        } catch (SipException | ParseException | InvalidArgumentException e) {
+            logger.warn("Unable to reject INVITE of the discarded attempt", e);
+        }
+    }
+
+
+    /**
+     * Checks if the setup deadline timer is still valid for this handler.
+     * The timer is no longer valid when the service has responded or the INVITE has been resent meanwhile.
+     *
+     * @param event - timer event
+     *
+     * @return true if the service has not responded within its setup timeout
+     */
+    public boolean isSetupDeadlineExpired(HandlerTimerEvent event) {
+        return event == setupTimerEvent && !answered;
+    }
+
+    /**
+     * Abandons the INVITE attempts of this service after setup deadline expiry.
+     * The attempts are CANCELled (or BYEd if answered meanwhile) without affecting the chain,
+     * the INVITE they might still pass back to the broker is rejected.
+     */
+    public void abandonInvite() {
+        logger.debug("Setup timeout of {}, abandoning INVITE", this);
+
+        InviteAttempt abandonedAttempt = detachCurrentAttempt();
+        discardHedgedAttempt();
+        discardAttempt(abandonedAttempt);
+        context.brokerContext.getUsageParameters().incrementSetupTimeoutsCount(1);
+    }
+
+
+    /**
+     * Releases the INVITE limiter permits still held by this handler and the endpoint serving the session.
+     * To be called when the session is removed.
+     */
+    public void releaseEndpoints() {
+        releaseInvitePermit(-1);
+        if (hedgedAttempt != null) {
+            releaseAttemptPermit(hedgedAttempt, -1);
+        }
+        if (sessionEndpoint != null) {
+            sessionEndpoint.unbindSession();
+            sessionEndpoint = null;
+        }
+    }
+
+    /*
+     * Counts the session as served by the endpoint (active sessions statistics)
+     */
+    private void bindSessionEndpoint(Endpoint newEndpoint) {
+        if (sessionEndpoint != newEndpoint) {
+            if (sessionEndpoint != null) {
+                sessionEndpoint.unbindSession();
+            }
+            newEndpoint.bindSession();
+            sessionEndpoint = newEndpoint;
+        }
+    }
+
+
+    @Override
+    public void sendCancel() throws UnrecoverableError {
+        super.sendCancel();
+        releaseInvitePermit(-1);
+        discardHedgedAttempt();
+        terminateParallelMembers();
+    }
+
+    @Override
+    public void sendBye() throws UnrecoverableError {
+        super.sendBye();
+        terminateParallelMembers();
+    }
+
+    @Override
+    public void forwardBye(Request incomingBye, Dialog dialog) throws UnrecoverableError {
+        super.forwardBye(incomingBye, dialog);
+        terminateParallelMembers();
+    }
+
+    @Override
+    public void sendTerminatingCancel() {
+        super.sendTerminatingCancel();
+        releaseInvitePermit(-1);
+        discardHedgedAttempt();
+        terminateParallelMembers();
+    }
+
+    @Override
+    public void sendTerminatingBye() {
+        super.sendTerminatingBye();
+        releaseInvitePermit(-1);
+        discardHedgedAttempt();
+        terminateParallelMembers();
+    }
+
+
+    /*
+     * Tears down the members of the group this handler is the primary of
+     */
+    private void terminateParallelMembers() {
+        ParallelGroup group = getParallelGroup();
+        if (group != null && group.getPrimary() == this) {
+            group.terminateMembers();
+        }
+    }
+
+
+    /*
+     * Hedged attempt won the race, makes it the current one and discards the previous current attempt
+     */
+    private void winHedgedAttempt() {
+        InviteAttempt lostAttempt = detachCurrentAttempt();
+        promoteHedgedAttempt();
+        discardAttempt(lostAttempt);
+        context.brokerContext.getUsageParameters().incrementHedgedInvitesWonCount(1);
+    }
+
+    /*
+     * Returns the current attempt (the one passed to the chain), its INVITE limiter permit is moved to the result
+     */
+    private InviteAttempt detachCurrentAttempt() {
+        InviteAttempt attempt = new InviteAttempt(attemptId, endpoint, getLastClientTransaction());
+        attempt.sentTime = inviteSentTime;
+        attempt.retransmitTimer = inviteRetransmitTimer;
+        attempt.provisionalReceived = provisionalReceived;
+        attempt.permitHeld = permitEndpoint != null;
+        permitEndpoint = null;
+        return attempt;
+    }
+
+    /*
+     * Makes the hedged attempt the current one (the one passed to the chain)
+     */
+    private void promoteHedgedAttempt() {
+        ClientTransaction ct = hedgedAttempt.clientTransaction;
+        logger.debug("Hedged attempt {} becomes the current one", hedgedAttempt.endpoint);
+
+        endpoint = hedgedAttempt.endpoint;
+        bindSessionEndpoint(endpoint);
+        attemptId = hedgedAttempt.id;
+        inviteSentTime = hedgedAttempt.sentTime;
+        inviteRetransmitTimer = hedgedAttempt.retransmitTimer;
+        rttPending = hedgedAttempt.rttPending;
+        permitEndpoint = hedgedAttempt.permitHeld ? hedgedAttempt.endpoint : null;
+        provisionalReceived = hedgedAttempt.provisionalReceived;
+        setLastOutgoingInvite(ct.getRequest());
+        setLastClientTransaction(ct);
+        setOutgoingDialog(ct.getDialog());
+        hedgedAttempt = null;
+    }
+
+    /*
+     * Discards pending hedged attempt (if any)
+     */
+    private void discardHedgedAttempt() {
+        cancelTimers();
+        if (hedgedAttempt != null) {
+            discardAttempt(hedgedAttempt);
+            hedgedAttempt = null;
+        }
+    }
+
+    /*
+     * Terminates the attempt that lost the race.
+     * CANCEL is sent only after provisional response is received (RFC 3261 9.1).
+     */
+    private void discardAttempt(InviteAttempt attempt) {
+        logger.debug("Discarding INVITE attempt towards {}", attempt.endpoint);
+
+        releaseAttemptPermit(attempt, -1);
+        discardedAttempts.put(attempt.clientTransaction, attempt);
+        context.addDiscardedAttempt(attempt.id, this);
+
+        if (attempt.provisionalReceived) {
+            cancelAttempt(attempt);
+        } else {
+            attempt.cancelPending = true;
+        }
+    }
+
+    /*
+     * Handles responses of the discarded attempt, the attempt must be either CANCELled or BYEd
+     */
+    private void processDiscardedAttemptResponse(InviteAttempt attempt, ClientTransaction ct, Response response) {
+        if (ct != attempt.clientTransaction) {
+            logger.trace("Response to CANCEL/BYE of the discarded attempt, no action");
+            return;
+        }
+
+        int statusCode = response.getStatusCode();
+        if (statusCode < Response.OK && attempt.cancelPending) {
+            attempt.cancelPending = false;
+            cancelAttempt(attempt);
+
+        } else if (statusCode >= Response.OK && statusCode < Response.MULTIPLE_CHOICES) {
+            attempt.cancelPending = false;
+            byeAttempt(attempt, response);
+        }
+    }
+
+    private void releaseAttemptPermit(InviteAttempt attempt, long latency) {
+        if (attempt.permitHeld) {
+            attempt.permitHeld = false;
+            attempt.endpoint.releaseInvite(latency);
+        }
+    }
+
+    private void cancelAttempt(InviteAttempt attempt) {
+        try {
+            Request cancelRequest = attempt.clientTransaction.createCancel();
+            ClientTransaction ct = serviceProvider.getNewClientTransaction(cancelRequest);
+            ct.setRetransmitTimer(context.brokerContext.getRetransmitTimer(attempt.endpoint));
+            ct.setApplicationData(itsReferenceWrapper);
+            discardedAttempts.put(ct, attempt);
+            ct.sendRequest();
+
+            logger.trace("CANCEL sent to discarded attempt {}", attempt.endpoint);
+        } catch (SipException e) {
+            logger.warn("Unable to CANCEL discarded attempt {}", attempt.endpoint, e);
+        }
+    }
+
+    private void byeAttempt(InviteAttempt attempt, Response response) {
+        try {
+            Dialog dialog = attempt.clientTransaction.getDialog();
+            long cseqNumber = ((CSeqHeader) response.getHeader(CSeqHeader.NAME)).getSeqNumber();
+            dialog.sendAck(dialog.createAck(cseqNumber));
+
+            Request byeRequest = dialog.createRequest(Request.BYE);
+            ClientTransaction ct = serviceProvider.getNewClientTransaction(byeRequest);
+            ct.setRetransmitTimer(context.brokerContext.getRetransmitTimer(attempt.endpoint));
+            ct.setApplicationData(itsReferenceWrapper);
+            discardedAttempts.put(ct, attempt);
+            dialog.sendRequest(ct);
+
+            logger.trace("BYE sent to discarded attempt {}", attempt.endpoint);
+        } catch (SipException | InvalidArgumentException e) {
+            logger.warn("Unable to BYE discarded attempt {}", attempt.endpoint, e);
+        }
+    }
+
+    /*
+     * Feeds the endpoint round-trip time estimator with the time of the first INVITE response
+     */
+    private void addRoundTripTime(Endpoint target, long rtt, int retransmitTimer) {
+        if (!context.brokerContext.isAdaptiveRetransmitTimer()) {
+            return;
+        }
+
+        RttEstimator estimator = target.getRttEstimator();
+        if (estimator.addSample(rtt, retransmitTimer)) {
+            context.brokerContext.getUsageParameters().sampleRoundTripTime(rtt);
+        } else {
+            context.brokerContext.getUsageParameters().incrementRetransmitTimerBackoffsCount(1);
+        }
+        logger.trace("Round-trip time {} ms of {}: {}", new Object[]{rtt, target.getUriString(), estimator});
+    }
+
+    /*
+     * Backs off the endpoint retransmission timer after INVITE timeout
+     */
+    private void backoffRetransmitTimer(Endpoint target, int retransmitTimer) {
+        if (context.brokerContext.isAdaptiveRetransmitTimer()) {
+            target.getRttEstimator().backoff(retransmitTimer);
+            context.brokerContext.getUsageParameters().incrementRetransmitTimerBackoffsCount(1);
+        }
+    }
+
+    private void cancelTimers() {
+        if (hedgeTimer != null) {
+            hedgeTimer.cancel(false);
+            hedgeTimer = null;
+        }
+        if (setupTimer != null) {
+            setupTimer.cancel(false);
+            setupTimer = null;
+        }
+        setupTimerEvent = null;
+    }
+
+
     /**
      * Forwards INVITE/BYE response to this handler
      *
@@ -110,7 +832,8 @@ public class ASHandler extends B2BDialogsHandler {
             try {
                 Response asResponse = MessageUtils.createForwardedResponse(responseToPass, dialog,
                         getLastIncomingRequest(), context.getMessageFactory(), context.brokerContext
-                                .getBrokerContactHeader(), logger);
+                                .getBrokerContactHeader(), context.brokerContext.idGenerator, logger);
+                context.brokerContext.prepareOutgoingMessage(asResponse, service, endpoint);
 
                 // cease all pending transactions (PRACK, INFO)
                 if(responseToPass.getStatusCode() >= Response.MULTIPLE_CHOICES){
@@ -123,6 +846,12 @@ public class ASHandler extends B2BDialogsHandler {
 
                 logger.debug("Response sent towards {}", endpoint.getUriString());
 
+                if (responseToPass.getStatusCode() >= Response.OK
+                        && Request.INVITE.equals(getLastIncomingRequest().getMethod())) {
+                    // the parallel members wait for the final response of the chain
+                    context.mirrorFinalResponse(this, responseToPass);
+                }
+
                 // null transaction in case of final response
                 if (responseToPass.getStatusCode() >= Response.OK) {
                     setLastServerTransaction(null);
@@ -140,9 +869,14 @@ public class ASHandler extends B2BDialogsHandler {
     }
 
 
+    @Override
+    protected int getRetransmitTimer() {
+        return context.brokerContext.getRetransmitTimer(endpoint);
+    }
+
     @Override
     public String toString() {
-        return endpoint.toString();
+        return endpoint != null ? endpoint.toString() : "AS:" + service.getAlias();
     }
 
     @Override
@@ -151,6 +885,27 @@ public class ASHandler extends B2BDialogsHandler {
     }
 
     public String getAlias() {
-        return endpoint.getAsAlias();
+        return service.getAlias();
+    }
+
+    /*
+     * Single INVITE attempt towards an endpoint of this service
+     */
+    private static class InviteAttempt {
+        final String id;
+        final Endpoint endpoint;
+        final ClientTransaction clientTransaction;
+        long sentTime = System.currentTimeMillis();
+        int retransmitTimer;
+        boolean rttPending = true;
+        boolean permitHeld;
+        boolean provisionalReceived;
+        boolean cancelPending;
+
+        InviteAttempt(String id, Endpoint endpoint, ClientTransaction clientTransaction) {
+            this.id = id;
+            this.endpoint = endpoint;
+            this.clientTransaction = clientTransaction;
+        }
     }
 }
@@ -23,6 +23,9 @@ import gov.nist.javax.sip.DialogTimeoutEvent;
 import org.slf4j.Logger;
 import pl.ovoo.slee.resource.sip.broker.dispatcher.InternalServiceProvider;
 import pl.ovoo.slee.resource.sip.broker.dispatcher.ServiceProvider;
+import pl.ovoo.slee.resource.sip.broker.service.config.Endpoint;
+import pl.ovoo.slee.resource.sip.broker.service.config.OrchestratedService;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventKind;
 import pl.ovoo.slee.resource.sip.broker.service.eventqueue.SessionEventHandler;
 import pl.ovoo.slee.resource.sip.broker.utils.MessageUtils;
 import pl.ovoo.slee.resource.sip.broker.utils.SipBrokerLogger;
@@ -43,10 +46,7 @@ import javax.sip.header.ViaHeader;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 import java.text.ParseException;
-import java.util.ArrayList;
 import java.util.EventObject;
-import java.util.List;
-import java.util.ListIterator;
 
 /**
  * This is the auxiliary session for handling non-orchestrated dialogs from ASs.
@@ -70,6 +70,8 @@ public class AuxiliarySession extends SessionEventHandler {
 
     private ServiceProvider incomingAppProvider;
     private final ServiceProvider imScfProvider;
+    // IM-SCF pool node the session is pinned to, null if routed by the incoming Route headers or to default IM-SCF
+    private Endpoint imScfEndpoint;
 
 
     public AuxiliarySession(String callId, SipBrokerContext brokerContext) {
@@ -82,47 +84,47 @@ public class AuxiliarySession extends SessionEventHandler {
 
 
     @Override
-    public void handleNextEvent(EventObject event) {
+    public void handleNextEvent(EventObject event, EventKind kind) {
 
-        if (event instanceof RequestEvent) {
-
-            try {
-                handleRequest((RequestEvent) event);
-            } catch (UnrecoverableError e) {
-                logger.error("Unrecoverable error occurred for request.", e);
-            }
-
-        } else if (event instanceof ResponseEvent) {
-
-            try {
-                handleResponse((ResponseEvent) event);
-            } catch (SendResponseError e) {
-                logger.error("Unrecoverable error occurred for response.", e);
-            }
-
-        } else if (event instanceof TimeoutEvent) {
-            logger.trace("Received TimeoutEvent");
-
-            try {
-                handleTransactionTimeout((TimeoutEvent) event);
-            } catch (SendResponseError e) {
-                logger.error("Unrecoverable error occurred for timeout.", e);
-            }
+        switch (kind) {
+            case RESPONSE:
+            case AS_RESPONSE:
+                try {
+                    handleResponse((ResponseEvent) event);
+                } catch (SendResponseError e) {
+                    logger.error("Unrecoverable error occurred for response.", e);
+                }
+                break;
 
-        } else if (event instanceof DialogTimeoutEvent) {
-            logger.trace("Received DialogTimeoutEvent");
+            case TIMEOUT:
+                logger.trace("Received TimeoutEvent");
 
-            Dialog dialog = ((DialogTimeoutEvent) event).getDialog();
-            checkDialogAndRemoveSession(dialog);
+                try {
+                    handleTransactionTimeout((TimeoutEvent) event);
+                } catch (SendResponseError e) {
+                    logger.error("Unrecoverable error occurred for timeout.", e);
+                }
+                break;
 
-        } else if (event instanceof DialogTerminatedEvent) {
-            logger.trace("Received DialogTerminatedEvent");
+            case DIALOG_TIMEOUT:
+                logger.trace("Received DialogTimeoutEvent");
+                checkDialogAndRemoveSession(((DialogTimeoutEvent) event).getDialog());
+                break;
 
-            Dialog dialog = ((DialogTerminatedEvent) event).getDialog();
-            checkDialogAndRemoveSession(dialog);
+            case DIALOG_TERMINATED:
+                logger.trace("Received DialogTerminatedEvent");
+                checkDialogAndRemoveSession(((DialogTerminatedEvent) event).getDialog());
+                break;
 
-        } else {
-            throw new UnsupportedOperationException("Unsupported event: " + event.getClass().getName());
+            default:
+                if (!kind.isRequest()) {
+                    throw new UnsupportedOperationException("Unsupported event: " + event.getClass().getName());
+                }
+                try {
+                    handleRequest((RequestEvent) event, kind);
+                } catch (UnrecoverableError e) {
+                    logger.error("Unrecoverable error occurred for request.", e);
+                }
         }
     }
 
@@ -138,6 +140,9 @@ public class AuxiliarySession extends SessionEventHandler {
             Request req = timeoutEvent.getClientTransaction().getRequest();
             // client transaction timeout for INVITE, treat as 408 (Request Timeout)
             if(req.getMethod().equals(Request.INVITE)){
+                if (imScfEndpoint != null) {
+                    imScfEndpoint.incrementFailuresCount();
+                }
                 try {
                     // INVITE failed, remove dialog
                     checkDialogAndRemoveSession(timeoutEvent.getClientTransaction().getDialog());
@@ -165,6 +170,9 @@ public class AuxiliarySession extends SessionEventHandler {
 
         } else if (response.getStatusCode() >= Response.MULTIPLE_CHOICES) {
             logger.debug("Received error response: {}, forwarding.", response.getStatusCode());
+            if (imScfEndpoint != null && response.getStatusCode() == Response.SERVICE_UNAVAILABLE) {
+                imScfEndpoint.incrementFailuresCount();
+            }
 
             try {
                 respondToPendingRequestsOnDialogTerminatingResponse();
@@ -229,7 +237,7 @@ public class AuxiliarySession extends SessionEventHandler {
             if (requireHeader != null && TAG_100_REL.equals(requireHeader.getOptionTag())) {
                 logger.debug("Found 100rel in response, this is a reliable response.");
                 Response sessionProgress = MessageUtils.createForwardedReliableResponse(response, incomingDialog,
-                        brokerContext.getBrokerContactHeader(), logger);
+                        brokerContext.getBrokerContactHeader(), brokerContext.idGenerator, logger);
                 incomingDialog.sendReliableProvisionalResponse(sessionProgress);
                 // store the response for the prack
                 lastSessionProgressResponse = response;
@@ -289,7 +297,8 @@ public class AuxiliarySession extends SessionEventHandler {
 
         try {
             Response newResponse = MessageUtils.createForwardedResponse(incomingResponse, dialogToForward, req,
-                    brokerContext.messageFactory, brokerContext.getBrokerContactHeader(), logger);
+                    brokerContext.messageFactory, brokerContext.getBrokerContactHeader(), brokerContext.idGenerator,
+                    logger);
             st.sendResponse(newResponse);
             st.setApplicationData(itsReferenceWrapper);
 
@@ -304,21 +313,28 @@ public class AuxiliarySession extends SessionEventHandler {
     }
 
 
-    private void handleRequest(RequestEvent event) throws UnrecoverableError {
+    private void handleRequest(RequestEvent event, EventKind kind) throws UnrecoverableError {
         Request request = event.getRequest();
         logger.trace("handleRequest:\n{}", request);
 
-        if (request.getMethod().equals(Request.INVITE)) {
-            handleInvite(event);
-        } else if (request.getMethod().equals(Request.BYE)) {
-            handleBye(event);
-        } else if (request.getMethod().equals(Request.ACK)) {
-            sendAckToNextAs(request);
-        } else if (request.getMethod().equals(Request.PRACK)) {
-            prackServerTransaction = event.getServerTransaction();
-            handlePrack(event);
-        } else {
-            handleInfoRequest(event);
+        switch (kind) {
+            case AUX_INVITE:
+            case INITIAL_INVITE:
+            case REINVITE:
+                handleInvite(event);
+                break;
+            case BYE:
+                handleBye(event);
+                break;
+            case ACK:
+                sendAckToNextAs(request);
+                break;
+            case PRACK:
+                prackServerTransaction = event.getServerTransaction();
+                handlePrack(event);
+                break;
+            default:
+                handleInfoRequest(event);
         }
     }
 
@@ -476,25 +492,33 @@ public class AuxiliarySession extends SessionEventHandler {
     private void forwardInviteToImscf(Request incomingInvite) throws ParseException, SipException {
         logger.trace("handleInvite {}", incomingInvite);
 
-        // pop first route (broker's one)
+        // pop first route (broker's one), rest of the route headers is copied
         incomingInvite.removeFirst(RouteHeader.NAME);
-        ListIterator<RouteHeader> incomingRoutes = incomingInvite.getHeaders(RouteHeader.NAME);
-        List<RouteHeader> outgoingRoutes = new ArrayList<>();
-
-        // copy rest of the route headers
-        while(incomingRoutes.hasNext()){
-            outgoingRoutes.add(incomingRoutes.next());
-        }
 
-        if (outgoingRoutes.isEmpty()) {
-            // empty incoming route headers, use default one
-            outgoingRoutes.add(brokerContext.getDefaultImScfRouteHeader());
+        RouteHeader hopRoute = null;
+        if (incomingInvite.getHeader(RouteHeader.NAME) == null) {
+            OrchestratedService imScfPool = brokerContext.getImScfPool();
+            if (imScfPool != null && imScfEndpoint == null) {
+                // select IM-SCF pool node once for the whole session
+                imScfEndpoint = imScfPool.nextEndpoint();
+            }
+            if (imScfEndpoint != null) {
+                hopRoute = imScfEndpoint.getRouteHeader();
+            } else {
+                // empty incoming route headers, use default one
+                hopRoute = brokerContext.getDefaultImScfRouteHeader();
+            }
         }
 
-        lastOutgoingInvite = MessageUtils.createInvite(brokerContext, incomingInvite, outgoingRoutes, logger,
-                imScfProvider.getNewCallId());
+        lastOutgoingInvite = brokerContext.getInviteTemplate().createInvite(incomingInvite, hopRoute, null,
+                imScfProvider.getNewCallId(), logger);
+        brokerContext.prepareOutgoingMessage(lastOutgoingInvite,
+                imScfEndpoint != null ? brokerContext.getImScfPool() : null, imScfEndpoint);
         ClientTransaction ct = imScfProvider.getNewClientTransaction(lastOutgoingInvite);
         ct.sendRequest();
+        if (imScfEndpoint != null) {
+            imScfEndpoint.incrementInvitesCount();
+        }
 
         // INVITE request sent, there is a dialog to store
         outgoingDialog = ct.getDialog();
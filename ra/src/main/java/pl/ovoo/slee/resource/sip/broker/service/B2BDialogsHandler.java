@@ -21,6 +21,7 @@ package pl.ovoo.slee.resource.sip.broker.service;
 
 import org.slf4j.Logger;
 import pl.ovoo.slee.resource.sip.broker.dispatcher.ServiceProvider;
+import pl.ovoo.slee.resource.sip.broker.service.config.Endpoint;
 import pl.ovoo.slee.resource.sip.broker.service.sessionfsm.SessionContext;
 import pl.ovoo.slee.resource.sip.broker.utils.MessageUtils;
 
@@ -31,6 +32,7 @@ import javax.sip.ServerTransaction;
 import javax.sip.SipException;
 import javax.sip.TransactionAlreadyExistsException;
 import javax.sip.TransactionUnavailableException;
+import javax.sip.header.RetryAfterHeader;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 import java.text.ParseException;
@@ -84,6 +86,8 @@ public abstract class B2BDialogsHandler {
     private B2BDialogsHandler nextAs;
     // this is the next AS in backward direction
     private B2BDialogsHandler previousAs;
+    // parallel group this handler belongs to (as the primary or a member), null if chained sequentially
+    private ParallelGroup parallelGroup;
     private HandlerState handlerState = HandlerState.INITIAL;
 
     // last received session progress response from this handler
@@ -92,6 +96,10 @@ public abstract class B2BDialogsHandler {
     // indicates if this node incoming leg is processing reliable response
     private boolean isPendingReliableResponse;
 
+    // relay entries of the dialogs, set while the session is established (read by the listener)
+    private volatile DialogRelay incomingDialogRelay;
+    private volatile DialogRelay outgoingDialogRelay;
+
     /**
      * @param context         - orchestrated session context
      * @param serviceProvider - service provider this handler will use for outgoing messages
@@ -112,6 +120,37 @@ public abstract class B2BDialogsHandler {
     public abstract boolean isImScf();
 
 
+    /**
+     * Returns SIP retransmission timer (T1) for requests sent by this handler
+     */
+    protected int getRetransmitTimer() {
+        return context.brokerContext.outgoingRetransmitTimer;
+    }
+
+    /**
+     * Backs off the endpoint on 503 response (for Retry-After time if present), decays the backoff on success
+     *
+     * @param target   - endpoint that responded
+     * @param response - INVITE response other than 100 Trying
+     */
+    protected void updateEndpointBackoff(Endpoint target, Response response) {
+        int statusCode = response.getStatusCode();
+        if (statusCode == Response.SERVICE_UNAVAILABLE) {
+            RetryAfterHeader retryAfterHeader = (RetryAfterHeader) response.getHeader(RetryAfterHeader.NAME);
+            long retryAfter = retryAfterHeader != null ? retryAfterHeader.getRetryAfter() * 1000L : -1;
+            long backoff = target.backoff(retryAfter, context.brokerContext.endpointBackoffDefault,
+                    context.brokerContext.endpointBackoffMax);
+            target.incrementFailuresCount();
+            if (backoff > 0) {
+                logger.info("Endpoint {} backed off for {} ms", target.getUriString(), backoff);
+                context.brokerContext.getUsageParameters().incrementEndpointBackoffsCount(1);
+            }
+        } else if (statusCode < Response.MULTIPLE_CHOICES) {
+            target.decayBackoff();
+        }
+    }
+
+
     /**
      * Forwards generic INVITE/BYE/INFO response to this handler
      *
@@ -145,7 +184,7 @@ public abstract class B2BDialogsHandler {
         try {
             Response prackResp = MessageUtils.createForwardedResponse(responseToPass, dialog,
                     lastIncomingPrackRequest, context.getMessageFactory(), context.brokerContext
-                            .getBrokerContactHeader(), logger);
+                            .getBrokerContactHeader(), context.brokerContext.idGenerator, logger);
 
             lastPrackServerTransaction.sendResponse(prackResp);
             lastPrackServerTransaction.setApplicationData(itsReferenceWrapper);
@@ -174,7 +213,7 @@ public abstract class B2BDialogsHandler {
         try {
             Response infoResp = MessageUtils.createForwardedResponse(responseToPass, dialog,
                     lastIncomingInfoRequest, context.getMessageFactory(),
-                    context.brokerContext.getBrokerContactHeader(), logger);
+                    context.brokerContext.getBrokerContactHeader(), context.brokerContext.idGenerator, logger);
 
             lastInfoServerTransaction.sendResponse(infoResp);
             lastInfoServerTransaction.setApplicationData(itsReferenceWrapper);
@@ -254,7 +293,7 @@ public abstract class B2BDialogsHandler {
 
         try {
             Response sessionProgress = MessageUtils.createForwardedReliableResponse(responseToPass, getIncomingDialog(),
-                    context.brokerContext.getBrokerContactHeader(), logger);
+                    context.brokerContext.getBrokerContactHeader(), context.brokerContext.idGenerator, logger);
 
             getIncomingDialog().sendReliableProvisionalResponse(sessionProgress);
             isPendingReliableResponse = true;
@@ -273,7 +312,7 @@ public abstract class B2BDialogsHandler {
             Request prackRequest = getOutgoingDialog().createPrack(getLastSessionProgressResponse());
 
             ClientTransaction ct = serviceProvider.getNewClientTransaction(prackRequest);
-            ct.setRetransmitTimer(context.brokerContext.outgoingRetransmitTimer);
+            ct.setRetransmitTimer(getRetransmitTimer());
             getOutgoingDialog().sendRequest(ct);
 
             // associate transaction with handler
@@ -286,12 +325,13 @@ public abstract class B2BDialogsHandler {
 
     public void sendCancel() throws UnrecoverableError {
         logger.trace("sendCancel");
+        context.terminateSkippedParallelGroups(this);
 
         try {
             Request cancelRequest = getLastClientTransaction().createCancel();
 
             ClientTransaction ct = serviceProvider.getNewClientTransaction(cancelRequest);
-            ct.setRetransmitTimer(context.brokerContext.outgoingRetransmitTimer);
+            ct.setRetransmitTimer(getRetransmitTimer());
             ct.sendRequest();
 
             logger.trace("Sent CANCEL request:\n{}", cancelRequest);
@@ -310,10 +350,11 @@ public abstract class B2BDialogsHandler {
      */
     public void sendBye() throws UnrecoverableError {
         logger.trace("sendBye");
+        context.terminateSkippedParallelGroups(this);
         try {
             Request byeRequest = getOutgoingDialog().createRequest(Request.BYE);
             ClientTransaction ct = serviceProvider.getNewClientTransaction(byeRequest);
-            ct.setRetransmitTimer(context.brokerContext.outgoingRetransmitTimer);
+            ct.setRetransmitTimer(getRetransmitTimer());
             getOutgoingDialog().sendRequest(ct);
 
             logger.trace("Sent BYE request:\n{}", byeRequest);
@@ -347,11 +388,12 @@ public abstract class B2BDialogsHandler {
      */
     public void sendTerminatingCancel() {
         logger.trace("sendTerminatingCancel");
+        context.terminateSkippedParallelGroups(this);
 
         try {
             Request cancel = getLastClientTransaction().createCancel();
             ClientTransaction ct = serviceProvider.getNewClientTransaction(cancel);
-            ct.setRetransmitTimer(context.brokerContext.outgoingRetransmitTimer);
+            ct.setRetransmitTimer(getRetransmitTimer());
             ct.sendRequest();
 
             // associate transaction with handler
@@ -376,12 +418,13 @@ public abstract class B2BDialogsHandler {
      */
     public void forwardBye(Request incomingBye, Dialog dialog) throws UnrecoverableError {
         logger.trace("forwardBye");
+        context.terminateSkippedParallelGroups(this);
         try {
             Request newByeRequest = MessageUtils.createOnDialogRequest(incomingBye, dialog, context.brokerContext
                     .getBrokerContactHeader(), logger);
 
             ClientTransaction ct = serviceProvider.getNewClientTransaction(newByeRequest);
-            ct.setRetransmitTimer(context.brokerContext.outgoingRetransmitTimer);
+            ct.setRetransmitTimer(getRetransmitTimer());
             dialog.sendRequest(ct);
 
             // associate session/handler references
@@ -407,7 +450,7 @@ public abstract class B2BDialogsHandler {
         logger.trace("sendRequestOnDialog");
         try {
             ClientTransaction ct = serviceProvider.getNewClientTransaction(request);
-            ct.setRetransmitTimer(context.brokerContext.outgoingRetransmitTimer);
+            ct.setRetransmitTimer(getRetransmitTimer());
             dialog.sendRequest(ct);
 
             // associate transaction with handler
@@ -444,6 +487,11 @@ public abstract class B2BDialogsHandler {
 
                 // null transaction in case of final response
                 if (response.getStatusCode() >= Response.OK) {
+                    Request request = getLastIncomingRequest();
+                    if (request != null && Request.INVITE.equals(request.getMethod())) {
+                        // the parallel members wait for the final response of the chain
+                        context.mirrorFinalResponse(this, response);
+                    }
                     setLastServerTransaction(null);
                     setLastIncomingRequest(null);
                 }
@@ -473,6 +521,24 @@ public abstract class B2BDialogsHandler {
         return previousAs;
     }
 
+    public void setParallelGroup(ParallelGroup group) {
+        parallelGroup = group;
+    }
+
+    public ParallelGroup getParallelGroup() {
+        return parallelGroup;
+    }
+
+    /**
+     * Indicates this handler is a parallel group member, i.e. it is INVITEd together with the group primary
+     * and is not linked in the chain
+     *
+     * @return true if the handler events are handled by its parallel group
+     */
+    public boolean isParallelMember() {
+        return parallelGroup != null && parallelGroup.getPrimary() != this;
+    }
+
     /**
      * Returns last server transaction on the incoming dialog or null if not exists.
      *
@@ -635,6 +701,49 @@ public abstract class B2BDialogsHandler {
         return itsReferenceWrapper;
     }
 
+    /**
+     * Sets up the relay entries of this handler dialogs towards the adjacent handlers in the chain.
+     * To be called when the session gets established.
+     *
+     * @param logger - session logger for the relays
+     */
+    public void armDialogRelays(Logger logger) {
+        if (itsIncomingDialog != null && nextAs != null && nextAs.getOutgoingDialog() != null) {
+            incomingDialogRelay = new DialogRelay(nextAs, nextAs.getOutgoingDialog(), true, logger);
+        }
+        if (itsOutgoingDialog != null && previousAs != null && previousAs.getIncomingDialog() != null) {
+            outgoingDialogRelay = new DialogRelay(previousAs, previousAs.getIncomingDialog(), false, logger);
+        }
+    }
+
+    /**
+     * Removes the relay entries, the in-dialog requests are handled by the session FSM afterwards
+     */
+    public void disarmDialogRelays() {
+        incomingDialogRelay = null;
+        outgoingDialogRelay = null;
+    }
+
+    /**
+     * Returns relay entry of the dialog
+     *
+     * @param dialog - dialog of this handler the request was received on
+     *
+     * @return relay or null if not armed
+     */
+    public DialogRelay getDialogRelay(Dialog dialog) {
+        // volatile relay is read first, the dialogs were set before arming
+        DialogRelay relay = incomingDialogRelay;
+        if (relay != null && dialog == itsIncomingDialog) {
+            return relay;
+        }
+        relay = outgoingDialogRelay;
+        if (relay != null && dialog == itsOutgoingDialog) {
+            return relay;
+        }
+        return null;
+    }
+
     /**
      * Set pending reliable response. To be called after PRACK received on this handler B leg.
      * Set this flag to avoid duplicated reliable responses to be forwarded when received
@@ -0,0 +1,194 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service;
+
+import org.slf4j.Logger;
+import pl.ovoo.slee.resource.sip.broker.utils.MessageUtils;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.InvalidArgumentException;
+import javax.sip.RequestEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipException;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.HandlerState.TERMINATED;
+
+/**
+ * Relay entry of a dialog of the established session. It is precomputed when the session becomes ongoing
+ * and passes the in-dialog requests (INFO, UPDATE) to the peer dialog of the chain without the FSM dispatch
+ * (the requests are still delivered through the session events queue).
+ * Each relayed request has its own client transaction bound to the incoming server transaction,
+ * so the response is forwarded back straight from the listener. The requests not answered yet when the session
+ * is terminated are responded with 487 by the session.
+ */
+public class DialogRelay {
+
+    // handler owning the peer dialog, its provider and retransmit timer are used for the relayed requests
+    private final B2BDialogsHandler peerHandler;
+    private final Dialog peerDialog;
+    // true if the requests are passed towards the called party
+    private final boolean forward;
+    private final Logger logger;
+
+    /**
+     * @param peerHandler - handler to pass the requests through
+     * @param peerDialog  - dialog of the peer handler to send the requests on
+     * @param forward     - direction of the relay, true towards the called party
+     * @param logger      - session logger
+     */
+    DialogRelay(B2BDialogsHandler peerHandler, Dialog peerDialog, boolean forward, Logger logger) {
+        this.peerHandler = peerHandler;
+        this.peerDialog = peerDialog;
+        this.forward = forward;
+        this.logger = logger;
+    }
+
+    /**
+     * Passes the request to the peer dialog.
+     *
+     * @param event - in-dialog request event
+     *
+     * @return true if the request was sent, false if it has to be handled by the session FSM
+     */
+    public boolean relayRequest(RequestEvent event) {
+        if (peerHandler.getHandlerState() == TERMINATED) {
+            logger.debug("Relay peer {} already terminated", peerHandler);
+            return false;
+        }
+
+        SipBrokerContext brokerContext = peerHandler.context.brokerContext;
+        RelayedTransaction relayedTransaction = new RelayedTransaction(this, event);
+        // registered before sending, the response might be received before this method returns
+        peerHandler.context.addRelayedTransaction(relayedTransaction);
+        try {
+            Request request = MessageUtils.createOnDialogRequest(event.getRequest(), peerDialog,
+                    brokerContext.getBrokerContactHeader(), logger);
+            ClientTransaction ct = peerHandler.serviceProvider.getNewClientTransaction(request);
+            ct.setRetransmitTimer(peerHandler.getRetransmitTimer());
+            ct.setApplicationData(relayedTransaction);
+            peerDialog.sendRequest(ct);
+
+        } catch (SipException | ParseException e) {
+            peerHandler.context.removeRelayedTransaction(relayedTransaction);
+            logger.warn("Unable to relay {} {} {}", new Object[]{event.getRequest().getMethod(),
+                    forward ? "forward to" : "back to", peerHandler, e});
+            return false;
+        }
+
+        brokerContext.getUsageParameters().incrementRelayedRequestsCount(1);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "DialogRelay{" + (forward ? "forward to " : "back to ") + peerHandler + "}";
+    }
+
+
+    /**
+     * Client transaction data of the relayed request, it keeps the incoming transaction to respond to.
+     */
+    public static class RelayedTransaction extends HandlerReferenceWrapper {
+
+        private final DialogRelay relay;
+        private final ServerTransaction serverTransaction;
+        private final Dialog dialog;
+        private final Request request;
+        // set by the first final response sent to the originator
+        private final AtomicBoolean answered = new AtomicBoolean();
+
+        RelayedTransaction(DialogRelay relay, RequestEvent event) {
+            super(relay.peerHandler.context.itsSession, relay.peerHandler);
+            this.relay = relay;
+            this.serverTransaction = event.getServerTransaction();
+            this.dialog = event.getDialog();
+            this.request = event.getRequest();
+        }
+
+        /**
+         * Forwards the response of the relayed request to its originator
+         *
+         * @param response - response received on the peer dialog
+         */
+        public void forwardResponse(Response response) {
+            if (response.getStatusCode() < Response.OK ? answered.get() : !complete()) {
+                relay.logger.debug("Relayed {} already answered, {} response dropped", request.getMethod(),
+                        response.getStatusCode());
+                return;
+            }
+            SipBrokerContext brokerContext = relay.peerHandler.context.brokerContext;
+            try {
+                Response forwarded = MessageUtils.createForwardedResponse(response, dialog, request,
+                        brokerContext.messageFactory, brokerContext.getBrokerContactHeader(),
+                        brokerContext.idGenerator, relay.logger);
+                serverTransaction.sendResponse(forwarded);
+
+            } catch (SipException | ParseException | InvalidArgumentException e) {
+                relay.logger.warn("Unable to forward {} response of relayed {}", new Object[]{response.getStatusCode(),
+                        request.getMethod(), e});
+            }
+        }
+
+        /**
+         * Responds with 408 to the originator of the relayed request, to be used on transaction timeout
+         */
+        public void respondTimeout() {
+            respond(Response.REQUEST_TIMEOUT);
+        }
+
+        /**
+         * Responds with 487 to the originator of the relayed request unless already answered,
+         * to be used when the session is terminated
+         */
+        public void respondTerminated() {
+            respond(Response.REQUEST_TERMINATED);
+        }
+
+        private void respond(int statusCode) {
+            if (!complete()) {
+                return;
+            }
+            try {
+                serverTransaction.sendResponse(relay.peerHandler.context.getMessageFactory()
+                        .createResponse(statusCode, request));
+
+            } catch (SipException | ParseException | InvalidArgumentException e) {
+                relay.logger.warn("Unable to respond {} to relayed {}", new Object[]{statusCode, request.getMethod(),
+                        e});
+            }
+        }
+
+        /*
+         * Marks the request answered, returns false if it has been answered already
+         */
+        private boolean complete() {
+            if (!answered.compareAndSet(false, true)) {
+                return false;
+            }
+            relay.peerHandler.context.removeRelayedTransaction(this);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service;
+
+import org.slf4j.Logger;
+import pl.ovoo.slee.resource.sip.broker.service.config.Endpoint;
+import pl.ovoo.slee.resource.sip.broker.service.config.InviteLimiter;
+import pl.ovoo.slee.resource.sip.broker.service.config.OrchestratedService;
+import pl.ovoo.slee.resource.sip.broker.service.config.OrchestrationConfig;
+import pl.ovoo.slee.resource.sip.broker.service.config.RttEstimator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Endpoint management MBean operating on the orchestration config currently applied by the broker.
+ * Endpoint state and weights are kept over the configuration reload.
+ */
+public class EndpointManagement implements EndpointManagementMBean {
+
+    private final SipBrokerContext brokerContext;
+    private final Logger logger;
+
+    public EndpointManagement(SipBrokerContext brokerContext, Logger logger) {
+        this.brokerContext = brokerContext;
+        this.logger = logger;
+    }
+
+    @Override
+    public String[] getServiceAliases() {
+        List<String> aliases = new ArrayList<>();
+        for (OrchestratedService service : getConfig().getServices()) {
+            aliases.add(service.getAlias());
+        }
+        Collections.sort(aliases);
+        return aliases.toArray(new String[aliases.size()]);
+    }
+
+    @Override
+    public String[] getEndpointStatistics() {
+        List<String> statistics = new ArrayList<>();
+        for (String alias : getServiceAliases()) {
+            Collections.addAll(statistics, getServiceEndpointStatistics(alias));
+        }
+        return statistics.toArray(new String[statistics.size()]);
+    }
+
+    @Override
+    public String[] getServiceEndpointStatistics(String alias) {
+        List<Endpoint> endpoints = getService(alias).getEndpoints();
+        String[] statistics = new String[endpoints.size()];
+        for (int i = 0; i < statistics.length; i++) {
+            statistics[i] = formatStatistics(alias, endpoints.get(i));
+        }
+        return statistics;
+    }
+
+    @Override
+    public void drainEndpoint(String alias, String uri) {
+        changeAdminState(alias, uri, Endpoint.AdminState.DRAINING);
+    }
+
+    @Override
+    public void disableEndpoint(String alias, String uri) {
+        changeAdminState(alias, uri, Endpoint.AdminState.DISABLED);
+    }
+
+    @Override
+    public void enableEndpoint(String alias, String uri) {
+        changeAdminState(alias, uri, Endpoint.AdminState.ENABLED);
+    }
+
+    @Override
+    public void setEndpointWeight(String alias, String uri, int weight) {
+        OrchestratedService service = getService(alias);
+        service.setEndpointWeights(Collections.singletonMap(getEndpoint(service, uri), weight));
+        logger.info("Endpoint {} of {} weight changed to {}", new Object[]{uri, alias, weight});
+    }
+
+    @Override
+    public void setEndpointWeights(String alias, String weights) {
+        OrchestratedService service = getService(alias);
+        Map<Endpoint, Integer> newWeights = new HashMap<>();
+        for (String entry : weights.split(",")) {
+            // uri might contain '=' in parameters, the weight follows the last one
+            int separator = entry.lastIndexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid endpoint weight, uri=weight expected: " + entry);
+            }
+            Endpoint endpoint = getEndpoint(service, entry.substring(0, separator).trim());
+            try {
+                newWeights.put(endpoint, Integer.valueOf(entry.substring(separator + 1).trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid endpoint weight: " + entry, e);
+            }
+        }
+        service.setEndpointWeights(newWeights);
+        logger.info("Endpoints of {} weights changed to {}", alias, weights);
+    }
+
+    private void changeAdminState(String alias, String uri, Endpoint.AdminState state) {
+        getEndpoint(getService(alias), uri).setAdminState(state);
+        logger.info("Endpoint {} of {} state changed to {}", new Object[]{uri, alias, state});
+    }
+
+    private OrchestrationConfig getConfig() {
+        OrchestrationConfig config = brokerContext.getOrchestrationConfig();
+        if (config == null) {
+            throw new IllegalStateException("Orchestration config not loaded");
+        }
+        return config;
+    }
+
+    private OrchestratedService getService(String alias) {
+        OrchestratedService service = getConfig().getService(alias);
+        if (service == null) {
+            throw new IllegalArgumentException("Unknown service alias: " + alias);
+        }
+        return service;
+    }
+
+    private Endpoint getEndpoint(OrchestratedService service, String uri) {
+        Endpoint endpoint = service.getEndpoint(uri);
+        if (endpoint == null) {
+            throw new IllegalArgumentException("Unknown endpoint " + uri + " of " + service.getAlias());
+        }
+        return endpoint;
+    }
+
+    private String formatStatistics(String alias, Endpoint endpoint) {
+        InviteLimiter limiter = endpoint.getInviteLimiter();
+        RttEstimator rttEstimator = endpoint.getRttEstimator();
+        return String.format(Locale.ROOT, "%s %s resolved=%s state=%s weight=%d activeSessions=%d invites=%d " +
+                        "failures=%d invitesRate=%.1f/s failuresRate=%.1f/s backoff=%dms srtt=%dms rttvar=%dms " +
+                        "t1=%dms messageSizes=[%s]%s", alias,
+                endpoint.getUriString(), endpoint.getResolvedHost(), endpoint.getAdminState(), endpoint.getWeight(),
+                endpoint.getActiveSessions(), endpoint.getInvitesCount(), endpoint.getFailuresCount(),
+                endpoint.getInvitesRate(), endpoint.getFailuresRate(), endpoint.getBackoffRemaining(),
+                rttEstimator.getSmoothedRtt(), rttEstimator.getRttVariance(),
+                brokerContext.getRetransmitTimer(endpoint), endpoint.getMessageSizes(),
+                limiter != null ? " invitesInFlight=" + limiter.getInFlight() + " inviteLimit=" + limiter.getLimit()
+                        : "");
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service;
+
+/**
+ * Runtime management of the services endpoints (JMX), applied to the live configuration without reload.
+ * Services are identified by the application alias (IM-SCF for the IM-SCF pool) and endpoints by the uri
+ * as configured.
+ */
+public interface EndpointManagementMBean {
+
+    /**
+     * @return aliases of the configured services
+     */
+    String[] getServiceAliases();
+
+    /**
+     * @return state and statistics of all the endpoints, one endpoint per line
+     */
+    String[] getEndpointStatistics();
+
+    /**
+     * Returns state and statistics of the endpoints of the service
+     *
+     * @param alias - service alias
+     */
+    String[] getServiceEndpointStatistics(String alias);
+
+    /**
+     * Stops selecting the endpoint for new sessions, the sessions already using it continue
+     *
+     * @param alias - service alias
+     * @param uri   - endpoint uri
+     */
+    void drainEndpoint(String alias, String uri);
+
+    /**
+     * Stops sending any INVITE to the endpoint, dialogs already established continue
+     *
+     * @param alias - service alias
+     * @param uri   - endpoint uri
+     */
+    void disableEndpoint(String alias, String uri);
+
+    /**
+     * Puts drained or disabled endpoint back into rotation
+     *
+     * @param alias - service alias
+     * @param uri   - endpoint uri
+     */
+    void enableEndpoint(String alias, String uri);
+
+    /**
+     * Changes weight of the endpoint (share of the new sessions), 0 stops selecting it for new sessions
+     *
+     * @param alias  - service alias
+     * @param uri    - endpoint uri
+     * @param weight - new weight
+     */
+    void setEndpointWeight(String alias, String uri, int weight);
+
+    /**
+     * Changes weights of several endpoints of the service at once
+     *
+     * @param alias   - service alias
+     * @param weights - comma separated list of uri=weight
+     */
+    void setEndpointWeights(String alias, String weights);
+}
@@ -0,0 +1,57 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service;
+
+import java.util.EventObject;
+
+/**
+ * This is the broker timer event related to particular dialog handler.
+ * It is delivered through the session events queue.
+ */
+public class HandlerTimerEvent extends EventObject {
+
+    /**
+     * The purpose of the timer
+     */
+    public enum TimerType {
+        HEDGE, // no response from the endpoint, INVITE to be sent to alternative endpoint
+        SETUP_DEADLINE, // no response from the service within its setup timeout, INVITE to be abandoned
+        TEARDOWN_DEADLINE // not all the legs acknowledged the session teardown, session to be removed anyway
+    }
+
+    private final TimerType timerType;
+
+    /**
+     * @param handler   - dialog handler the timer was scheduled for
+     * @param timerType - timer purpose
+     */
+    public HandlerTimerEvent(B2BDialogsHandler handler, TimerType timerType) {
+        super(handler);
+        this.timerType = timerType;
+    }
+
+    public B2BDialogsHandler getHandler() {
+        return (B2BDialogsHandler) getSource();
+    }
+
+    public TimerType getTimerType() {
+        return timerType;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service;
+
+import org.slf4j.Logger;
+import pl.ovoo.slee.resource.sip.broker.SipBrokerUsageParameters;
+import pl.ovoo.slee.resource.sip.broker.service.config.Endpoint;
+import pl.ovoo.slee.resource.sip.broker.service.config.OrchestratedService;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the endpoints hosts up front, so that the SIP stack does not resolve them on the worker threads.
+ * The resolved addresses are cached for the TTL and then refreshed by a background thread. The endpoints keep
+ * using the stale address until the refresh completes, also if the refresh fails (stale-while-revalidate).
+ */
+public class HostResolver {
+
+    /**
+     * Host name lookup (DNS by default)
+     */
+    public interface Lookup {
+        InetAddress lookup(String host) throws UnknownHostException;
+    }
+
+    public static final Lookup DEFAULT_LOOKUP = InetAddress::getByName;
+
+    // IPv4 or IPv6 (with or without brackets) literals are not resolved
+    private static final Pattern IP_LITERAL = Pattern.compile("[0-9.]+|\\[?[0-9a-fA-F:.]*:[0-9a-fA-F:.]*]?");
+    // longest period of the cache expiry checks
+    private static final long MAX_CHECK_PERIOD = 1000;
+    // failed refresh is retried after this time (ms), unless TTL is shorter
+    private static final long FAILURE_RETRY = 5000;
+
+    private final long ttl;
+    private final Lookup lookup;
+    private final SipBrokerUsageParameters usageParameters;
+    private final Logger logger;
+    private final ScheduledExecutorService refresher;
+
+    // host name to the cache entry of the currently configured endpoints
+    private volatile Map<String, HostEntry> hosts = new HashMap<>();
+
+    /**
+     * @param ttl             - time (ms) the resolved address is valid for
+     * @param lookup          - host name lookup
+     * @param usageParameters - resolution time and failures statistics
+     * @param logger          - logger
+     */
+    public HostResolver(long ttl, Lookup lookup, SipBrokerUsageParameters usageParameters, Logger logger) {
+        this.ttl = ttl;
+        this.lookup = lookup;
+        this.usageParameters = usageParameters;
+        this.logger = logger;
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BrokerHostResolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, Math.min(MAX_CHECK_PERIOD, ttl / 10));
+        refresher.scheduleWithFixedDelay(this::refreshExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Resolves hosts of the services endpoints (the hosts already cached are not resolved again).
+     * To be called when the orchestration config is loaded, before it is applied.
+     *
+     * @param services - configured services
+     */
+    public synchronized void register(Collection<OrchestratedService> services) {
+        Map<String, HostEntry> previousHosts = hosts;
+        Map<String, HostEntry> newHosts = new HashMap<>();
+        for (OrchestratedService service : services) {
+            for (Endpoint endpoint : service.getEndpoints()) {
+                String host = endpoint.getHost();
+                if (IP_LITERAL.matcher(host).matches()) {
+                    continue;
+                }
+                HostEntry entry = newHosts.get(host);
+                if (entry == null) {
+                    HostEntry previous = previousHosts.get(host);
+                    entry = new HostEntry(host, previous);
+                    newHosts.put(host, entry);
+                }
+                entry.endpoints.add(endpoint);
+            }
+        }
+        for (HostEntry entry : newHosts.values()) {
+            if (entry.address == null) {
+                resolve(entry);
+            } else {
+                entry.applyAddress();
+            }
+        }
+        hosts = newHosts;
+    }
+
+    /**
+     * Stops the background refresh
+     */
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    /*
+     * Refreshes the expired entries (refresher thread)
+     */
+    private void refreshExpired() {
+        long now = System.currentTimeMillis();
+        for (HostEntry entry : hosts.values()) {
+            if (now >= entry.expiresAt) {
+                synchronized (this) {
+                    resolve(entry);
+                }
+            }
+        }
+    }
+
+    /*
+     * Resolves the host and updates its endpoints, the previous address is kept on failure
+     */
+    private void resolve(HostEntry entry) {
+        long startTime = System.currentTimeMillis();
+        try {
+            InetAddress inetAddress = lookup.lookup(entry.host);
+            long resolutionTime = System.currentTimeMillis() - startTime;
+            usageParameters.sampleHostResolutionTime(resolutionTime);
+            String address = inetAddress instanceof Inet6Address ? "[" + inetAddress.getHostAddress() + "]"
+                    : inetAddress.getHostAddress();
+            if (!address.equals(entry.address)) {
+                logger.info("Host {} resolved to {} in {} ms", new Object[]{entry.host, address, resolutionTime});
+            }
+            entry.address = address;
+            entry.expiresAt = System.currentTimeMillis() + ttl;
+            entry.applyAddress();
+        } catch (UnknownHostException | RuntimeException e) {
+            usageParameters.incrementHostResolutionFailuresCount(1);
+            logger.warn("Unable to resolve host {}, {}", entry.host, entry.address != null ?
+                    "keeping " + entry.address : "resolved by SIP stack");
+            entry.expiresAt = System.currentTimeMillis() + Math.min(ttl, FAILURE_RETRY);
+        }
+    }
+
+    /*
+     * Cached address of the host and the endpoints using it
+     */
+    private final class HostEntry {
+        private final String host;
+        private final List<Endpoint> endpoints = new ArrayList<>();
+        private volatile String address;
+        private volatile long expiresAt;
+
+        private HostEntry(String host, HostEntry previous) {
+            this.host = host;
+            if (previous != null) {
+                address = previous.address;
+                expiresAt = previous.expiresAt;
+            }
+        }
+
+        private void applyAddress() {
+            if (address == null) {
+                return;
+            }
+            for (Endpoint endpoint : endpoints) {
+                try {
+                    endpoint.setResolvedHost(address);
+                } catch (ParseException e) {
+                    logger.warn("Invalid address {} of host {}", address, host);
+                }
+            }
+        }
+    }
+}
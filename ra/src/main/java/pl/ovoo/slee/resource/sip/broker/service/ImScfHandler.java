@@ -20,6 +20,8 @@
 package pl.ovoo.slee.resource.sip.broker.service;
 
 import pl.ovoo.slee.resource.sip.broker.dispatcher.ServiceProvider;
+import pl.ovoo.slee.resource.sip.broker.service.config.Endpoint;
+import pl.ovoo.slee.resource.sip.broker.service.config.OrchestratedService;
 import pl.ovoo.slee.resource.sip.broker.service.sessionfsm.SessionContext;
 import pl.ovoo.slee.resource.sip.broker.utils.MessageUtils;
 
@@ -33,7 +35,6 @@ import javax.sip.message.Response;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.ListIterator;
 
 /**
  * This is a logical entity representing either A or B leg of the IM-SCF
@@ -41,6 +42,16 @@ import java.util.ListIterator;
 public class ImScfHandler extends B2BDialogsHandler {
     // logical name of this ImScf handler
     private final String name;
+    // IM-SCF pool node the INVITE was sent to, null if routed by the incoming Route headers or to default IM-SCF
+    private Endpoint endpoint;
+    // IM-SCF pool nodes already INVITEd by this handler
+    private final List<Endpoint> triedEndpoints = new ArrayList<>(1);
+    // INVITE passed to IM-SCF, reused when INVITE is resent to the alternative node
+    private Request passedInvite;
+    // number of alternative nodes tried on failover
+    private int failoverCount;
+    // indicates IM-SCF responded (other than 100 Trying)
+    private boolean answered;
 
     public ImScfHandler(SessionContext context, ServiceProvider provider, String name) {
         super(context, provider);
@@ -58,30 +69,44 @@ public class ImScfHandler extends B2BDialogsHandler {
         logger.trace("processOutgoingInvite");
 
         try {
-            // pop first route (broker's one)
-            inviteRequestToPass.removeFirst(RouteHeader.NAME);
-
-            ListIterator<RouteHeader> incomingRoutes = inviteRequestToPass.getHeaders(RouteHeader.NAME);
-            List<RouteHeader> outgoingRoutes = new ArrayList<>();
+            // keep untouched INVITE for failover to the alternative IM-SCF node
+            Request originalInvite = context.brokerContext.getImScfPool() != null ?
+                    (Request) inviteRequestToPass.clone() : null;
 
-            // copy rest of the route headers
-            while(incomingRoutes.hasNext()){
-                outgoingRoutes.add(incomingRoutes.next());
-            }
+            // pop first route (broker's one), rest of the route headers is copied
+            inviteRequestToPass.removeFirst(RouteHeader.NAME);
 
-            if (outgoingRoutes.isEmpty()) {
-                // empty incoming route headers, use default one
-                outgoingRoutes.add(context.brokerContext.getDefaultImScfRouteHeader());
+            endpoint = null;
+            answered = false;
+            RouteHeader hopRoute = null;
+            if (inviteRequestToPass.getHeader(RouteHeader.NAME) == null) {
+                endpoint = context.getImScfEndpoint();
+                if (endpoint != null) {
+                    // IM-SCF pool node the session is pinned to
+                    hopRoute = endpoint.getRouteHeader();
+                    passedInvite = originalInvite;
+                    if (!triedEndpoints.contains(endpoint)) {
+                        triedEndpoints.add(endpoint);
+                    }
+                } else {
+                    // empty incoming route headers, use default one
+                    hopRoute = context.brokerContext.getDefaultImScfRouteHeader();
+                }
             }
 
-            Request newInvite = MessageUtils.createInvite(context.brokerContext, inviteRequestToPass, outgoingRoutes,
-                    logger, serviceProvider.getNewCallId());
+            Request newInvite = context.brokerContext.getInviteTemplate().createInvite(inviteRequestToPass,
+                    hopRoute, null, serviceProvider.getNewCallId(), logger);
+            context.brokerContext.prepareOutgoingMessage(newInvite,
+                    endpoint != null ? context.brokerContext.getImScfPool() : null, endpoint);
 
             logger.debug("Sending request:\n{}", newInvite);
 
             ClientTransaction ct = serviceProvider.getNewClientTransaction(newInvite);
-            ct.setRetransmitTimer(context.brokerContext.outgoingRetransmitTimer);
+            ct.setRetransmitTimer(getRetransmitTimer());
             ct.sendRequest();
+            if (endpoint != null) {
+                endpoint.incrementInvitesCount();
+            }
             // INVITE request sent, there is a dialog to store
             setLastOutgoingInvite(newInvite);
             setLastClientTransaction(ct);
@@ -99,6 +124,64 @@ public class ImScfHandler extends B2BDialogsHandler {
         }
     }
 
+    /**
+     * Updates the IM-SCF pool node health on the first INVITE response (other than 100 Trying).
+     *
+     * @param ct       - client transaction of the response
+     * @param response - received response
+     */
+    public void processInviteResponse(ClientTransaction ct, Response response) {
+        if (endpoint != null && !answered && ct == getLastClientTransaction()
+                && Request.INVITE.equals(ct.getRequest().getMethod()) && response.getStatusCode() > Response.TRYING) {
+            answered = true;
+            updateEndpointBackoff(endpoint, response);
+        }
+    }
+
+    /**
+     * Counts INVITE timeout of the IM-SCF pool node.
+     *
+     * @param ct - timed out client transaction
+     */
+    public void processInviteTimeout(ClientTransaction ct) {
+        if (endpoint != null && ct == getLastClientTransaction()
+                && Request.INVITE.equals(ct.getRequest().getMethod())) {
+            endpoint.incrementFailuresCount();
+        }
+    }
+
+    /**
+     * Selects alternative IM-SCF pool node to resend the INVITE to and pins the session to it.
+     * The selection is limited by the pool failover attempts.
+     *
+     * @return true if alternative node has been selected
+     */
+    public boolean selectFailoverEndpoint() {
+        OrchestratedService pool = context.brokerContext.getImScfPool();
+        if (endpoint == null || passedInvite == null || pool == null || failoverCount >= pool.getFailoverAttempts()) {
+            return false;
+        }
+
+        Endpoint alternative = pool.nextEndpoint(context.getAffinityKey(pool), triedEndpoints);
+        if (alternative == null) {
+            logger.debug("No alternative IM-SCF node left");
+            return false;
+        }
+
+        logger.info("Failover of IM-SCF from {} to {}", endpoint.getUriString(), alternative.getUriString());
+        context.setImScfEndpoint(alternative);
+        failoverCount++;
+        context.brokerContext.getUsageParameters().incrementImScfFailoverAttemptsCount(1);
+        return true;
+    }
+
+    /**
+     * Returns INVITE passed to IM-SCF pool node, null if not sent to the pool
+     */
+    public Request getPassedInvite() {
+        return passedInvite;
+    }
+
     /**
      * Forwards INVITE/BYE/INFO response to this handler
      *
@@ -112,7 +195,8 @@ public class ImScfHandler extends B2BDialogsHandler {
         try {
             Response imScfResponse = MessageUtils.createForwardedResponse(responseToPass, dialog,
                     getLastIncomingRequest(), context.getMessageFactory(), context.brokerContext
-                            .getBrokerContactHeader(), logger);
+                            .getBrokerContactHeader(), context.brokerContext.idGenerator, logger);
+            context.brokerContext.prepareOutgoingMessage(imScfResponse, null, null);
 
             // cease all pending transactions (PRACK, INFO)
             if(responseToPass.getStatusCode() >= Response.MULTIPLE_CHOICES){
@@ -128,6 +212,10 @@ public class ImScfHandler extends B2BDialogsHandler {
 
             // null transaction in case of final response
             if (responseToPass.getStatusCode() >= Response.OK) {
+                if (Request.INVITE.equals(getLastIncomingRequest().getMethod())) {
+                    // the members of the parallel group which primary has been skipped
+                    context.mirrorFinalResponse(this, responseToPass);
+                }
                 setLastServerTransaction(null);
                 setLastIncomingRequest(null);
             }
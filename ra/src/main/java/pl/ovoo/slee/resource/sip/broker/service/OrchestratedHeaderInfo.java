@@ -30,6 +30,10 @@ public class OrchestratedHeaderInfo {
     private final String servicekey;
     // indicates if this is an originating (or terminating model)
     private final boolean isOriginating;
+    // calling party user (P-Asserted-Identity or From), might be null
+    private final String callingUser;
+    // called party user (Request-URI), might be null
+    private final String calledUser;
 
 
     /**
@@ -39,9 +43,24 @@ public class OrchestratedHeaderInfo {
      * @param originating  - indicates if this is originating or terminating case
      */
     public OrchestratedHeaderInfo(String sessionId, String servicekey, boolean originating) {
+        this(sessionId, servicekey, originating, null, null);
+    }
+
+    /**
+     *
+     * @param sessionId    - uniquely identifies the session
+     * @param servicekey   - servicekey to select orchestrated rulesets
+     * @param originating  - indicates if this is originating or terminating case
+     * @param callingUser  - calling party user, might be null
+     * @param calledUser   - called party user, might be null
+     */
+    public OrchestratedHeaderInfo(String sessionId, String servicekey, boolean originating, String callingUser,
+                                  String calledUser) {
         this.sessionId = sessionId;
         this.servicekey = servicekey;
         this.isOriginating = originating;
+        this.callingUser = callingUser;
+        this.calledUser = calledUser;
     }
 
     public String getSessionId() {
@@ -56,6 +75,14 @@ public class OrchestratedHeaderInfo {
         return isOriginating;
     }
 
+    public String getCallingUser() {
+        return callingUser;
+    }
+
+    public String getCalledUser() {
+        return calledUser;
+    }
+
     @Override
     public String toString(){
         return "OrchestrationInfo: " + "sessionId: " + sessionId + ", servicekey: " + servicekey + ", orig: "
@@ -21,11 +21,14 @@ package pl.ovoo.slee.resource.sip.broker.service;
 
 import org.slf4j.Logger;
 import pl.ovoo.slee.resource.sip.broker.service.config.OrchestrationRuleset;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventKind;
 import pl.ovoo.slee.resource.sip.broker.service.eventqueue.SessionEventHandler;
 import pl.ovoo.slee.resource.sip.broker.service.sessionfsm.InitialState;
 import pl.ovoo.slee.resource.sip.broker.service.sessionfsm.SessionContext;
 import pl.ovoo.slee.resource.sip.broker.service.sessionfsm.State;
 
+import javax.sip.Dialog;
+import javax.sip.RequestEvent;
 import java.util.EventObject;
 
 /**
@@ -69,16 +72,27 @@ public class OrchestratedSession extends SessionEventHandler {
      * This is the main entry point to handle any message in current state
      *
      * @param event
+     * @param kind  - kind of the event
      */
-    public void handleNextEvent(EventObject event) {
-        logger.debug("Handle next event: {} in state: {}", event.getClass().getSimpleName(),
-                    currentSessionState.getClass().getSimpleName());
+    public void handleNextEvent(EventObject event, EventKind kind) {
+        if (kind == EventKind.RELAYED_REQUEST) {
+            RequestEvent requestEvent = (RequestEvent) event;
+            if (relayRequest(requestEvent)) {
+                return;
+            }
+            // relay disarmed meanwhile or not able to pass the request, let the FSM handle it
+            kind = EventKind.forRequest(requestEvent.getRequest());
+        }
+
+        logger.debug("Handle next event: {} in state: {}", kind, currentSessionState.getClass().getSimpleName());
 
-        State nextState = currentSessionState.handleEvent(event);
+        State nextState = currentSessionState.handleEvent(event, kind);
         if (nextState == null) {
             logger.debug("No more processing of the events, this was the last state");
+            sessionContext.setDialogRelaysArmed(false);
         } else {
             currentSessionState = nextState;
+            sessionContext.setDialogRelaysArmed(nextState.isDialogRelayState());
             logger.debug("Event processing finished, proceeding to state: {}",
                                         currentSessionState.getClass().getSimpleName());
         }
@@ -86,6 +100,16 @@ public class OrchestratedSession extends SessionEventHandler {
 
     }
 
+    /*
+     * Passes the in-dialog request by the relay of its dialog, returns false if the FSM has to handle it
+     */
+    private boolean relayRequest(RequestEvent event) {
+        Dialog dialog = event.getDialog();
+        B2BDialogsHandler handler = ((HandlerReferenceWrapper) dialog.getApplicationData()).getDialogHandler();
+        DialogRelay relay = handler.getDialogRelay(dialog);
+        return relay != null && relay.relayRequest(event);
+    }
+
     public String toString() {
         return "Session ID: " + getID();
     }
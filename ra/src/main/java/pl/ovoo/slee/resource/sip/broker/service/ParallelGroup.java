@@ -0,0 +1,444 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service;
+
+import org.slf4j.Logger;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventKind;
+import pl.ovoo.slee.resource.sip.broker.service.sessionfsm.SessionContext;
+
+import javax.sip.Dialog;
+import javax.sip.InvalidArgumentException;
+import javax.sip.RequestEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipException;
+import javax.sip.TransactionAlreadyExistsException;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.RequireHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.HandlerState.ACKED;
+import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.HandlerState.ANSWERED;
+import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.HandlerState.INVITED;
+import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.HandlerState.PROVISIONAL;
+import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.HandlerState.SET_TO_CANCEL;
+import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.HandlerState.TERMINATED;
+import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.HandlerState.TERMINATING;
+
+/**
+ * Group of services INVITEd at once. The primary service takes the place of the group in the chain,
+ * its INVITE is passed to the next node as usual. The other members get the same INVITE but are not chained:
+ * the INVITE they pass back to the broker is held and answered with the final response the primary gets
+ * from the rest of the chain. The members failures are merged by the session FSM according to the ruleset
+ * error logic, the members are torn down together with the primary.
+ * If the primary is skipped by the ruleset error logic, the group is anchored at the node preceding the primary:
+ * the members are answered with the final response passed to that node and torn down together with it
+ * (or with the node following it).
+ */
+public class ParallelGroup {
+
+    private static final String TAG_100_REL = "100rel";
+
+    private final ASHandler primary;
+    private final List<ASHandler> members = new ArrayList<>();
+    private final SessionContext context;
+    private final Logger logger;
+
+    // chained node which final response is mirrored to the members, the primary unless it has been skipped
+    private B2BDialogsHandler anchor;
+
+    // first final response passed to the primary, the members INVITEs are answered with it
+    private Response finalResponse;
+    // indicates the members are being torn down
+    private boolean terminated;
+
+    /**
+     * @param primary - handler of the primary service, chained as usual
+     * @param context - session context
+     */
+    public ParallelGroup(ASHandler primary, SessionContext context) {
+        this.primary = primary;
+        this.anchor = primary;
+        this.context = context;
+        logger = context.getSessionLogger(getClass());
+    }
+
+    /**
+     * Adds the member INVITEd together with the primary
+     *
+     * @param member - handler of the parallel service
+     */
+    public void addMember(ASHandler member) {
+        members.add(member);
+    }
+
+    public ASHandler getPrimary() {
+        return primary;
+    }
+
+    public List<ASHandler> getMembers() {
+        return members;
+    }
+
+    public B2BDialogsHandler getAnchor() {
+        return anchor;
+    }
+
+    /**
+     * Moves the group to the given chained node, to be called when the anchor node is skipped.
+     * The members keep their sessions and are answered with the final response passed to the new anchor.
+     *
+     * @param handler - node preceding the skipped anchor in the chain
+     */
+    public void setAnchor(B2BDialogsHandler handler) {
+        logger.debug("{} anchored at {}", this, handler);
+        anchor = handler;
+    }
+
+    /**
+     * Indicates the primary has been skipped, i.e. the members are not reachable through the chain anymore
+     */
+    public boolean isPrimarySkipped() {
+        return anchor != primary;
+    }
+
+    /**
+     * Indicates the members failure might still stop the session setup,
+     * i.e. the group has not got the final response and the primary has not been terminated (unless skipped).
+     */
+    public boolean isSetupPending() {
+        return finalResponse == null && !terminated && (isPrimarySkipped()
+                || primary.getHandlerState() != TERMINATED && primary.getHandlerState() != TERMINATING);
+    }
+
+    /**
+     * Sends the INVITE to the members not INVITEd yet. To be called once the INVITE has been sent to the primary.
+     * The members share the primary position in the chain, they are not reachable by the next/previous links.
+     *
+     * @param invite - INVITE passed to the primary
+     *
+     * @return members the INVITE could not be sent to
+     */
+    public List<ASHandler> inviteMembers(Request invite) {
+        List<ASHandler> failedMembers = new ArrayList<>(0);
+        for (ASHandler member : members) {
+            if (member.getHandlerState() != B2BDialogsHandler.HandlerState.INITIAL) {
+                continue;
+            }
+            member.setPreviousHandler(primary.getPreviousHandler());
+            member.setNextHandler(primary.getNextHandler());
+            try {
+                inviteMember(member, invite);
+            } catch (UnrecoverableError e) {
+                logger.warn("Error when sending INVITE request to parallel {}", member, e);
+                if (!failoverMember(member)) {
+                    member.setHandlerState(TERMINATED);
+                    failedMembers.add(member);
+                }
+            }
+        }
+        return failedMembers;
+    }
+
+    /**
+     * Resends INVITE of the failed member to the alternative endpoint of its service
+     *
+     * @param member - member that timed out or responded with 503
+     *
+     * @return true if INVITE was sent to the alternative endpoint
+     */
+    public boolean failoverMember(ASHandler member) {
+        if (terminated) {
+            return false;
+        }
+        while (member.selectFailoverEndpoint()) {
+            try {
+                inviteMember(member, member.getPassedInvite());
+                return true;
+
+            } catch (UnrecoverableError e) {
+                logger.warn("Error when sending INVITE request to alternative endpoint", e);
+            }
+        }
+        return false;
+    }
+
+    private void inviteMember(ASHandler member, Request invite) throws UnrecoverableError {
+        member.processOutgoingInvite(invite);
+        member.setHandlerState(INVITED);
+        context.addDialog(member.getOutgoingDialog());
+        context.brokerContext.getUsageParameters().incrementParallelInvitesCount(1);
+        logger.debug("INVITE sent to parallel {}", member);
+    }
+
+    /**
+     * Returns the member the INVITE attempt belongs to
+     *
+     * @param attemptId - attempt identifier of the INVITE passed back to the broker, might be null
+     *
+     * @return member or null if the attempt is not the current attempt of any member
+     */
+    public ASHandler findMember(String attemptId) {
+        if (attemptId != null) {
+            for (ASHandler member : members) {
+                if (member.isCurrentAttempt(attemptId)) {
+                    return member;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Holds the INVITE the member passed back to the broker, it is answered with the primary final response.
+     *
+     * @param member - member that sent the INVITE
+     * @param event  - INVITE request event
+     */
+    public void acceptMemberInvite(ASHandler member, RequestEvent event) {
+        Request invite = event.getRequest();
+        member.processIncomingInvite(invite);
+
+        try {
+            ServerTransaction st = event.getServerTransaction();
+            if (st == null) {
+                st = member.getNewServerTransaction(invite);
+                st.sendResponse(context.getMessageFactory().createResponse(Response.TRYING, invite));
+            }
+            member.setLastIncomingRequest(invite);
+            member.setIncomingDialog(st.getDialog());
+            member.setLastServerTransaction(st);
+            st.getDialog().setApplicationData(member.getReferenceWrapper());
+            context.addDialog(st.getDialog());
+
+        } catch (TransactionAlreadyExistsException e) {
+            logger.debug("INVITE retransmission from parallel {}", member);
+            return;
+        } catch (SipException | ParseException | InvalidArgumentException e) {
+            logger.warn("Unable to accept INVITE from parallel {}", member, e);
+            return;
+        }
+
+        if (terminated || member.getHandlerState() == TERMINATED) {
+            respondRequestTerminated(member);
+        } else if (finalResponse != null) {
+            answerMember(member);
+        } else {
+            logger.debug("INVITE from parallel {} held until the final response", member);
+        }
+    }
+
+    /**
+     * Answers the held members INVITEs with the final response passed to the primary.
+     * Only the first final response is used, the members results are no longer merged afterwards.
+     *
+     * @param response - final response passed to the primary
+     */
+    public void mirrorFinalResponse(Response response) {
+        if (finalResponse != null || terminated) {
+            return;
+        }
+        finalResponse = response;
+        for (ASHandler member : members) {
+            if (member.isLastServerTransaction()) {
+                answerMember(member);
+            }
+        }
+    }
+
+    private void answerMember(ASHandler member) {
+        try {
+            member.forwardResponse(finalResponse, member.getIncomingDialog());
+        } catch (SendResponseError e) {
+            logger.warn("Unable to answer INVITE of parallel {}", member, e);
+            terminateMember(member);
+        }
+    }
+
+    /**
+     * Processes the provisional response of the member, reliable response is PRACKed by the broker.
+     *
+     * @param member   - responding member
+     * @param response - provisional response to INVITE
+     */
+    public void processMemberProvisional(ASHandler member, Response response) {
+        if (member.getHandlerState() == SET_TO_CANCEL) {
+            member.sendTerminatingCancel();
+            return;
+        }
+        if (member.getHandlerState() != INVITED && member.getHandlerState() != PROVISIONAL) {
+            return;
+        }
+        member.setHandlerState(PROVISIONAL);
+
+        RequireHeader requireHeader = (RequireHeader) response.getHeader(RequireHeader.NAME);
+        if (requireHeader != null && requireHeader.getOptionTag().equalsIgnoreCase(TAG_100_REL)) {
+            member.setLastSessionProgressResponse(response);
+            try {
+                member.processOutgoingPrack();
+            } catch (UnrecoverableError e) {
+                logger.warn("Unable to PRACK parallel {}", member, e);
+            }
+        }
+    }
+
+    /**
+     * Acknowledges 2xx response of the member. The member is BYEd if the group is being torn down.
+     *
+     * @param member   - responding member
+     * @param response - 2xx response to INVITE
+     * @param dialog   - dialog the response was received on
+     */
+    public void acknowledgeMemberAnswer(ASHandler member, Response response, Dialog dialog) {
+        B2BDialogsHandler.HandlerState state = member.getHandlerState();
+        if (state == ANSWERED || state == ACKED || state == TERMINATING) {
+            logger.trace("2xx retransmission from parallel {}, no action", member);
+            return;
+        }
+
+        try {
+            long cseqNumber = ((CSeqHeader) response.getHeader(CSeqHeader.NAME)).getSeqNumber();
+            dialog.sendAck(dialog.createAck(cseqNumber));
+        } catch (SipException | InvalidArgumentException e) {
+            logger.warn("Unable to ACK parallel {}", member, e);
+        }
+
+        if (terminated || state == SET_TO_CANCEL || state == TERMINATED) {
+            member.setHandlerState(ANSWERED);
+            member.sendTerminatingBye();
+        } else {
+            member.setHandlerState(ACKED);
+        }
+    }
+
+    /**
+     * Handles the request the member sent on its dialogs. The member dialogs are not chained:
+     * ACK is absorbed, BYE and CANCEL are answered by the broker, other requests are rejected.
+     *
+     * @param member - member that sent the request
+     * @param event  - request event
+     * @param kind   - request kind
+     */
+    public void processMemberRequest(ASHandler member, RequestEvent event, EventKind kind) {
+        Request request = event.getRequest();
+        logger.debug("{} from parallel {}", request.getMethod(), member);
+
+        switch (kind) {
+            case ACK:
+                return;
+
+            case BYE:
+                respond(member, event, Response.OK);
+                if (event.getDialog() == member.getOutgoingDialog()) {
+                    member.setHandlerState(TERMINATED);
+                }
+                return;
+
+            case CANCEL:
+                respond(member, event, Response.OK);
+                if (member.isLastServerTransaction()) {
+                    respondRequestTerminated(member);
+                }
+                return;
+
+            default:
+                respond(member, event, Response.METHOD_NOT_ALLOWED);
+        }
+    }
+
+    /**
+     * Tears down the members (CANCEL or BYE depending on their state), the held INVITEs are answered with 487.
+     * To be called when the primary is terminated.
+     */
+    public void terminateMembers() {
+        if (terminated) {
+            return;
+        }
+        terminated = true;
+        for (ASHandler member : members) {
+            terminateMember(member);
+        }
+    }
+
+    private void terminateMember(ASHandler member) {
+        switch (member.getHandlerState()) {
+            case INVITED:
+                // CANCEL not allowed before provisional response
+                member.setHandlerState(SET_TO_CANCEL);
+                break;
+            case PROVISIONAL:
+                logger.trace("Disconnecting parallel {} with CANCEL", member);
+                member.sendTerminatingCancel();
+                break;
+            case ANSWERED:
+            case ACKED:
+                logger.trace("Disconnecting parallel {} with BYE", member);
+                member.sendTerminatingBye();
+                break;
+            default:
+                break;
+        }
+
+        if (member.isLastServerTransaction()) {
+            respondRequestTerminated(member);
+        }
+    }
+
+    /*
+     * Responds with 487 to the INVITE held for the member
+     */
+    private void respondRequestTerminated(ASHandler member) {
+        Request invite = member.getLastIncomingRequest();
+        if (invite == null || !Request.INVITE.equals(invite.getMethod())) {
+            return;
+        }
+        try {
+            member.sendNewResponse(context.getMessageFactory().createResponse(Response.REQUEST_TERMINATED, invite));
+        } catch (SendResponseError | ParseException e) {
+            logger.warn("Unable to terminate INVITE of parallel {}", member, e);
+        }
+    }
+
+    /*
+     * Responds to the member request locally, the server transaction is created if the stack has not done so,
+     * so that the request retransmissions are absorbed by the transaction
+     */
+    private void respond(ASHandler member, RequestEvent event, int statusCode) {
+        try {
+            ServerTransaction st = event.getServerTransaction();
+            if (st == null) {
+                st = member.getNewServerTransaction(event.getRequest());
+            }
+            st.sendResponse(context.getMessageFactory().createResponse(statusCode, event.getRequest()));
+        } catch (TransactionAlreadyExistsException e) {
+            logger.debug("{} retransmission from parallel {}", event.getRequest().getMethod(), member);
+        } catch (SipException | ParseException | InvalidArgumentException e) {
+            logger.warn("Unable to respond to {} of parallel {}", new Object[]{event.getRequest().getMethod(), member, e});
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ParallelGroup{primary=" + primary + ", members=" + members + "}";
+    }
+}
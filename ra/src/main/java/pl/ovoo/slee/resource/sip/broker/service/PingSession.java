@@ -24,6 +24,7 @@ import pl.ovoo.slee.resource.sip.broker.dispatcher.ServiceProvider;
 import pl.ovoo.slee.resource.sip.broker.service.config.Endpoint;
 import pl.ovoo.slee.resource.sip.broker.service.config.OrchestratedService;
 import pl.ovoo.slee.resource.sip.broker.service.config.OrchestrationConfig;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventKind;
 import pl.ovoo.slee.resource.sip.broker.service.eventqueue.SessionEventHandler;
 import pl.ovoo.slee.resource.sip.broker.utils.MessageUtils;
 import pl.ovoo.slee.resource.sip.broker.utils.SipBrokerLogger;
@@ -33,7 +34,6 @@ import javax.sip.InvalidArgumentException;
 import javax.sip.RequestEvent;
 import javax.sip.ResponseEvent;
 import javax.sip.SipException;
-import javax.sip.TimeoutEvent;
 import javax.sip.address.SipURI;
 import javax.sip.address.URI;
 import javax.sip.message.Request;
@@ -77,11 +77,12 @@ public class PingSession extends SessionEventHandler {
      * This is the main entry point to handle any message in current state
      *
      * @param event - event from the listener
+     * @param kind  - kind of the event
      */
-    public void handleNextEvent(EventObject event) {
-        logger.debug("Handle ping Request event: {}", event.getClass().getSimpleName());
+    public void handleNextEvent(EventObject event, EventKind kind) {
+        logger.debug("Handle ping Request event: {}", kind);
 
-        if (event instanceof RequestEvent) {
+        if (kind.isRequest()) {
             if (pingOptionsRequest != null) {
                 // already handling request by this session
                 // this should never happen actually
@@ -92,11 +93,11 @@ public class PingSession extends SessionEventHandler {
 
             handleRequest(((RequestEvent) event).getRequest());
 
-        } else if (event instanceof ResponseEvent) {
+        } else if (kind == EventKind.RESPONSE || kind == EventKind.AS_RESPONSE) {
 
             handleResponse((ResponseEvent) event);
 
-        } else if (event instanceof TimeoutEvent) {
+        } else if (kind == EventKind.TIMEOUT) {
             // this must be client transaction
             logger.trace("Transaction timeout when ping current endpoint, trying with next one");
             if (pingServiceEndpoints()) {
@@ -106,7 +107,7 @@ public class PingSession extends SessionEventHandler {
             }
         } else {
             // ignore rest stuff, cannot do anything with these events
-            logger.trace("Received event: {}, no action necessary.", event.getClass().getSimpleName());
+            logger.trace("Received event: {}, no action necessary.", kind);
         }
     }
 
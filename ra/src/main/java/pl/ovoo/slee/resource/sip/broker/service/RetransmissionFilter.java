@@ -0,0 +1,119 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service;
+
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.Request;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Time-windowed filter of the INVITEs already accepted by the listener, identified by Call-ID and top Via branch.
+ * It lets the listener drop INVITE retransmissions before the session lookup.
+ * The identifiers are kept in two generations (maps): the current one and the previous one. Every window
+ * the current generation becomes the previous one and the old previous generation is dropped by reference,
+ * so each identifier is remembered for at least one and at most two windows, without sweeping the entries.
+ */
+public class RetransmissionFilter {
+
+    private final long window;
+    // swapped by writing previous before current and read in reverse order,
+    // so a reader seeing the new current generation also sees the new previous one
+    private volatile ConcurrentHashMap<String, Boolean> current = new ConcurrentHashMap<>();
+    private volatile ConcurrentHashMap<String, Boolean> previous = new ConcurrentHashMap<>();
+    private volatile long rotationTime;
+
+    /**
+     * @param window - time (ms) an accepted INVITE is remembered for at least
+     */
+    public RetransmissionFilter(long window) {
+        this.window = window;
+        rotationTime = System.currentTimeMillis() + window;
+    }
+
+    /**
+     * Returns the INVITE identifier: Call-ID and the top Via branch (Call-ID only if there is no branch)
+     *
+     * @param request - incoming INVITE
+     */
+    public static String getKey(Request request) {
+        String callId = ((CallIdHeader) request.getHeader(CallIdHeader.NAME)).getCallId();
+        ViaHeader via = (ViaHeader) request.getHeader(ViaHeader.NAME);
+        return via != null && via.getBranch() != null ? callId + ';' + via.getBranch() : callId;
+    }
+
+    /**
+     * Remembers the INVITE unless it is already known. The check and the insert are atomic, so of concurrently
+     * received copies of the INVITE only one is let through, also when the generations are swapped meanwhile.
+     *
+     * @param key - INVITE identifier
+     *
+     * @return true if the INVITE was not known, false if this is a retransmission
+     */
+    public boolean addIfAbsent(String key) {
+        rotateIfExpired();
+        ConcurrentHashMap<String, Boolean> added = current;
+        if (previous.containsKey(key) || added.putIfAbsent(key, Boolean.TRUE) != null) {
+            return false;
+        }
+        // generations swapped after the insert: a copy might have checked only the new current generation,
+        // the one to insert it there as well wins
+        ConcurrentHashMap<String, Boolean> next;
+        while ((next = current) != added) {
+            if (next.putIfAbsent(key, Boolean.TRUE) != null) {
+                return false;
+            }
+            added = next;
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the INVITE, so that its retransmissions are let through again
+     *
+     * @param key - INVITE identifier
+     */
+    public void remove(String key) {
+        current.remove(key);
+        previous.remove(key);
+    }
+
+    /**
+     * Returns number of the remembered INVITEs
+     */
+    public int size() {
+        return current.size() + previous.size();
+    }
+
+    private void rotateIfExpired() {
+        long now = System.currentTimeMillis();
+        if (now < rotationTime) {
+            return;
+        }
+        synchronized (this) {
+            if (now >= rotationTime) {
+                // after a quiet period longer than the window the current generation is expired as well
+                previous = now < rotationTime + window ? current : new ConcurrentHashMap<String, Boolean>();
+                current = new ConcurrentHashMap<>();
+                rotationTime = now + window;
+            }
+        }
+    }
+}
@@ -64,13 +64,13 @@ public class SessionManager {
     /**
      * Creates session object for given orchestrated information (encodeuri, x-servicekey).
      *
-     * @param info - orchestrated info
+     * @param info    - orchestrated info
+     * @param ruleset - orchestration ruleset matched for the servicekey
      * @return orchestrated session handler
      */
-    public SessionEventHandler createOrchestratedSession(OrchestratedHeaderInfo info) {
+    public SessionEventHandler createOrchestratedSession(OrchestratedHeaderInfo info, OrchestrationRuleset ruleset) {
         logger.debug("Creating new session for encodeuri: {}", info.getSessionId());
 
-        OrchestrationRuleset ruleset = brokerContext.getOrchestrationConfig().getRulesForKey(info.getServicekey());
         return id2SessionMap.computeIfAbsent(info.getSessionId(),
                                         k -> new OrchestratedSession(info, brokerContext, ruleset));
     }
@@ -25,7 +25,13 @@ import pl.ovoo.slee.resource.sip.broker.dispatcher.ExternalServiceProvider;
 import pl.ovoo.slee.resource.sip.broker.dispatcher.InternalServiceProvider;
 import pl.ovoo.slee.resource.sip.broker.dispatcher.ServiceProvider;
 import pl.ovoo.slee.resource.sip.broker.service.config.BrokerConfiguration;
+import pl.ovoo.slee.resource.sip.broker.service.config.Endpoint;
+import pl.ovoo.slee.resource.sip.broker.service.config.OrchestratedService;
 import pl.ovoo.slee.resource.sip.broker.service.config.OrchestrationConfig;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.BrokerTimer;
+import pl.ovoo.slee.resource.sip.broker.utils.CompactHeaders;
+import pl.ovoo.slee.resource.sip.broker.utils.IdGenerator;
+import pl.ovoo.slee.resource.sip.broker.utils.InviteTemplate;
 import pl.ovoo.slee.resource.sip.broker.utils.MessageUtils;
 import pl.ovoo.slee.resource.sip.broker.utils.SipBrokerLogger;
 
@@ -37,16 +43,21 @@ import javax.sip.address.AddressFactory;
 import javax.sip.header.ContactHeader;
 import javax.sip.header.HeaderFactory;
 import javax.sip.header.RouteHeader;
+import javax.sip.message.Message;
 import javax.sip.message.MessageFactory;
 import javax.slee.facilities.Tracer;
 import javax.slee.resource.ResourceAdaptorContext;
 import java.text.ParseException;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * This is the broker context, simplifies working with the provider, ra and broker utilities.
  */
 public class SipBrokerContext {
 
+    // one of this number of the outgoing messages is encoded to collect the message size statistics
+    private static final int MESSAGE_SIZE_SAMPLING = 16;
+
     public final AddressFactory addressFactory;
     public final HeaderFactory headerFactory;
     public final MessageFactory messageFactory;
@@ -54,12 +65,32 @@ public class SipBrokerContext {
     public final ServiceProvider externalServiceProvider;
     public final ServiceProvider internalServiceProvider;
     public final int outgoingRetransmitTimer;
+    // adaptive per-endpoint retransmission timer bounds, max 0 means adaptive timer disabled
+    public final int outgoingRetransmitTimerMin;
+    public final int outgoingRetransmitTimerMax;
+    // endpoint backoff time (ms) after 503 without Retry-After and maximum backoff time
+    public final int endpointBackoffDefault;
+    public final int endpointBackoffMax;
+    // endpoints hosts resolution cache, null if disabled (hosts resolved by SIP stack)
+    public final HostResolver hostResolver;
+    // Call-IDs and tags of the broker
+    public final IdGenerator idGenerator;
+    // INVITEs accepted by the listener, null if the listener retransmission filter is disabled
+    public final RetransmissionFilter retransmissionFilter;
+    // time (ms) the session teardown waits for the legs to acknowledge CANCEL/BYE, 0 means no deadline
+    public final int teardownTimeout;
 
+    // constant headers shared by all outgoing messages, never modified once created (the SIP stack only encodes
+    // them), this way no per-message clone is needed
     private final ContactHeader brokerContactHeader;
     private final RouteHeader defaultImScfRouteHeader;
+    private final InviteTemplate inviteTemplate;
+    // transports the compact header names are used over, empty if compact form disabled
+    private final String[] compactHeadersTransports;
     private final ResourceAdaptorContext raContext;
     private SessionManager sessionManager;
     private OrchestrationConfig orchestrationConfig;
+    private BrokerTimer brokerTimer;
 
     /**
      *
@@ -79,25 +110,47 @@ public class SipBrokerContext {
         addressFactory = sipFactory.createAddressFactory();
         headerFactory = sipFactory.createHeaderFactory();
         messageFactory = sipFactory.createMessageFactory();
-        externalServiceProvider = new ExternalServiceProvider(sipProvider);
+        idGenerator = new IdGenerator(brokerConfig.getBrokerHostname());
+        externalServiceProvider = new ExternalServiceProvider(sipProvider, headerFactory, idGenerator);
         internalServiceProvider = new InternalServiceProvider();
         transport = brokerConfig.getTransport();
         outgoingRetransmitTimer = brokerConfig.getRetransmitTimer();
+        outgoingRetransmitTimerMin = brokerConfig.getRetransmitTimerMin();
+        outgoingRetransmitTimerMax = brokerConfig.getRetransmitTimerMax();
+        endpointBackoffDefault = brokerConfig.getEndpointBackoffDefault();
+        endpointBackoffMax = brokerConfig.getEndpointBackoffMax();
+        hostResolver = brokerConfig.getEndpointResolutionTtl() > 0 ?
+                new HostResolver(brokerConfig.getEndpointResolutionTtl(), HostResolver.DEFAULT_LOOKUP,
+                        getUsageParameters(), getLogger(HostResolver.class)) : null;
+        retransmissionFilter = brokerConfig.getInviteRetransmissionWindow() > 0 ?
+                new RetransmissionFilter(brokerConfig.getInviteRetransmissionWindow()) : null;
+        teardownTimeout = brokerConfig.getTeardownTimeout();
 
         defaultImScfRouteHeader = MessageUtils.createImScfRouteHeader(headerFactory, addressFactory,
                 brokerConfig.getImScfHost(), brokerConfig.getImScfPort());
 
         brokerContactHeader = MessageUtils.createBrokerContactHeader(headerFactory, addressFactory,
                 brokerConfig.getBrokerHostname(), transport, sipProvider.getListeningPoint(transport).getPort());
+        inviteTemplate = new InviteTemplate(messageFactory, headerFactory, brokerContactHeader);
+        String transports = brokerConfig.getCompactHeadersTransports();
+        compactHeadersTransports = transports == null || transports.trim().isEmpty() ? new String[0] :
+                transports.trim().split("\\s*,\\s*");
 
     }
 
     /**
-     * Updates broker orchestration config
+     * Updates broker orchestration config, the endpoints runtime settings are taken over from the previous one
+     * and the endpoints hosts are resolved
      *
      * @param orchestrationConfig - the new orchestration config/rulesets to apply
      */
     public void updateConfig(OrchestrationConfig orchestrationConfig) {
+        if (hostResolver != null) {
+            hostResolver.register(orchestrationConfig.getServices());
+        }
+        if (this.orchestrationConfig != null) {
+            orchestrationConfig.inheritEndpointSettings(this.orchestrationConfig);
+        }
         this.orchestrationConfig = orchestrationConfig;
     }
 
@@ -108,10 +161,71 @@ public class SipBrokerContext {
         return orchestrationConfig;
     }
 
+    /**
+     * @return IM-SCF pool or null if not configured (default IM-SCF Route used)
+     */
+    public OrchestratedService getImScfPool() {
+        return orchestrationConfig != null ? orchestrationConfig.getImScfPool() : null;
+    }
+
+    public boolean isAdaptiveRetransmitTimer() {
+        return outgoingRetransmitTimerMax > 0;
+    }
+
+    /**
+     * Returns SIP retransmission timer (T1) for requests towards given endpoint.
+     * If adaptive timer is enabled it is taken from the endpoint round-trip time estimate.
+     *
+     * @param endpoint - the request destination
+     */
+    public int getRetransmitTimer(Endpoint endpoint) {
+        if (!isAdaptiveRetransmitTimer()) {
+            return outgoingRetransmitTimer;
+        }
+        return endpoint.getRttEstimator().getRetransmitTimer(outgoingRetransmitTimer, outgoingRetransmitTimerMin,
+                outgoingRetransmitTimerMax);
+    }
+
     public String getTransport() {
         return transport;
     }
 
+    /**
+     * Prepares the message to be sent to an external service: switches the headers to the compact form
+     * if enabled for the destination transport and service, collects the outgoing message size statistics.
+     * The size is measured by encoding the message, so only a random sample of the messages is measured.
+     *
+     * @param message  - message to send
+     * @param service  - destination service, null if not known (default IM-SCF)
+     * @param endpoint - destination endpoint, null if not known (default IM-SCF)
+     */
+    public void prepareOutgoingMessage(Message message, OrchestratedService service, Endpoint endpoint) {
+        if (service != null && !service.isExternal()) {
+            // internal services get the message object, nothing is encoded
+            return;
+        }
+        SipBrokerUsageParameters usageParameters = getUsageParameters();
+        String destinationTransport = endpoint != null && endpoint.getTransport() != null ?
+                endpoint.getTransport() : transport;
+        if (service == null || service.isCompactHeaders()) {
+            for (String compactTransport : compactHeadersTransports) {
+                if (compactTransport.equalsIgnoreCase(destinationTransport)) {
+                    usageParameters.incrementCompactHeadersSavedBytes(CompactHeaders.compact(message));
+                    break;
+                }
+            }
+        }
+
+        if (ThreadLocalRandom.current().nextInt(MESSAGE_SIZE_SAMPLING) != 0) {
+            return;
+        }
+        int size = MessageUtils.getEncodedSize(message);
+        usageParameters.sampleOutgoingMessageSize(size);
+        if (endpoint != null) {
+            endpoint.getMessageSizes().add(size);
+        }
+    }
+
     /**
      * Returns Tracer instance named by classname.
      */
@@ -123,12 +237,26 @@ public class SipBrokerContext {
         return new SipBrokerLogger(getTracer(clazz), null);
     }
 
+    /**
+     * Returns broker Contact header. This is a shared instance, it must not be modified - clone it first if needed.
+     */
     public ContactHeader getBrokerContactHeader() {
-        return (ContactHeader) brokerContactHeader.clone();
+        return brokerContactHeader;
     }
 
+    /**
+     * Returns template of the INVITEs sent to the next hop of the chain
+     */
+    public InviteTemplate getInviteTemplate() {
+        return inviteTemplate;
+    }
+
+    /**
+     * Returns default IM-SCF Route header. This is a shared instance, it must not be modified - clone it first
+     * if needed.
+     */
     public RouteHeader getDefaultImScfRouteHeader() {
-        return (RouteHeader) defaultImScfRouteHeader.clone();
+        return defaultImScfRouteHeader;
     }
 
     public SipBrokerUsageParameters getUsageParameters(){
@@ -142,4 +270,12 @@ public class SipBrokerContext {
     public void setSessionManager(SessionManager sessionManager) {
         this.sessionManager = sessionManager;
     }
+
+    public BrokerTimer getBrokerTimer() {
+        return brokerTimer;
+    }
+
+    public void setBrokerTimer(BrokerTimer brokerTimer) {
+        this.brokerTimer = brokerTimer;
+    }
 }
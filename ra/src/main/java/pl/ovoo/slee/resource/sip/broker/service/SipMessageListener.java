@@ -25,27 +25,39 @@ import gov.nist.javax.sip.SipListenerExt;
 import gov.nist.javax.sip.header.CallID;
 import org.slf4j.Logger;
 import pl.ovoo.slee.resource.sip.broker.dispatcher.InternalServiceProvider;
+import pl.ovoo.slee.resource.sip.broker.service.config.InviteFields;
+import pl.ovoo.slee.resource.sip.broker.service.config.OrchestrationConfig;
+import pl.ovoo.slee.resource.sip.broker.service.config.OrchestrationRuleset;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.BrokerTimer;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventKind;
 import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventsQueue;
 import pl.ovoo.slee.resource.sip.broker.service.eventqueue.SessionEventHandler;
 import pl.ovoo.slee.resource.sip.broker.utils.MessageUtils;
 
 import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
+import javax.sip.InvalidArgumentException;
 import javax.sip.RequestEvent;
 import javax.sip.ResponseEvent;
 import javax.sip.ServerTransaction;
+import javax.sip.SipException;
 import javax.sip.TimeoutEvent;
+import javax.sip.TransactionAlreadyExistsException;
 import javax.sip.TransactionTerminatedEvent;
+import javax.sip.TransactionUnavailableException;
 import javax.sip.address.SipURI;
 import javax.sip.address.URI;
 import javax.sip.header.CallIdHeader;
-import javax.sip.header.ExtensionHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.HeaderAddress;
 import javax.sip.header.Parameters;
 import javax.sip.header.RouteHeader;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 import java.text.ParseException;
+import java.util.HashSet;
 import java.util.ListIterator;
+import java.util.Set;
 
 /**
  * SipMessageListener receives all requests and responses from the SIP stack.
@@ -57,8 +69,7 @@ public class SipMessageListener implements SipListenerExt {
     private static final String X_SERVICEKEY = "x-servicekey";
     private static final String ORIG = "orig";
     private static final String TERM = "term";
-    private static final String X_MRF = "x-mrf";
-    private static final String X_ICA = "x-ica";
+    private static final String P_ASSERTED_IDENTITY = "P-Asserted-Identity";
     private Logger logger;
     private SessionManager sessionManager;
     private SipBrokerContext brokerContext;
@@ -85,6 +96,7 @@ public class SipMessageListener implements SipListenerExt {
 
         eventsQueue = new EventsQueue(brokerContext, queueMaxSize, queueInitialThreads,
                                         queueMaxThreads, queueThreadKeepAlive);
+        brokerContext.setBrokerTimer(new BrokerTimer(brokerContext, eventsQueue));
     }
 
 
@@ -94,23 +106,24 @@ public class SipMessageListener implements SipListenerExt {
         Request request = requestEvent.getRequest();
         logger.debug("Enter processRequest:\n{}", request);
 
-        if (request.getMethod().equals(Request.INVITE)) {
-            processInvite(requestEvent);
-
-        } else {
-            // non-INVITE requests
-            if (request.getMethod().equals(Request.OPTIONS)) {
+        // the only classification of the request, the kind is carried with the event to the session
+        EventKind kind = EventKind.forRequest(request);
+        switch (kind) {
+            case AUX_INVITE:
+            case INITIAL_INVITE:
+            case REINVITE:
+                processInvite(requestEvent, kind);
+                break;
+            case OPTIONS:
                 processOptionsRequest(requestEvent);
-
-            } else {
-                processCommonDialogRequest(requestEvent);
-
-            }
+                break;
+            default:
+                processCommonDialogRequest(requestEvent, kind);
         }
         logger.trace("exit processRequest");
     }
 
-    private void processCommonDialogRequest(RequestEvent requestEvent) {
+    private void processCommonDialogRequest(RequestEvent requestEvent, EventKind kind) {
         // request other than INVITE or OPTIONS, find session handler from dialog data
         HandlerReferenceWrapper wrapper = (HandlerReferenceWrapper) requestEvent.getDialog().getApplicationData();
         SessionEventHandler sessionHandler = wrapper.getSessionHandler();
@@ -120,10 +133,97 @@ public class SipMessageListener implements SipListenerExt {
 
         } else {
             logger.debug("Found session for this request, continue processing");
-            eventsQueue.enqueueEvent(requestEvent, sessionHandler);
+            if ((kind == EventKind.INFO || kind == EventKind.UPDATE) && isRelayed(requestEvent, wrapper)) {
+                kind = EventKind.RELAYED_REQUEST;
+            }
+            eventsQueue.enqueueEvent(requestEvent, kind, sessionHandler);
         }
     }
 
+    private boolean isRelayed(RequestEvent requestEvent, HandlerReferenceWrapper wrapper) {
+        B2BDialogsHandler dialogHandler = wrapper.getDialogHandler();
+        return dialogHandler != null && dialogHandler.getDialogRelay(requestEvent.getDialog()) != null;
+    }
+
+    private void processInvite(RequestEvent requestEvent, EventKind kind) {
+        // the filter is checked ahead of the session and ruleset lookup. Re-INVITEs and auxiliary INVITEs are
+        // remembered for the filter window. Initial INVITEs only until the server transaction is created
+        // in acceptInitialInvite, which absorbs the later retransmissions.
+        RetransmissionFilter filter = brokerContext.retransmissionFilter;
+        String inviteKey = null;
+        if (filter != null) {
+            inviteKey = RetransmissionFilter.getKey(requestEvent.getRequest());
+            brokerContext.getUsageParameters().incrementRetransmissionFilterLookupsCount(1);
+            if (!filter.addIfAbsent(inviteKey)) {
+                logger.debug("Retransmission of already accepted INVITE, dropping");
+                brokerContext.getUsageParameters().incrementRetransmissionFilterHitsCount(1);
+                return;
+            }
+        }
+
+        boolean accepted;
+        if (kind == EventKind.AUX_INVITE) {
+            accepted = processAuxiliarySession(requestEvent);
+        } else {
+            accepted = processOrchestratedInvite(requestEvent, kind);
+        }
+
+        if (filter != null && (!accepted || kind == EventKind.INITIAL_INVITE)) {
+            // rejected INVITEs are forgotten, their retransmissions get the error response again
+            filter.remove(inviteKey);
+        }
+    }
+
+    private boolean processOrchestratedInvite(RequestEvent requestEvent, EventKind kind) {
+        try {
+            return processOrchestratedSession(requestEvent, kind);
+        } catch (ParseException e) {
+            logger.debug("Not possible to create orchestrated session", e);
+            sendImmediateErrorResponse(Response.BAD_REQUEST, requestEvent, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Creates the server transaction and sends 100 Trying for the initial INVITE before it is enqueued.
+     * This way the INVITE retransmissions are absorbed by the transaction and do not reach the listener
+     * while the INVITE waits for the session worker. Called only for the INVITEs passed to a session,
+     * the rejected ones are answered statelessly.
+     *
+     * @param requestEvent - initial INVITE event
+     *
+     * @return event carrying the server transaction, or null if this is a retransmission to be dropped
+     */
+    private RequestEvent acceptInitialInvite(RequestEvent requestEvent) {
+        if (requestEvent.getServerTransaction() != null || requestEvent.getSource() instanceof InternalServiceProvider) {
+            return requestEvent;
+        }
+
+        Request request = requestEvent.getRequest();
+        ServerTransaction serverTransaction;
+        try {
+            serverTransaction = brokerContext.externalServiceProvider.getNewServerTransaction(request);
+        } catch (TransactionAlreadyExistsException e) {
+            logger.debug("INVITE retransmission absorbed by its server transaction");
+            brokerContext.getUsageParameters().incrementAbsorbedInviteRetransmissionsCount(1);
+            return null;
+        } catch (TransactionUnavailableException e) {
+            // leave it to the session, it will retry and handle the error
+            logger.warn("Unable to create server transaction for INVITE: {}", e.getMessage());
+            return requestEvent;
+        }
+
+        try {
+            Response trying = brokerContext.messageFactory.createResponse(Response.TRYING, request);
+            serverTransaction.sendResponse(trying);
+            logger.debug("Send provisional response:\n{}", trying);
+        } catch (SipException | ParseException | InvalidArgumentException e) {
+            // not possible to send provisional response, no panic yet
+            logger.warn("Unable to send Trying response", e);
+        }
+        return new RequestEvent(requestEvent.getSource(), serverTransaction, serverTransaction.getDialog(), request);
+    }
+
     private void processOptionsRequest(RequestEvent requestEvent) {
         logger.debug("SIP OPTIONS request, instantiate ping session.");
 
@@ -141,72 +241,62 @@ public class SipMessageListener implements SipListenerExt {
         }
 
         pingSession = sessionManager.createPingSession(optionsSipUri);
-        eventsQueue.enqueueEvent(requestEvent, pingSession);
+        eventsQueue.enqueueEvent(requestEvent, EventKind.OPTIONS, pingSession);
         brokerContext.getUsageParameters().incrementPingSessionsStarted(1);
     }
 
 
-    private void processInvite(RequestEvent requestEvent) {
-        if (isAuxiliarySession(requestEvent)) {
-            processAuxiliarySession(requestEvent);
-        } else {
-            try {
-                processOrchestratedSession(requestEvent);
-            } catch (ParseException e) {
-                logger.debug("Not possible to create orchestrated session", e);
-                sendImmediateErrorResponse(Response.BAD_REQUEST, requestEvent, e.getMessage());
-            }
-        }
-    }
-
-    /**
-     * Checks if this is an auxiliary session.
-     * Auxiliary session contains special header that indicates no orchestration for this INVITE.
-     *
-     * @param requestEvent - request event
-     *
-     * @return true if this is auxiliary session
-     */
-    private boolean isAuxiliarySession(RequestEvent requestEvent){
-        boolean auxiliarySessionHeaderPresent = false;
-        ExtensionHeader xMrf = (ExtensionHeader) requestEvent.getRequest().getHeader(X_MRF);
-        if (xMrf != null && "true" .equals(xMrf.getValue())) {
-            auxiliarySessionHeaderPresent = true;
-        } else {
-            ExtensionHeader xIca = (ExtensionHeader) requestEvent.getRequest().getHeader(X_ICA);
-            if (xIca != null && "true" .equals(xIca.getValue())) {
-                auxiliarySessionHeaderPresent = true;
-            }
-        }
-
-        return auxiliarySessionHeaderPresent;
-    }
-
     /**
      * This process auxiliary session event, it fetch or create new session
      *
      * @param event - Request event
+     * @param kind  - INVITE kind
+     *
+     * @return true if the INVITE was passed to the session
      *
      * @throws ParseException when not possible to parse the request orchestration data
      */
-    private void processOrchestratedSession(RequestEvent event) throws ParseException {
+    private boolean processOrchestratedSession(RequestEvent event, EventKind kind) throws ParseException {
         String pOdid = MessageUtils.getCreateOriginalDialogId(event.getRequest(), brokerContext.headerFactory);
         SessionEventHandler orchestratedSession = sessionManager.findSession(pOdid);
+        OrchestratedHeaderInfo info = null;
+        OrchestrationRuleset ruleset = null;
         if (orchestratedSession == null) {
-            OrchestratedHeaderInfo info = readHeaderInfo(event.getRequest(), pOdid);
-            orchestratedSession = sessionManager.createOrchestratedSession(info);
+            info = readHeaderInfo(event.getRequest(), pOdid);
+            OrchestrationConfig config = brokerContext.getOrchestrationConfig();
+            ruleset = config.getRulesForKey(info.getServicekey(),
+                    readInviteFields(event.getRequest(), info, config.getConditionHeaders()));
+            if (ruleset == null) {
+                logger.debug("No orchestration ruleset for servicekey: {}", info.getServicekey());
+                brokerContext.getUsageParameters().incrementUnknownServiceKeysCount(1);
+                sendImmediateErrorResponse(Response.NOT_FOUND, event, "Unknown servicekey");
+                return false;
+            }
         } else {
             logger.debug("Found session for this request, continue processing");
         }
-        eventsQueue.enqueueEvent(event, orchestratedSession);
+
+        if (kind == EventKind.INITIAL_INVITE) {
+            event = acceptInitialInvite(event);
+            if (event == null) {
+                return false;
+            }
+        }
+        if (orchestratedSession == null) {
+            orchestratedSession = sessionManager.createOrchestratedSession(info, ruleset);
+        }
+        eventsQueue.enqueueEvent(event, kind, orchestratedSession);
+        return true;
     }
 
     /**
      * This process auxiliary session event, it fetch or create new session
      *
      * @param event - Request event
+     *
+     * @return true if the INVITE was passed to the new session
      */
-    private void processAuxiliarySession(RequestEvent event) {
+    private boolean processAuxiliarySession(RequestEvent event) {
         // this is a special INVITE from AS, handle auxiliary session
         logger.debug("Found special headers, processing auxiliary session");
 
@@ -215,15 +305,16 @@ public class SipMessageListener implements SipListenerExt {
         if (auxSession != null) {
             // retransmission, dropping
             logger.trace("Session already handled for callId: {}", callId);
-            return;
+            return false;
         }
 
         SessionEventHandler auxiliarySession = sessionManager.createAuxiliarySession(callId);
-        eventsQueue.enqueueEvent(event, auxiliarySession);
+        eventsQueue.enqueueEvent(event, EventKind.AUX_INVITE, auxiliarySession);
         brokerContext.getUsageParameters().incrementAuxSessionsCount(1);
         brokerContext.getUsageParameters().incrementRunningAuxSessionsCount(1);
 
         logger.debug("Auxiliary session event enqueued");
+        return true;
     }
 
 
@@ -239,6 +330,11 @@ public class SipMessageListener implements SipListenerExt {
         // find session handler from client transaction
         ClientTransaction ctx = responseEvent.getClientTransaction();
         HandlerReferenceWrapper wrapper = (HandlerReferenceWrapper) ctx.getApplicationData();
+        if (wrapper instanceof DialogRelay.RelayedTransaction) {
+            // response to the relayed request, no session state involved
+            ((DialogRelay.RelayedTransaction) wrapper).forwardResponse(responseEvent.getResponse());
+            return;
+        }
         SessionEventHandler sessionEventHandler = wrapper.getSessionHandler();
         if (sessionEventHandler == null) {
             logger.debug("Unexpected response, no handler found, no session, discarding it");
@@ -247,7 +343,8 @@ public class SipMessageListener implements SipListenerExt {
             logger.debug("Found session handler: {}", sessionEventHandler);
         }
 
-        eventsQueue.enqueueEvent(responseEvent, sessionEventHandler);
+        eventsQueue.enqueueEvent(responseEvent, EventKind.forResponse(responseEvent.getResponse()),
+                sessionEventHandler);
     }
 
 
@@ -268,11 +365,14 @@ public class SipMessageListener implements SipListenerExt {
         if (appData == null) {
             logger.trace("Unexpected response, no handler found, no session, discarding event");
             return;
+        } else if (appData instanceof DialogRelay.RelayedTransaction) {
+            ((DialogRelay.RelayedTransaction) appData).respondTimeout();
+            return;
         }
 
         SessionEventHandler sessionEventHandler = ((HandlerReferenceWrapper) appData).getSessionHandler();
         logger.debug("Found session handler: {}", sessionEventHandler);
-        eventsQueue.enqueueEvent(timeoutEvent, sessionEventHandler);
+        eventsQueue.enqueueEvent(timeoutEvent, EventKind.TIMEOUT, sessionEventHandler);
     }
 
    /**
@@ -291,7 +391,7 @@ public class SipMessageListener implements SipListenerExt {
         HandlerReferenceWrapper wrapper = (HandlerReferenceWrapper) dialog.getApplicationData();
         SessionEventHandler sessionHandler = wrapper.getSessionHandler();
 
-        eventsQueue.enqueueEvent(dialogTimeoutEvent, sessionHandler);
+        eventsQueue.enqueueEvent(dialogTimeoutEvent, EventKind.DIALOG_TIMEOUT, sessionHandler);
     }
 
     public void processIOException(javax.sip.IOExceptionEvent ioExceptionEvent) {
@@ -318,7 +418,7 @@ public class SipMessageListener implements SipListenerExt {
         HandlerReferenceWrapper wrapper = (HandlerReferenceWrapper) dialog.getApplicationData();
         SessionEventHandler sessionHandler = wrapper.getSessionHandler();
 
-        eventsQueue.enqueueEvent(dialogTerminatedEvent, sessionHandler);
+        eventsQueue.enqueueEvent(dialogTerminatedEvent, EventKind.DIALOG_TERMINATED, sessionHandler);
     }
     // End SipListenerExt methods implementation
     ////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -353,12 +453,47 @@ public class SipMessageListener implements SipListenerExt {
 
                 boolean isOrig = origString != null;
 
-                return new OrchestratedHeaderInfo(pOdid, serviceKey, isOrig);
+                return new OrchestratedHeaderInfo(pOdid, serviceKey, isOrig, readCallingUser(request),
+                        MessageUtils.getUserPart(request.getRequestURI()));
             }
         }
         throw new ParseException("Missing orchestration data in request", 0);
     }
 
+    /*
+     * Extracts the INVITE fields the orchestration rulesets conditions are evaluated on
+     */
+    private InviteFields readInviteFields(Request request, OrchestratedHeaderInfo info, Set<String> conditionHeaders) {
+        URI requestUri = request.getRequestURI();
+        String domain = requestUri instanceof SipURI ? ((SipURI) requestUri).getHost() : null;
+
+        Set<String> presentHeaders = null;
+        if (!conditionHeaders.isEmpty()) {
+            presentHeaders = new HashSet<>();
+            for (String header : conditionHeaders) {
+                if (request.getHeader(header) != null) {
+                    presentHeaders.add(header);
+                }
+            }
+        }
+        return new InviteFields(info.isOriginating(), domain, info.getCalledUser(), presentHeaders);
+    }
+
+    /*
+     * Reads the calling party user from P-Asserted-Identity or From header if the former is not present
+     */
+    private String readCallingUser(Request request) {
+        HeaderAddress assertedIdentity = (HeaderAddress) request.getHeader(P_ASSERTED_IDENTITY);
+        if (assertedIdentity != null) {
+            String user = MessageUtils.getUserPart(assertedIdentity.getAddress().getURI());
+            if (user != null) {
+                return user;
+            }
+        }
+        FromHeader from = (FromHeader) request.getHeader(FromHeader.NAME);
+        return from != null ? MessageUtils.getUserPart(from.getAddress().getURI()) : null;
+    }
+
 
     private void sendImmediateErrorResponse(int statusCode, RequestEvent requestEvent, String reason) {
         try {
@@ -366,7 +501,10 @@ public class SipMessageListener implements SipListenerExt {
             if(reason != null){
                 response.setReasonPhrase(reason);
             }
-            if(requestEvent.getSource() instanceof InternalServiceProvider){
+            if(requestEvent.getServerTransaction() != null){
+                // INVITE already accepted by the listener
+                requestEvent.getServerTransaction().sendResponse(response);
+            } else if(requestEvent.getSource() instanceof InternalServiceProvider){
                 brokerContext.internalServiceProvider.sendResponse(response);
             } else {
                 brokerContext.externalServiceProvider.sendResponse(response);
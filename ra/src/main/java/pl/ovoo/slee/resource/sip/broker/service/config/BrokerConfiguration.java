@@ -30,6 +30,14 @@ public class BrokerConfiguration {
     private String imScfHost;
     private int imScfPort;
     private int retransmitTimer;
+    private int retransmitTimerMin;
+    private int retransmitTimerMax;
+    private int endpointBackoffDefault;
+    private int endpointBackoffMax;
+    private int endpointResolutionTtl;
+    private String compactHeadersTransports;
+    private int inviteRetransmissionWindow;
+    private int teardownTimeout;
 
     public String getTransport() {
         return transport;
@@ -78,4 +86,68 @@ public class BrokerConfiguration {
     public void setRetransmitTimer(int retransmitTimer) {
         this.retransmitTimer = retransmitTimer;
     }
+
+    public int getRetransmitTimerMin() {
+        return retransmitTimerMin;
+    }
+
+    public void setRetransmitTimerMin(int retransmitTimerMin) {
+        this.retransmitTimerMin = retransmitTimerMin;
+    }
+
+    public int getRetransmitTimerMax() {
+        return retransmitTimerMax;
+    }
+
+    public void setRetransmitTimerMax(int retransmitTimerMax) {
+        this.retransmitTimerMax = retransmitTimerMax;
+    }
+
+    public int getEndpointBackoffDefault() {
+        return endpointBackoffDefault;
+    }
+
+    public void setEndpointBackoffDefault(int endpointBackoffDefault) {
+        this.endpointBackoffDefault = endpointBackoffDefault;
+    }
+
+    public int getEndpointBackoffMax() {
+        return endpointBackoffMax;
+    }
+
+    public void setEndpointBackoffMax(int endpointBackoffMax) {
+        this.endpointBackoffMax = endpointBackoffMax;
+    }
+
+    public int getEndpointResolutionTtl() {
+        return endpointResolutionTtl;
+    }
+
+    public void setEndpointResolutionTtl(int endpointResolutionTtl) {
+        this.endpointResolutionTtl = endpointResolutionTtl;
+    }
+
+    public String getCompactHeadersTransports() {
+        return compactHeadersTransports;
+    }
+
+    public void setCompactHeadersTransports(String compactHeadersTransports) {
+        this.compactHeadersTransports = compactHeadersTransports;
+    }
+
+    public int getInviteRetransmissionWindow() {
+        return inviteRetransmissionWindow;
+    }
+
+    public void setInviteRetransmissionWindow(int inviteRetransmissionWindow) {
+        this.inviteRetransmissionWindow = inviteRetransmissionWindow;
+    }
+
+    public int getTeardownTimeout() {
+        return teardownTimeout;
+    }
+
+    public void setTeardownTimeout(int teardownTimeout) {
+        this.teardownTimeout = teardownTimeout;
+    }
 }
@@ -0,0 +1,117 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring of the service endpoints.
+ * Each endpoint is placed on the ring as a number of virtual nodes (proportional to the endpoint weight),
+ * so that the keys are spread evenly and only the share of an unavailable endpoint is remapped
+ * (to the following nodes on the ring).
+ */
+public class ConsistentHashRing {
+
+    // virtual nodes per endpoint weight unit
+    public static final int VIRTUAL_NODES = 100;
+
+    private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final NavigableMap<Integer, Endpoint> ring = new TreeMap<>();
+
+    /**
+     * Places the endpoint's virtual nodes on the ring.
+     *
+     * @param endpoint - endpoint to add
+     */
+    public synchronized void addEndpoint(Endpoint endpoint) {
+        int nodes = VIRTUAL_NODES * endpoint.getWeight();
+        for (int i = 0; i < nodes; i++) {
+            ring.put(hash(endpoint.getUriString() + "#" + i), endpoint);
+        }
+    }
+
+    /**
+     * Replaces the ring content (after endpoint weights change)
+     *
+     * @param endpoints - endpoints to place on the ring
+     */
+    public synchronized void rebuild(Collection<Endpoint> endpoints) {
+        ring.clear();
+        for (Endpoint endpoint : endpoints) {
+            addEndpoint(endpoint);
+        }
+    }
+
+    /**
+     * Returns the endpoint owning the key, i.e. the first endpoint found clockwise from the key hash that is
+     * in rotation, not excluded and not backed off.
+     *
+     * @param key      - affinity key (subscriber identity)
+     * @param excluded - endpoints not to be selected, might be null
+     *
+     * @return selected endpoint or null if none available
+     */
+    public synchronized Endpoint select(String key, Collection<Endpoint> excluded) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        int keyHash = hash(key);
+        for (Endpoint endpoint : ring.tailMap(keyHash, true).values()) {
+            if (isAvailable(endpoint, excluded)) {
+                return endpoint;
+            }
+        }
+        // wrap around the ring
+        for (Map.Entry<Integer, Endpoint> entry : ring.headMap(keyHash, false).entrySet()) {
+            if (isAvailable(entry.getValue(), excluded)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAvailable(Endpoint endpoint, Collection<Endpoint> excluded) {
+        return endpoint.isSelectable() && (excluded == null || !excluded.contains(endpoint));
+    }
+
+    /*
+     * 32-bit FNV-1a hash of the UTF-8 encoded string, followed by the MurmurHash3 finalizer
+     * to spread the similar virtual node names evenly over the ring
+     */
+    static int hash(String value) {
+        int hash = FNV_OFFSET_BASIS;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
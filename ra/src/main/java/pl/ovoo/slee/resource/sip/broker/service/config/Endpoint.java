@@ -25,15 +25,60 @@ import javax.sip.address.SipURI;
 import javax.sip.header.HeaderFactory;
 import javax.sip.header.RouteHeader;
 import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Endpoint represents the physical uri of the orchestrated application.
  */
 public class Endpoint {
+
+    /**
+     * Administrative state of the endpoint (managed at runtime, see EndpointManagementMBean)
+     */
+    public enum AdminState {
+        ENABLED,
+        // not selected for new sessions, sessions already using the endpoint continue
+        DRAINING,
+        // not selected at all, no INVITE is sent to the endpoint
+        DISABLED
+    }
+
+    public static final int DEFAULT_WEIGHT = 1;
+    public static final int MAX_WEIGHT = 100;
+
+    // limits the default backoff time escalation to 2^6 times
+    private static final int MAX_BACKOFF_LEVEL = 6;
+
     private final Address endpointAddress;
     private final String asAlias;
     private final String uri;
     private final RouteHeader routeHeader;
+    // transport parameter of the uri, null if not given (broker transport used)
+    private final String transport;
+    // address and Route header with the host replaced by the resolved IP address (HostResolver)
+    private volatile Address resolvedAddress;
+    private volatile RouteHeader resolvedRouteHeader;
+    private volatile String resolvedHost;
+    private final RttEstimator rttEstimator = new RttEstimator();
+    // limiter of INVITEs in flight, null if not limited
+    private InviteLimiter inviteLimiter;
+    // time until which the endpoint is backed off (not selected) after 503 response
+    private volatile long backoffUntil;
+    // number of backoffs not decayed by successful responses yet, escalates the default backoff time
+    private int backoffLevel;
+    // traffic statistics: INVITEs sent and failed (timed out or rejected with 503)
+    private final AtomicLong invitesCount = new AtomicLong();
+    private final AtomicLong failuresCount = new AtomicLong();
+    private final RateMeter invitesRate = new RateMeter();
+    private final RateMeter failuresRate = new RateMeter();
+    // sizes of the messages sent to this endpoint
+    private final MessageSizeHistogram messageSizes = new MessageSizeHistogram();
+    // sessions whose INVITE towards this service has been sent to this endpoint and are not finished yet
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private volatile AdminState adminState = AdminState.ENABLED;
+    // relative share of the new sessions, 0 means no new sessions (changed by OrchestratedService only)
+    private volatile int weight = DEFAULT_WEIGHT;
 
     public Endpoint(String uri, String asAlias, AddressFactory addressFactory, HeaderFactory headerFactory)
             throws ParseException {
@@ -43,6 +88,9 @@ public class Endpoint {
         // clone the address to apply LR param (only in Route header)
         routeHeader = headerFactory.createRouteHeader((Address) endpointAddress.clone());
         ((SipURI) routeHeader.getAddress().getURI()).setLrParam();
+        transport = ((SipURI) routeHeader.getAddress().getURI()).getTransportParam();
+        resolvedAddress = endpointAddress;
+        resolvedRouteHeader = routeHeader;
     }
 
     public String getAsAlias() {
@@ -53,13 +101,227 @@ public class Endpoint {
         return uri;
     }
 
+    /**
+     * Returns Route header of this endpoint, with the resolved IP address if available
+     */
     public RouteHeader getRouteHeader() {
-        return routeHeader;
+        return resolvedRouteHeader;
+    }
+
+    /**
+     * Returns transport parameter of the endpoint uri, null if not given
+     */
+    public String getTransport() {
+        return transport;
+    }
+
+    /**
+     * Returns host of the endpoint uri as configured
+     */
+    public String getHost() {
+        return ((SipURI) endpointAddress.getURI()).getHost();
+    }
+
+    /**
+     * Returns IP address the endpoint host is resolved to, null if not resolved (host resolved by SIP stack)
+     */
+    public String getResolvedHost() {
+        return resolvedHost;
+    }
+
+    /**
+     * Replaces the endpoint host with the resolved IP address in the addresses used for sending
+     *
+     * @param ipAddress - resolved IP address of the host
+     *
+     * @throws ParseException if the address is not valid host
+     */
+    public void setResolvedHost(String ipAddress) throws ParseException {
+        if (ipAddress.equals(resolvedHost)) {
+            return;
+        }
+        Address address = (Address) endpointAddress.clone();
+        ((SipURI) address.getURI()).setHost(ipAddress);
+        RouteHeader route = (RouteHeader) routeHeader.clone();
+        ((SipURI) route.getAddress().getURI()).setHost(ipAddress);
+        resolvedAddress = address;
+        resolvedRouteHeader = route;
+        resolvedHost = ipAddress;
+    }
+
+    /**
+     * Returns round-trip time estimator of this endpoint (adaptive retransmission timer)
+     */
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    public InviteLimiter getInviteLimiter() {
+        return inviteLimiter;
+    }
+
+    public void setInviteLimiter(InviteLimiter inviteLimiter) {
+        this.inviteLimiter = inviteLimiter;
+    }
+
+    /**
+     * Acquires permit to send INVITE to this endpoint
+     *
+     * @return true if INVITE might be sent, false if the endpoint INVITE limit is reached
+     */
+    public boolean tryAcquireInvite() {
+        return inviteLimiter == null || inviteLimiter.tryAcquire();
+    }
+
+    /**
+     * Releases permit acquired by tryAcquireInvite
+     *
+     * @param latency - time in milliseconds from INVITE sending to the response, -1 if not to be sampled
+     */
+    public void releaseInvite(long latency) {
+        if (inviteLimiter != null) {
+            inviteLimiter.release(latency);
+        }
+    }
+
+    /**
+     * Backs off this endpoint after 503 (Service Unavailable) response.
+     * Without Retry-After the default backoff time is doubled with every backoff not decayed yet.
+     *
+     * @param retryAfter     - Retry-After time in milliseconds, -1 if not present in the response
+     * @param defaultBackoff - backoff time in milliseconds if no Retry-After
+     * @param maxBackoff     - maximum backoff time in milliseconds
+     *
+     * @return backoff time applied, 0 if not backed off
+     */
+    public synchronized long backoff(long retryAfter, long defaultBackoff, long maxBackoff) {
+        long duration = retryAfter >= 0 ? retryAfter : defaultBackoff << Math.min(backoffLevel, MAX_BACKOFF_LEVEL);
+        duration = Math.min(duration, maxBackoff);
+        if (duration <= 0) {
+            return 0;
+        }
+        backoffLevel++;
+        backoffUntil = Math.max(backoffUntil, System.currentTimeMillis() + duration);
+        return duration;
+    }
+
+    /**
+     * Decays the backoff escalation after successful response
+     */
+    public synchronized void decayBackoff() {
+        if (backoffLevel > 0) {
+            backoffLevel--;
+        }
+    }
+
+    /**
+     * Indicates if the endpoint is backed off, i.e. should not be selected
+     */
+    public boolean isBackedOff() {
+        return backoffUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * Returns remaining backoff time in milliseconds, 0 if not backed off
+     */
+    public long getBackoffRemaining() {
+        return Math.max(0, backoffUntil - System.currentTimeMillis());
+    }
+
+    public synchronized int getBackoffLevel() {
+        return backoffLevel;
+    }
+
+    public AdminState getAdminState() {
+        return adminState;
+    }
+
+    public void setAdminState(AdminState adminState) {
+        this.adminState = adminState;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * Indicates if the endpoint takes new sessions, regardless of the backoff
+     */
+    public boolean isInRotation() {
+        return adminState == AdminState.ENABLED && weight > 0;
+    }
+
+    /**
+     * Indicates if the endpoint might be selected for a new session now
+     */
+    public boolean isSelectable() {
+        return isInRotation() && !isBackedOff();
+    }
+
+    /**
+     * Counts the session using this endpoint
+     */
+    public void bindSession() {
+        activeSessions.incrementAndGet();
+    }
+
+    /**
+     * Releases the session counted by bindSession
+     */
+    public void unbindSession() {
+        activeSessions.decrementAndGet();
+    }
+
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    public void incrementInvitesCount() {
+        invitesCount.incrementAndGet();
+        invitesRate.mark();
+    }
+
+    public long getInvitesCount() {
+        return invitesCount.get();
+    }
+
+    public void incrementFailuresCount() {
+        failuresCount.incrementAndGet();
+        failuresRate.mark();
+    }
+
+    public long getFailuresCount() {
+        return failuresCount.get();
+    }
+
+    /**
+     * Returns INVITEs per second sent to this endpoint within the last RateMeter.WINDOW seconds
+     */
+    public double getInvitesRate() {
+        return invitesRate.getRate();
+    }
+
+    /**
+     * Returns failures per second of this endpoint within the last RateMeter.WINDOW seconds
+     */
+    public double getFailuresRate() {
+        return failuresRate.getRate();
+    }
+
+    /**
+     * Returns histogram of the sizes of the messages sent to this endpoint
+     */
+    public MessageSizeHistogram getMessageSizes() {
+        return messageSizes;
     }
 
     public Address getEndpointAddress() {
         // clone the address, clients might modify the uri by adding parameters, etc
-        return (Address) endpointAddress.clone();
+        return (Address) resolvedAddress.clone();
     }
 
     @Override
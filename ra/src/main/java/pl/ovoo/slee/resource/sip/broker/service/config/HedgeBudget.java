@@ -0,0 +1,78 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.config;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits hedged INVITEs to a percentage of the INVITEs sent to a service (token bucket).
+ * Every INVITE earns a fraction of a token, every hedged INVITE spends a whole token,
+ * so a slow service can not be flooded with hedges when its latency suddenly grows.
+ */
+public class HedgeBudget {
+
+    // tokens are kept in thousandths to earn fractions of a token
+    private static final long TOKEN = 1000;
+    // maximum number of hedges that might be sent in a burst
+    private static final long MAX_TOKENS = 10 * TOKEN;
+
+    private final long tokensPerInvite;
+    private final AtomicLong tokens = new AtomicLong();
+
+    /**
+     * @param percent - percentage of INVITEs that might be hedged
+     */
+    public HedgeBudget(int percent) {
+        tokensPerInvite = percent * TOKEN / 100;
+    }
+
+    /**
+     * Adds the share of a token earned by an INVITE sent to the service.
+     */
+    public void addInvite() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current >= MAX_TOKENS) {
+                return;
+            }
+        } while (!tokens.compareAndSet(current, Math.min(MAX_TOKENS, current + tokensPerInvite)));
+    }
+
+    /**
+     * Spends a token for a hedged INVITE.
+     *
+     * @return true if INVITE might be hedged, false if the budget is exhausted
+     */
+    public boolean tryAcquire() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < TOKEN) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+
+    public int getPercent() {
+        return (int) (tokensPerInvite * 100 / TOKEN);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.config;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Initial INVITE fields the orchestration rulesets conditions are evaluated on.
+ * The fields are extracted once per INVITE, before the ruleset selection.
+ */
+public class InviteFields {
+
+    private final boolean originating;
+    // Request-URI host (lower case), null if not SIP URI
+    private final String requestUriDomain;
+    // Request-URI user or TEL URI number, null if not present
+    private final String requestUriUser;
+    // names (lower case) of the headers referenced by the conditions and present in the INVITE
+    private final Set<String> presentHeaders;
+
+    /**
+     *
+     * @param originating      - indicates if this is originating or terminating case
+     * @param requestUriDomain - Request-URI host, might be null
+     * @param requestUriUser   - Request-URI user, might be null
+     * @param presentHeaders   - lower case names of the headers present in the INVITE, might be null
+     */
+    public InviteFields(boolean originating, String requestUriDomain, String requestUriUser,
+                        Set<String> presentHeaders) {
+        this.originating = originating;
+        this.requestUriDomain = requestUriDomain != null ? requestUriDomain.toLowerCase() : null;
+        this.requestUriUser = requestUriUser;
+        this.presentHeaders = presentHeaders != null ? presentHeaders : Collections.<String>emptySet();
+    }
+
+    public boolean isOriginating() {
+        return originating;
+    }
+
+    public String getRequestUriDomain() {
+        return requestUriDomain;
+    }
+
+    public String getRequestUriUser() {
+        return requestUriUser;
+    }
+
+    public boolean isHeaderPresent(String lowerCaseName) {
+        return presentHeaders.contains(lowerCaseName);
+    }
+
+    @Override
+    public String toString() {
+        return "InviteFields{orig=" + originating + ", domain=" + requestUriDomain + ", user=" + requestUriUser +
+                ", headers=" + presentHeaders + "}";
+    }
+}
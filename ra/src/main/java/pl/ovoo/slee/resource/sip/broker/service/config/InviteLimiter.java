@@ -0,0 +1,136 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.config;
+
+/**
+ * Limits the number of INVITEs in flight towards a single endpoint, i.e. INVITEs sent and not responded yet.
+ * In adaptive mode the limit follows the observed response latency (gradient algorithm):
+ * it is decreased when the short-term latency grows above the long-term one and increased otherwise,
+ * never exceeding the configured limit.
+ */
+public class InviteLimiter {
+
+    /**
+     * Limiter mode
+     */
+    public enum Mode {
+        FIXED,   // configured limit is always applied
+        ADAPTIVE // configured limit is the upper bound of the limit adjusted from latency
+    }
+
+    // long-term latency is averaged over about this number of samples
+    private static final int LONG_WINDOW = 600;
+    // latency growth tolerated before the limit is decreased
+    private static final double TOLERANCE = 1.5;
+    // weight of the new limit estimate
+    private static final double SMOOTHING = 0.2;
+    private static final int MIN_LIMIT = 1;
+
+    private final int maxLimit;
+    private final Mode mode;
+    private double limit;
+    private int inFlight;
+    private double longLatency = -1;
+    private long longSamples;
+
+    /**
+     * @param maxLimit - configured limit of INVITEs in flight
+     * @param mode     - limiter mode
+     */
+    public InviteLimiter(int maxLimit, Mode mode) {
+        this.maxLimit = maxLimit;
+        this.mode = mode;
+        limit = maxLimit;
+    }
+
+    /**
+     * Acquires permit to send INVITE
+     *
+     * @return true if INVITE might be sent, false if the limit is reached
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Releases permit after INVITE is responded, timed out or abandoned
+     *
+     * @param latency - time in milliseconds from INVITE sending to the response, -1 if not to be sampled
+     */
+    public synchronized void release(long latency) {
+        if (inFlight > 0) {
+            inFlight--;
+        }
+        if (mode == Mode.ADAPTIVE && latency >= 0) {
+            adjustLimit(latency);
+        }
+    }
+
+    /*
+     * Gradient of the long-term to short-term latency scales the limit,
+     * the queue allowance (square root of the limit) lets it grow while latency is stable
+     */
+    private void adjustLimit(long latency) {
+        double shortLatency = Math.max(1, latency);
+        if (longLatency < 0) {
+            longLatency = shortLatency;
+            longSamples = 1;
+        } else {
+            longSamples = Math.min(longSamples + 1, LONG_WINDOW);
+            longLatency += (shortLatency - longLatency) / longSamples;
+        }
+
+        if (longLatency / shortLatency > 2) {
+            // recovering from latency spike, long-term latency decays faster
+            longLatency *= 0.95;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / shortLatency));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        if (newLimit > limit && inFlight < limit / 2) {
+            // application limited, the limit is not utilized enough to prove it could be increased
+            return;
+        }
+        limit = Math.max(MIN_LIMIT, Math.min(maxLimit, limit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+    }
+
+    /**
+     * Returns the current limit of INVITEs in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Returns the number of INVITEs in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "InviteLimiter{mode=" + mode + ", limit=" + getLimit() + ", inFlight=" + inFlight + "}";
+    }
+}
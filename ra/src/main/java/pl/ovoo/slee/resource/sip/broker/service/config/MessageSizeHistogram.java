@@ -0,0 +1,57 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.config;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of the outgoing message sizes. The bucket bounds are chosen around the typical UDP payload limits
+ * (1300 bytes as recommended by RFC 3261 section 18.1.1, 1500 bytes Ethernet MTU).
+ */
+public class MessageSizeHistogram {
+
+    // upper bounds (inclusive) of the buckets in bytes, the last bucket counts the larger messages
+    private static final int[] BOUNDS = {512, 1024, 1300, 1500};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+
+    /**
+     * Counts single message
+     *
+     * @param size - message size in bytes
+     */
+    public void add(int size) {
+        int bucket = 0;
+        while (bucket < BOUNDS.length && size > BOUNDS[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int bucket = 0; bucket < BOUNDS.length; bucket++) {
+            builder.append("<=").append(BOUNDS[bucket]).append(':').append(counts.get(bucket)).append(' ');
+        }
+        return builder.append('>').append(BOUNDS[BOUNDS.length - 1]).append(':').append(counts.get(BOUNDS.length))
+                .toString();
+    }
+}
@@ -20,28 +20,78 @@
 package pl.ovoo.slee.resource.sip.broker.service.config;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class represents an orchestrated application/service.
- * It keeps the persistent services data and manages last used endpoint (for round-robin load-balancing).
+ * It keeps the persistent services data and selects the endpoints (smooth weighted round-robin load-balancing
+ * or consistent hashing). Only the endpoints in rotation (enabled, non-zero weight) are selected for new sessions.
  */
 public class OrchestratedService {
 
+    /**
+     * Endpoint selection strategy
+     */
+    public enum EndpointSelection {
+        ROUND_ROBIN,
+        // sticky selection of the endpoint by subscriber identity
+        CONSISTENT_HASH
+    }
+
+    /**
+     * Subscriber identity used as the consistent hashing key
+     */
+    public enum HashKey {
+        // P-Asserted-Identity user or From user if not present
+        CALLING,
+        // Request-URI user
+        CALLED
+    }
+
+    // default percentage of INVITEs that might be hedged
+    public static final int DEFAULT_HEDGE_BUDGET = 5;
+
     private final String alias;
     private final boolean external;
 
     private final List<Endpoint> endpoints;
 
-    // last used endpoint
-    private int lastEndpointIndex;
+    // smooth weighted round-robin state, indexed as the endpoints
+    private int[] currentWeights = new int[0];
+
+    // ring of the endpoints for sticky selection, null if round-robin selection configured
+    private ConsistentHashRing hashRing;
+    private HashKey hashKey = HashKey.CALLING;
+
+    // number of alternative endpoints to try on INVITE timeout/503 before applying the ruleset error logic
+    private int failoverAttempts;
+    // time (ms) from the first INVITE within which alternative endpoints might be tried, 0 means no limit
+    private long failoverDeadline;
+    // time (ms) the service is given to respond to INVITE before it is CANCELled, 0 means no limit
+    private long setupTimeout;
+
+    // hedged INVITE delay is taken as this percentile of the service response latency, null if hedging disabled
+    private ResponseLatencyTracker latencyTracker;
+    // limits the hedged INVITEs to a percentage of the INVITEs sent to this service
+    private HedgeBudget hedgeBudget = new HedgeBudget(DEFAULT_HEDGE_BUDGET);
+
+    // whether the compact header names might be used in the messages sent to this service (if enabled for
+    // the transport, see COMPACT_HEADERS_TRANSPORTS)
+    private boolean compactHeaders = true;
+
+    // intra-service failover statistics
+    private final AtomicLong failoverAttemptsCount = new AtomicLong();
+    private final AtomicLong failoverSuccessCount = new AtomicLong();
 
 
     public OrchestratedService(String alias, boolean external) {
         this.alias = alias;
         this.external = external;
         endpoints = new ArrayList<>();
-        lastEndpointIndex = 0;
     }
 
     /**
@@ -52,23 +102,162 @@ public class OrchestratedService {
      */
     public synchronized void addEndpoint(Endpoint endpoint) {
         endpoints.add(endpoint);
-        lastEndpointIndex = 0; // lets reset pointer, just in case
+        currentWeights = new int[endpoints.size()]; // lets reset weights, just in case
+        if (hashRing != null) {
+            hashRing.addEndpoint(endpoint);
+        }
     }
 
     /**
-     * Returns next endpoint to connect providing round-robin load balancing function.
+     * Sets the endpoint selection strategy. To be called before the endpoints are added.
      *
-     * @return
+     * @param selection - endpoint selection strategy
+     * @param hashKey   - subscriber identity used as the key for consistent hashing
+     */
+    public synchronized void setEndpointSelection(EndpointSelection selection, HashKey hashKey) {
+        this.hashRing = selection == EndpointSelection.CONSISTENT_HASH ? new ConsistentHashRing() : null;
+        this.hashKey = hashKey;
+    }
+
+    public synchronized EndpointSelection getEndpointSelection() {
+        return hashRing != null ? EndpointSelection.CONSISTENT_HASH : EndpointSelection.ROUND_ROBIN;
+    }
+
+    /**
+     * Returns the subscriber identity to be used as the affinity key, null if consistent hashing not configured.
+     */
+    public synchronized HashKey getHashKey() {
+        return hashRing != null ? hashKey : null;
+    }
+
+    /**
+     * Returns next endpoint to connect providing weighted round-robin load balancing function.
+     * Backed off endpoints are skipped unless all the endpoints in rotation are backed off.
+     *
+     * @return next endpoint or null if no endpoint is in rotation
      */
     public synchronized Endpoint nextEndpoint() {
-        Endpoint nextEndpoint = endpoints.get(lastEndpointIndex);
-        if (++lastEndpointIndex == endpoints.size()) {
-            // end of list, reset pointer to the beginning
-            lastEndpointIndex = 0;
+        Endpoint nextEndpoint = nextWeightedEndpoint(null, true);
+        if (nextEndpoint == null) {
+            nextEndpoint = nextWeightedEndpoint(null, false);
         }
         return nextEndpoint;
     }
 
+    /**
+     * Returns next endpoint to connect skipping the endpoints already tried within the session
+     * and the backed off endpoints.
+     *
+     * @param excluded - endpoints not to be selected
+     *
+     * @return next endpoint or null if all the endpoints are excluded or backed off
+     */
+    public synchronized Endpoint nextEndpoint(Collection<Endpoint> excluded) {
+        return nextWeightedEndpoint(excluded, true);
+    }
+
+    /**
+     * Returns endpoint owning the affinity key on the consistent hash ring.
+     * Falls back to round-robin selection if consistent hashing is not configured, the key is unknown
+     * or all the endpoints are backed off.
+     *
+     * @param affinityKey - subscriber identity, might be null
+     *
+     * @return next endpoint or null if no endpoint is in rotation
+     */
+    public synchronized Endpoint nextEndpoint(String affinityKey) {
+        if (hashRing != null && affinityKey != null) {
+            Endpoint endpoint = hashRing.select(affinityKey, null);
+            if (endpoint != null) {
+                return endpoint;
+            }
+        }
+        return nextEndpoint();
+    }
+
+    /**
+     * Returns endpoint owning the affinity key on the consistent hash ring, skipping the excluded and backed off
+     * endpoints. Falls back to round-robin selection if consistent hashing is not configured or the key is unknown.
+     *
+     * @param affinityKey - subscriber identity, might be null
+     * @param excluded    - endpoints not to be selected
+     *
+     * @return next endpoint or null if all the endpoints are excluded or backed off
+     */
+    public synchronized Endpoint nextEndpoint(String affinityKey, Collection<Endpoint> excluded) {
+        if (hashRing != null && affinityKey != null) {
+            return hashRing.select(affinityKey, excluded);
+        }
+        return nextEndpoint(excluded);
+    }
+
+    /*
+     * Smooth weighted round-robin: every candidate's current weight grows by its weight, the candidate with
+     * the highest current weight is selected and its current weight is decreased by the total weight.
+     * With equal weights this is plain round-robin.
+     */
+    private Endpoint nextWeightedEndpoint(Collection<Endpoint> excluded, boolean skipBackedOff) {
+        int totalWeight = 0;
+        int selected = -1;
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint candidate = endpoints.get(i);
+            if (!candidate.isInRotation() || (skipBackedOff && candidate.isBackedOff())
+                    || (excluded != null && excluded.contains(candidate))) {
+                continue;
+            }
+            currentWeights[i] += candidate.getWeight();
+            totalWeight += candidate.getWeight();
+            if (selected < 0 || currentWeights[i] > currentWeights[selected]) {
+                selected = i;
+            }
+        }
+        if (selected < 0) {
+            return null;
+        }
+        currentWeights[selected] -= totalWeight;
+        return endpoints.get(selected);
+    }
+
+    /**
+     * Returns endpoint of the given uri
+     *
+     * @param uri - endpoint uri as configured
+     *
+     * @return endpoint or null if not found
+     */
+    public synchronized Endpoint getEndpoint(String uri) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.getUriString().equals(uri)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Changes weights of the endpoints at once, the selection continues with the new weights only.
+     *
+     * @param weights - new weights of the endpoints of this service
+     */
+    public synchronized void setEndpointWeights(Map<Endpoint, Integer> weights) {
+        for (Map.Entry<Endpoint, Integer> entry : weights.entrySet()) {
+            if (!endpoints.contains(entry.getKey())) {
+                throw new IllegalArgumentException("Endpoint " + entry.getKey() + " does not belong to " + alias);
+            }
+            if (entry.getValue() < 0 || entry.getValue() > Endpoint.MAX_WEIGHT) {
+                throw new IllegalArgumentException("Endpoint weight must be within 0-" + Endpoint.MAX_WEIGHT +
+                        ": " + entry.getValue());
+            }
+        }
+        for (Map.Entry<Endpoint, Integer> entry : weights.entrySet()) {
+            entry.getKey().setWeight(entry.getValue());
+        }
+        Arrays.fill(currentWeights, 0);
+        if (hashRing != null) {
+            hashRing.rebuild(endpoints);
+        }
+    }
+
     /**
      * Returns list of all endpoints for this service.
      *
@@ -85,4 +274,123 @@ public class OrchestratedService {
     public String getAlias() {
         return alias;
     }
+
+    public int getFailoverAttempts() {
+        return failoverAttempts;
+    }
+
+    public void setFailoverAttempts(int failoverAttempts) {
+        this.failoverAttempts = failoverAttempts;
+    }
+
+    public long getFailoverDeadline() {
+        return failoverDeadline;
+    }
+
+    public void setFailoverDeadline(long failoverDeadline) {
+        this.failoverDeadline = failoverDeadline;
+    }
+
+    public long getSetupTimeout() {
+        return setupTimeout;
+    }
+
+    public void setSetupTimeout(long setupTimeout) {
+        this.setupTimeout = setupTimeout;
+    }
+
+    public boolean isCompactHeaders() {
+        return compactHeaders;
+    }
+
+    public void setCompactHeaders(boolean compactHeaders) {
+        this.compactHeaders = compactHeaders;
+    }
+
+    /**
+     * Enables hedged INVITEs for this service.
+     *
+     * @param percentile - response latency percentile used as hedging delay, 0 disables hedging
+     */
+    public void setHedgePercentile(int percentile) {
+        latencyTracker = percentile > 0 ? new ResponseLatencyTracker(percentile) : null;
+    }
+
+    public boolean isHedgingEnabled() {
+        return latencyTracker != null;
+    }
+
+    /**
+     * Sets the hedge budget of this service.
+     *
+     * @param percent - percentage of INVITEs that might be hedged
+     */
+    public void setHedgeBudget(int percent) {
+        hedgeBudget = new HedgeBudget(percent);
+    }
+
+    /**
+     * Records INVITE sent to this service, earning a share of the hedge budget (used only if hedging enabled)
+     */
+    public void addInviteToHedgeBudget() {
+        if (latencyTracker != null) {
+            hedgeBudget.addInvite();
+        }
+    }
+
+    /**
+     * Spends the hedge budget for a hedged INVITE.
+     *
+     * @return true if INVITE might be hedged, false if the hedge budget is exhausted
+     */
+    public boolean tryAcquireHedge() {
+        return hedgeBudget.tryAcquire();
+    }
+
+    /**
+     * Stores response latency sample of this service (used only if hedging enabled)
+     *
+     * @param latency - time in milliseconds from INVITE sending to the first response
+     */
+    public void addResponseLatency(long latency) {
+        if (latencyTracker != null) {
+            latencyTracker.addSample(latency);
+        }
+    }
+
+    /**
+     * Returns the delay after which INVITE should be hedged.
+     *
+     * @return delay in milliseconds or -1 if hedging is disabled or not enough latency samples collected yet
+     */
+    public long getHedgeDelay() {
+        return latencyTracker != null ? latencyTracker.getPercentileValue() : -1;
+    }
+
+    public void incrementFailoverAttemptsCount() {
+        failoverAttemptsCount.incrementAndGet();
+    }
+
+    public long getFailoverAttemptsCount() {
+        return failoverAttemptsCount.get();
+    }
+
+    public void incrementFailoverSuccessCount() {
+        failoverSuccessCount.incrementAndGet();
+    }
+
+    public long getFailoverSuccessCount() {
+        return failoverSuccessCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "OrchestratedService{alias=" + alias + ", external=" + external + ", endpoints=" + endpoints +
+                ", failoverAttempts=" + failoverAttempts + ", failoverDeadline=" + failoverDeadline +
+                ", setupTimeout=" + setupTimeout + ", endpointSelection=" + getEndpointSelection() +
+                (hashRing != null ? ", hashKey=" + hashKey : "") +
+                ", hedgePercentile=" + (latencyTracker != null ? latencyTracker.getPercentile() : 0) +
+                ", hedgeBudget=" + hedgeBudget.getPercent() +
+                ", compactHeaders=" + compactHeaders + "}";
+    }
 }
@@ -20,22 +20,31 @@
 package pl.ovoo.slee.resource.sip.broker.service.config;
 
 import org.slf4j.Logger;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import javax.sip.address.AddressFactory;
 import javax.sip.header.HeaderFactory;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import java.io.File;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
+ * Orchestration configuration (services, IM-SCF pool, orchestration rulesets).
+ * The configuration file is read with a streaming (StAX) parser in a single pass, the services references
+ * of the rulesets are resolved and validated once the whole file is read.
  */
 public class OrchestrationConfig {
 
@@ -43,27 +52,71 @@ public class OrchestrationConfig {
     private static final String ELEM_SERVICES = "services";
     private static final String ELEM_APPLICATION = "application";
     private static final String ELEM_ENDPOINT = "endpoint";
+    private static final String ELEM_IM_SCF_POOL = "im-scf-pool";
     private static final String ELEM_ORCHESTRATION_RULES = "orchestration-rules";
     private static final String ELEM_ORCHESTRATION_RULESET = "orchestration-ruleset";
     private static final String ELEM_SERVICE = "service";
+    private static final String ELEM_PARALLEL_GROUP = "parallel-group";
     private static final String ELEM_ERROR_RESPONSES_TO_SKIP = "error-responses-to-skip-service";
     private static final String ELEM_ERROR_RESPONSES_TO_STOP = "error-responses-to-stop-orchestration";
     private static final String ELEM_RESPONSE_CODE = "response-code";
+    private static final String ELEM_CONDITIONS = "conditions";
+    private static final String ELEM_HEADER_PRESENT = "header-present";
 
     private static final String ATTR_ALIAS = "alias";
     private static final String ATTR_EXTERNAL = "external";
+    private static final String ATTR_FAILOVER_ATTEMPTS = "failoverAttempts";
+    private static final String ATTR_FAILOVER_DEADLINE = "failoverDeadline";
+    private static final String ATTR_HEDGE_PERCENTILE = "hedgePercentile";
+    private static final String ATTR_HEDGE_BUDGET = "hedgeBudget";
+    private static final String ATTR_SETUP_TIMEOUT = "setupTimeout";
+    private static final String ATTR_INVITE_LIMIT = "inviteLimit";
+    private static final String ATTR_INVITE_LIMIT_MODE = "inviteLimitMode";
+    private static final String ATTR_ENDPOINT_SELECTION = "endpointSelection";
+    private static final String ATTR_HASH_KEY = "hashKey";
+    private static final String ATTR_COMPACT_HEADERS = "compactHeaders";
     private static final String ATTR_SERVICE_KEY = "servicekey";
+    private static final String ATTR_SERVICE_KEY_PREFIX = "servicekeyPrefix";
+    private static final String ATTR_SERVICE_KEY_RANGE = "servicekeyRange";
+    private static final String ATTR_DEFAULT = "default";
     private static final String ATTR_DEFAULT_ERROR_HANDLING = "defaultErrorResponseHandling";
+    private static final String ATTR_SESSION_CASE = "sessionCase";
+    private static final String ATTR_REQUEST_URI_DOMAIN = "requestUriDomain";
+    private static final String ATTR_REQUEST_URI_PREFIX = "requestUriPrefix";
+    private static final String ATTR_PRIMARY = "primary";
 
+    private static final String SESSION_CASE_ORIG = "ORIG";
+    private static final String SESSION_CASE_TERM = "TERM";
 
-    // Service keys to orchestration rules map
-    private final Map<String, OrchestrationRuleset> rulesMap = new HashMap<>();
+    // alias of the IM-SCF pool service
+    public static final String IM_SCF_POOL_ALIAS = "IM-SCF";
+
+
+    // Service keys (exact, prefixes, ranges) to orchestration rules index
+    private final ServiceKeyIndex rulesIndex = new ServiceKeyIndex();
+    // lower case names of the headers referenced by the rulesets conditions
+    private final Set<String> conditionHeaders = new HashSet<>();
 
     // Application aliases to ApplicationServie map (contains list of endpoints, statuses, etc)
     private final Map<String, OrchestratedService> applicationServices = new HashMap<>();
 
+    // IM-SCF nodes, null if not configured (IM_SCF_HOST/IM_SCF_PORT used)
+    private OrchestratedService imScfPool;
+
     private final Logger logger;
 
+    // load time only: rules grouped by the servicekey match (in configuration order), rulesets services aliases
+    // and the string pool deduplicating aliases, servicekeys, etc.
+    private Map<String, List<RulesetDecisionTree.Rule>> exactRules;
+    private Map<String, List<RulesetDecisionTree.Rule>> prefixRules;
+    private Map<String, List<RulesetDecisionTree.Rule>> rangeRules;
+    private List<RulesetDecisionTree.Rule> defaultRules;
+    private Map<OrchestrationRuleset, List<String>> rulesetAliases;
+    // primary service alias to the aliases of the services INVITEd in parallel with it, per ruleset
+    private Map<OrchestrationRuleset, Map<String, List<String>>> rulesetParallelAliases;
+    private Map<String, String> stringPool;
+    private int rulesetsCount;
+
     public OrchestrationConfig(Logger logger) {
         this.logger = logger;
     }
@@ -75,144 +128,642 @@ public class OrchestrationConfig {
      * @param headerFactory  - SIP header factory
      */
     public void loadConfig(String configFile, AddressFactory addressFactory, HeaderFactory headerFactory) {
-        try{
-            File inputFile = new File(configFile);
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Element brokerConfig = dBuilder.parse(inputFile).getDocumentElement();
-            brokerConfig.normalize();
-            String nodeName = brokerConfig.getNodeName();
-            if (!ELEM_BROKER_CONFIG.equals(nodeName)) {
-                throw new IllegalArgumentException("Unexpected top element: " + nodeName + " expected " +
-                        ELEM_BROKER_CONFIG);
-            }
-
-            loadServices(brokerConfig, addressFactory, headerFactory);
-            loadOrchestrationRules(brokerConfig);
-        } catch (ParserConfigurationException | IOException | SAXException | ParseException e){
+        long startTime = System.currentTimeMillis();
+        exactRules = new LinkedHashMap<>();
+        prefixRules = new LinkedHashMap<>();
+        rangeRules = new LinkedHashMap<>();
+        defaultRules = new ArrayList<>();
+        rulesetAliases = new LinkedHashMap<>();
+        rulesetParallelAliases = new HashMap<>();
+        stringPool = new HashMap<>();
+
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        try (InputStream input = new BufferedInputStream(new FileInputStream(configFile))) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(input);
+            try {
+                reader.nextTag();
+                if (!ELEM_BROKER_CONFIG.equals(reader.getLocalName())) {
+                    throw new IllegalArgumentException("Unexpected top element: " + reader.getLocalName() +
+                            " expected " + ELEM_BROKER_CONFIG);
+                }
+                readBrokerConfig(reader, addressFactory, headerFactory);
+            } finally {
+                reader.close();
+            }
+
+            resolveRulesetsServices();
+            compileOrchestrationRules();
+        } catch (IOException | XMLStreamException | ParseException e){
             throw new IllegalArgumentException("Unable to load configuration from file", e);
+        } finally {
+            // release load time structures
+            exactRules = null;
+            prefixRules = null;
+            rangeRules = null;
+            defaultRules = null;
+            rulesetAliases = null;
+            rulesetParallelAliases = null;
+            stringPool = null;
         }
+
+        logger.info("Orchestration config loaded in {} ms: {} applications, {} rulesets", new Object[]{
+                System.currentTimeMillis() - startTime, applicationServices.size(), rulesetsCount});
     }
 
     /*
-     * Reads services definitions from the configuration
+     * Reads the top element content
      */
-    private void loadServices(Element brokerConfig, AddressFactory addressFactory, HeaderFactory headerFactory)
-            throws ParseException {
-        NodeList nList = brokerConfig.getElementsByTagName(ELEM_SERVICES);
-        if (nList.getLength() != 1) {
+    private void readBrokerConfig(XMLStreamReader reader, AddressFactory addressFactory, HeaderFactory headerFactory)
+            throws XMLStreamException, ParseException {
+        int servicesCount = 0;
+        int rulesCount = 0;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (ELEM_SERVICES.equals(name)) {
+                servicesCount++;
+                readServices(reader, addressFactory, headerFactory);
+            } else if (ELEM_IM_SCF_POOL.equals(name)) {
+                if (imScfPool != null) {
+                    throw new IllegalArgumentException("Broker config error: single " + ELEM_IM_SCF_POOL +
+                            " expected within " + ELEM_BROKER_CONFIG);
+                }
+                readImScfPool(reader, addressFactory, headerFactory);
+            } else if (ELEM_ORCHESTRATION_RULES.equals(name)) {
+                rulesCount++;
+                readOrchestrationRules(reader);
+            } else {
+                skipElement(reader);
+            }
+        }
+
+        if (servicesCount != 1) {
             throw new IllegalArgumentException("Broker configuration error: wrong number of services in xml");
         }
-        Element servicesElem = (Element) nList.item(0);
-        NodeList servicesList = servicesElem.getElementsByTagName(ELEM_APPLICATION);
+        if (rulesCount != 1) {
+            throw new IllegalArgumentException("Broker config error: single " + ELEM_ORCHESTRATION_RULES +
+                    " expected within " + ELEM_BROKER_CONFIG);
+        }
+    }
+
+    /*
+     * Reads services definitions from the configuration
+     */
+    private void readServices(XMLStreamReader reader, AddressFactory addressFactory, HeaderFactory headerFactory)
+            throws XMLStreamException, ParseException {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (ELEM_APPLICATION.equals(reader.getLocalName())) {
+                readApplication(reader, addressFactory, headerFactory);
+            } else {
+                skipElement(reader);
+            }
+        }
+    }
 
-        for (int i = 0; i < servicesList.getLength(); i++) {
-            Element applicationElem = (Element) servicesList.item(i);
-            OrchestratedService application = new OrchestratedService(applicationElem.getAttribute(ATTR_ALIAS),
-                                        Boolean.valueOf(applicationElem.getAttribute(ATTR_EXTERNAL)));
+    /*
+     * Reads single application definition
+     */
+    private void readApplication(XMLStreamReader reader, AddressFactory addressFactory, HeaderFactory headerFactory)
+            throws XMLStreamException, ParseException {
+        OrchestratedService application = new OrchestratedService(intern(readAttribute(reader, ATTR_ALIAS)),
+                Boolean.valueOf(readAttribute(reader, ATTR_EXTERNAL)));
+        application.setFailoverAttempts(readOptionalNumber(reader, ATTR_FAILOVER_ATTEMPTS));
+        application.setFailoverDeadline(readOptionalNumber(reader, ATTR_FAILOVER_DEADLINE));
+        application.setSetupTimeout(readOptionalNumber(reader, ATTR_SETUP_TIMEOUT));
+        int hedgePercentile = readOptionalNumber(reader, ATTR_HEDGE_PERCENTILE);
+        if (hedgePercentile >= 100) {
+            throw new IllegalArgumentException("Broker config error: " + ATTR_HEDGE_PERCENTILE +
+                    " must be lower than 100 for application " + application.getAlias());
+        }
+        application.setHedgePercentile(hedgePercentile);
+        int hedgeBudget = readOptionalNumber(reader, ATTR_HEDGE_BUDGET);
+        if (hedgeBudget > 100) {
+            throw new IllegalArgumentException("Broker config error: " + ATTR_HEDGE_BUDGET +
+                    " must not be greater than 100 for application " + application.getAlias());
+        }
+        if (hedgeBudget > 0) {
+            application.setHedgeBudget(hedgeBudget);
+        }
+        int inviteLimit = readOptionalNumber(reader, ATTR_INVITE_LIMIT);
+        InviteLimiter.Mode inviteLimitMode = readOptionalEnum(reader, ATTR_INVITE_LIMIT_MODE,
+                InviteLimiter.Mode.class, InviteLimiter.Mode.FIXED);
+        readEndpointSelection(reader, application);
+        application.setCompactHeaders(readOptionalBoolean(reader, ATTR_COMPACT_HEADERS, true));
 
-            NodeList endpoints = applicationElem.getElementsByTagName(ELEM_ENDPOINT);
-            for (int j = 0; j < endpoints.getLength(); j++) {
-                Element endpointElement = (Element) endpoints.item(j);
-                String endpointVal = endpointElement.getTextContent();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (ELEM_ENDPOINT.equals(reader.getLocalName())) {
+                String endpointVal = reader.getElementText().trim();
                 if (!"" .equals(endpointVal)) {
                     Endpoint endpoint = new Endpoint(endpointVal, application.getAlias(), addressFactory,headerFactory);
+                    if (inviteLimit > 0) {
+                        endpoint.setInviteLimiter(new InviteLimiter(inviteLimit, inviteLimitMode));
+                    }
                     application.addEndpoint(endpoint);
                 }
+            } else {
+                skipElement(reader);
             }
+        }
 
-            applicationServices.put(application.getAlias(), application);
-            logger.trace("Found config: {}", application);
+        if (applicationServices.put(application.getAlias(), application) != null) {
+            throw new IllegalArgumentException("Broker config error: duplicated application alias " +
+                    application.getAlias());
         }
+        logger.trace("Found config: {}", application);
+    }
+
+    /*
+     * Reads optional IM-SCF pool definition from the configuration
+     */
+    private void readImScfPool(XMLStreamReader reader, AddressFactory addressFactory, HeaderFactory headerFactory)
+            throws XMLStreamException, ParseException {
+        OrchestratedService pool = new OrchestratedService(IM_SCF_POOL_ALIAS, true);
+        pool.setFailoverAttempts(readOptionalNumber(reader, ATTR_FAILOVER_ATTEMPTS));
+        readEndpointSelection(reader, pool);
+        pool.setCompactHeaders(readOptionalBoolean(reader, ATTR_COMPACT_HEADERS, true));
+
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (ELEM_ENDPOINT.equals(reader.getLocalName())) {
+                String endpointVal = reader.getElementText().trim();
+                if (!"" .equals(endpointVal)) {
+                    pool.addEndpoint(new Endpoint(endpointVal, pool.getAlias(), addressFactory, headerFactory));
+                }
+            } else {
+                skipElement(reader);
+            }
+        }
+        if (pool.getEndpoints().isEmpty()) {
+            throw new IllegalArgumentException("Broker config error: no " + ELEM_ENDPOINT + " within "
+                    + ELEM_IM_SCF_POOL);
+        }
+
+        imScfPool = pool;
+        logger.trace("Found config: {}", pool);
     }
 
     /*
      * Reads orchestration rulesets from the configuration
      */
-    private void loadOrchestrationRules(Element brokerConfig) throws IllegalArgumentException {
-        Element rulesElem = getSingleElement(brokerConfig, ELEM_ORCHESTRATION_RULES);
-        NodeList rulesList = rulesElem.getElementsByTagName(ELEM_ORCHESTRATION_RULESET);
-        for (int i = 0; i < rulesList.getLength(); i++) {
+    private void readOrchestrationRules(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (ELEM_ORCHESTRATION_RULESET.equals(reader.getLocalName())) {
+                readOrchestrationRuleset(reader, rulesetsCount++);
+            } else {
+                skipElement(reader);
+            }
+        }
+    }
+
+    /*
+     * Reads single orchestration ruleset, its services are resolved once the whole configuration is read
+     */
+    private void readOrchestrationRuleset(XMLStreamReader reader, int priority) throws XMLStreamException {
+        String serviceKey = intern(readAttribute(reader, ATTR_SERVICE_KEY));
+        String prefix = intern(readAttribute(reader, ATTR_SERVICE_KEY_PREFIX));
+        String range = readAttribute(reader, ATTR_SERVICE_KEY_RANGE);
+        boolean isDefault = Boolean.valueOf(readAttribute(reader, ATTR_DEFAULT));
+        int keysCount = (serviceKey.isEmpty() ? 0 : 1) + (prefix.isEmpty() ? 0 : 1) + (range.isEmpty() ? 0 : 1);
+        if (keysCount > 1 || (keysCount == 0 && !isDefault)) {
+            throw new IllegalArgumentException("Broker config error: exactly one of [" + ATTR_SERVICE_KEY + ", " +
+                    ATTR_SERVICE_KEY_PREFIX + ", " + ATTR_SERVICE_KEY_RANGE + "] expected within " +
+                    ELEM_ORCHESTRATION_RULESET);
+        }
 
-            Element ruleElem = (Element) rulesList.item(i);
-            OrchestrationRuleset ruleset = new OrchestrationRuleset(readMandatoryAttribute(ruleElem, ATTR_SERVICE_KEY));
+        String rulesetKey = !serviceKey.isEmpty() ? serviceKey : !prefix.isEmpty() ? prefix + "*" :
+                !range.isEmpty() ? range : ATTR_DEFAULT;
+        OrchestrationRuleset ruleset = new OrchestrationRuleset(rulesetKey);
 
-            String handlingString = readMandatoryAttribute(ruleElem, ATTR_DEFAULT_ERROR_HANDLING);
-            ruleset.setDefaultErrorResponseHandling(OrchestrationRuleset.ErrorLogic.valueOf(handlingString));
+        String handlingString = readMandatoryAttribute(reader, ATTR_DEFAULT_ERROR_HANDLING);
+        ruleset.setDefaultErrorResponseHandling(OrchestrationRuleset.ErrorLogic.valueOf(handlingString));
 
-            NodeList serviceList = ruleElem.getElementsByTagName(ELEM_SERVICE);
-            for (int j = 0; j < serviceList.getLength(); j++) {
-                Element service = (Element) serviceList.item(j);
-                String serviceAlias = service.getTextContent();
+        List<String> aliases = new ArrayList<>();
+        Map<String, List<String>> parallelAliases = new HashMap<>();
+        RulesetDecisionTree.Rule rule = null;
+        int skipResponsesCount = 0;
+        int stopResponsesCount = 0;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (ELEM_SERVICE.equals(name)) {
+                String serviceAlias = reader.getElementText().trim();
                 if (!"" .equals(serviceAlias)) {
-                    ruleset.appendApplication(applicationServices.get(serviceAlias));
+                    aliases.add(intern(serviceAlias));
+                }
+            } else if (ELEM_PARALLEL_GROUP.equals(name)) {
+                readParallelGroup(reader, aliases, parallelAliases);
+            } else if (ELEM_CONDITIONS.equals(name)) {
+                if (rule != null) {
+                    throw new IllegalArgumentException("Broker config error: single " + ELEM_CONDITIONS +
+                            " expected within " + ELEM_ORCHESTRATION_RULESET);
+                }
+                rule = readConditions(reader, priority, ruleset);
+            } else if (ELEM_ERROR_RESPONSES_TO_SKIP.equals(name)) {
+                skipResponsesCount++;
+                readErrorResponseHandling(reader, ruleset, OrchestrationRuleset.ErrorLogic.SKIP);
+            } else if (ELEM_ERROR_RESPONSES_TO_STOP.equals(name)) {
+                stopResponsesCount++;
+                readErrorResponseHandling(reader, ruleset, OrchestrationRuleset.ErrorLogic.STOP);
+            } else {
+                skipElement(reader);
+            }
+        }
+
+        if (skipResponsesCount != 1) {
+            throw new IllegalArgumentException("Broker config error: single " + ELEM_ERROR_RESPONSES_TO_SKIP +
+                    " expected within " + ELEM_ORCHESTRATION_RULESET);
+        }
+        if (stopResponsesCount != 1) {
+            throw new IllegalArgumentException("Broker config error: single " + ELEM_ERROR_RESPONSES_TO_STOP +
+                    " expected within " + ELEM_ORCHESTRATION_RULESET);
+        }
+        if (rule == null) {
+            rule = new RulesetDecisionTree.Rule(priority, ruleset, null, null, null, new ArrayList<String>(0));
+        }
+        rulesetAliases.put(ruleset, aliases);
+        if (!parallelAliases.isEmpty()) {
+            rulesetParallelAliases.put(ruleset, parallelAliases);
+        }
+
+        if (!serviceKey.isEmpty()) {
+            addRule(exactRules, serviceKey, rule);
+        } else if (!prefix.isEmpty()) {
+            addRule(prefixRules, prefix, rule);
+        } else if (!range.isEmpty()) {
+            addRule(rangeRules, range, rule);
+        }
+        if (isDefault) {
+            addRule(defaultRules, ATTR_DEFAULT, rule);
+        }
+    }
+
+    /*
+     * Reads the group of services INVITEd at once. The primary service takes the place of the group in the chain,
+     * the other services of the group are stored as its parallel services.
+     */
+    private void readParallelGroup(XMLStreamReader reader, List<String> aliases,
+                                   Map<String, List<String>> parallelAliases) throws XMLStreamException {
+        String primary = intern(readMandatoryAttribute(reader, ATTR_PRIMARY));
+        List<String> groupAliases = new ArrayList<>();
+        int primaryCount = 0;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (ELEM_SERVICE.equals(reader.getLocalName())) {
+                String serviceAlias = reader.getElementText().trim();
+                if (serviceAlias.equals(primary)) {
+                    primaryCount++;
+                } else if (!serviceAlias.isEmpty()) {
+                    groupAliases.add(intern(serviceAlias));
                 }
+            } else {
+                skipElement(reader);
             }
+        }
 
-            readErrorResponseHandling(ruleElem, ruleset);
+        if (primaryCount != 1 || parallelAliases.containsKey(primary)) {
+            throw new IllegalArgumentException("Broker config error: " + ATTR_PRIMARY + " [" + primary +
+                    "] expected once among the services of " + ELEM_PARALLEL_GROUP);
+        }
+        if (groupAliases.isEmpty()) {
+            throw new IllegalArgumentException("Broker config error: services other than " + ATTR_PRIMARY +
+                    " [" + primary + "] expected within " + ELEM_PARALLEL_GROUP);
+        }
+        aliases.add(primary);
+        parallelAliases.put(primary, groupAliases);
+    }
 
-            rulesMap.put(ruleset.getServiceKey(), ruleset);
+    /*
+     * Appends the referenced services to the rulesets, fails on unknown alias
+     */
+    private void resolveRulesetsServices() {
+        for (Map.Entry<OrchestrationRuleset, List<String>> entry : rulesetAliases.entrySet()) {
+            OrchestrationRuleset ruleset = entry.getKey();
+            for (String alias : entry.getValue()) {
+                OrchestratedService application = applicationServices.get(alias);
+                if (application == null) {
+                    throw new IllegalArgumentException("Broker config error: unknown " + ELEM_SERVICE + " [" + alias +
+                            "] within " + ELEM_ORCHESTRATION_RULESET + " " + ruleset.getServiceKey());
+                }
+                ruleset.appendApplication(application);
+            }
+            Map<String, List<String>> parallelAliases = rulesetParallelAliases.get(ruleset);
+            if (parallelAliases != null) {
+                for (Map.Entry<String, List<String>> group : parallelAliases.entrySet()) {
+                    for (String alias : group.getValue()) {
+                        OrchestratedService application = applicationServices.get(alias);
+                        if (application == null) {
+                            throw new IllegalArgumentException("Broker config error: unknown " + ELEM_SERVICE +
+                                    " [" + alias + "] within " + ELEM_PARALLEL_GROUP + " of " +
+                                    ELEM_ORCHESTRATION_RULESET + " " + ruleset.getServiceKey());
+                        }
+                        ruleset.appendParallelApplication(applicationServices.get(group.getKey()), application);
+                    }
+                }
+            }
             logger.trace("Found config: {}", ruleset);
         }
     }
 
     /*
-     * Retrieves single Element from the parent
+     * Compiles the rules groups into the servicekey index
+     */
+    private void compileOrchestrationRules() {
+        for (Map.Entry<String, List<RulesetDecisionTree.Rule>> entry : exactRules.entrySet()) {
+            rulesIndex.addExact(entry.getKey(), new RulesetDecisionTree(entry.getValue()));
+        }
+        for (Map.Entry<String, List<RulesetDecisionTree.Rule>> entry : prefixRules.entrySet()) {
+            rulesIndex.addPrefix(entry.getKey(), new RulesetDecisionTree(entry.getValue()));
+        }
+        for (Map.Entry<String, List<RulesetDecisionTree.Rule>> entry : rangeRules.entrySet()) {
+            addRange(entry.getKey(), new RulesetDecisionTree(entry.getValue()));
+        }
+        if (!defaultRules.isEmpty()) {
+            rulesIndex.setDefault(new RulesetDecisionTree(defaultRules));
+        }
+    }
+
+    /*
+     * Adds the rule to the servicekey group, only one unconditional rule is allowed within the group
+     */
+    private void addRule(Map<String, List<RulesetDecisionTree.Rule>> groups, String key,
+                         RulesetDecisionTree.Rule rule) {
+        List<RulesetDecisionTree.Rule> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayList<>();
+            groups.put(key, group);
+        }
+        addRule(group, key, rule);
+    }
+
+    private void addRule(List<RulesetDecisionTree.Rule> group, String key, RulesetDecisionTree.Rule rule) {
+        if (rule.isUnconditional()) {
+            for (RulesetDecisionTree.Rule other : group) {
+                if (other.isUnconditional()) {
+                    throw new IllegalArgumentException("Broker config error: multiple rulesets without conditions " +
+                            "for servicekey " + key);
+                }
+            }
+        }
+        group.add(rule);
+    }
+
+    /*
+     * Reads conditions of the ruleset
+     */
+    private RulesetDecisionTree.Rule readConditions(XMLStreamReader reader, int priority,
+                                                    OrchestrationRuleset ruleset) throws XMLStreamException {
+        String sessionCase = readAttribute(reader, ATTR_SESSION_CASE);
+        Boolean originating = null;
+        if (SESSION_CASE_ORIG.equals(sessionCase)) {
+            originating = Boolean.TRUE;
+        } else if (SESSION_CASE_TERM.equals(sessionCase)) {
+            originating = Boolean.FALSE;
+        } else if (!sessionCase.isEmpty()) {
+            throw new IllegalArgumentException("Broker config error: invalid value of attribute [" + ATTR_SESSION_CASE
+                    + "] within " + ELEM_CONDITIONS + ": " + sessionCase);
+        }
+        String domain = intern(readAttribute(reader, ATTR_REQUEST_URI_DOMAIN));
+        String userPrefix = intern(readAttribute(reader, ATTR_REQUEST_URI_PREFIX));
+
+        List<String> headers = new ArrayList<>();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (ELEM_HEADER_PRESENT.equals(reader.getLocalName())) {
+                String header = reader.getElementText().trim();
+                if (!header.isEmpty()) {
+                    headers.add(intern(header));
+                    conditionHeaders.add(header.toLowerCase());
+                }
+            } else {
+                skipElement(reader);
+            }
+        }
+
+        return new RulesetDecisionTree.Rule(priority, ruleset, originating, domain.isEmpty() ? null : domain,
+                userPrefix.isEmpty() ? null : userPrefix, headers);
+    }
+
+    /*
+     * Adds rulesets for the servicekey range in "from-to" format
+     */
+    private void addRange(String range, RulesetDecisionTree rulesets) {
+        int separator = range.indexOf('-', 1);
+        try {
+            if (separator > 0) {
+                rulesIndex.addRange(Long.parseLong(range.substring(0, separator).trim()),
+                        Long.parseLong(range.substring(separator + 1).trim()), rulesets);
+                return;
+            }
+        } catch (NumberFormatException ignored) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Broker config error: invalid value of attribute [" +
+                ATTR_SERVICE_KEY_RANGE + "] within " + ELEM_ORCHESTRATION_RULESET + ": " + range);
+    }
+
+    /*
+     * Skips the current element including its content
      */
-    private Element getSingleElement(Element parent, String name) {
-        NodeList listOfChildren = parent.getElementsByTagName(name);
-        if (listOfChildren == null || listOfChildren.getLength() != 1) {
-            throw new IllegalArgumentException("Broker config error: single " + name + " expected within " + parent
-                    .getNodeName());
+    private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        logger.debug("Unexpected element {} skipped", reader.getLocalName());
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
         }
-        return (Element) listOfChildren.item(0);
+    }
+
+    /*
+     * Returns the pooled instance of the string, so the repeated aliases, servicekeys, etc. share single instance
+     */
+    private String intern(String value) {
+        String pooled = stringPool.get(value);
+        if (pooled == null) {
+            stringPool.put(value, value);
+            pooled = value;
+        }
+        return pooled;
+    }
+
+    /*
+     * Reads attribute of the current element, returns empty string if not present
+     */
+    private String readAttribute(XMLStreamReader reader, String name) {
+        String attribute = reader.getAttributeValue(null, name);
+        return attribute != null ? attribute : "";
     }
 
     /*
      * Reads mandatory attribute from element or throws IllegalArgumentException if not found
      */
-    private String readMandatoryAttribute(Element element, String name) {
+    private String readMandatoryAttribute(XMLStreamReader reader, String name) {
 
-        String attribute = element.getAttribute(name);
-        if (attribute != null && attribute.length() > 0) {
+        String attribute = readAttribute(reader, name);
+        if (attribute.length() > 0) {
             return attribute;
         }
         throw new IllegalArgumentException("Broker config error: missing mandatory attribute [" + name + "] within "
-                + element.getNodeName());
+                + reader.getLocalName());
     }
 
     /*
-     * Reads mapping of SIP error responses to orchestration handling.
+     * Reads optional non-negative numeric attribute, returns 0 if not present
      */
-    private void readErrorResponseHandling(Element orchestrationRulesetElement, OrchestrationRuleset ruleset) {
-
-        Element skipResponsesElem = getSingleElement(orchestrationRulesetElement, ELEM_ERROR_RESPONSES_TO_SKIP);
-        NodeList skipResponsesList = skipResponsesElem.getElementsByTagName(ELEM_RESPONSE_CODE);
-        for (int j = 0; j < skipResponsesList.getLength(); j++) {
-            Element responseElem = (Element) skipResponsesList.item(j);
-            String responseCode = responseElem.getTextContent();
-            if (!"" .equals(responseCode)) {
-                ruleset.addErrorResponseHandling(Integer.valueOf(responseCode), OrchestrationRuleset.ErrorLogic.SKIP);
+    private int readOptionalNumber(XMLStreamReader reader, String name) {
+        String attribute = readAttribute(reader, name);
+        if (attribute.length() == 0) {
+            return 0;
+        }
+        try {
+            int value = Integer.parseInt(attribute);
+            if (value >= 0) {
+                return value;
             }
+        } catch (NumberFormatException ignored) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Broker config error: invalid value of attribute [" + name + "] within "
+                + reader.getLocalName() + ": " + attribute);
+    }
+
+    /*
+     * Reads optional boolean attribute, returns the default value if not present
+     */
+    private boolean readOptionalBoolean(XMLStreamReader reader, String name, boolean defaultValue) {
+        String attribute = readAttribute(reader, name);
+        if (attribute.length() == 0) {
+            return defaultValue;
+        }
+        if (!"true".equals(attribute) && !"false".equals(attribute)) {
+            throw new IllegalArgumentException("Broker config error: invalid value of attribute [" + name +
+                    "] within " + reader.getLocalName() + ": " + attribute);
+        }
+        return Boolean.parseBoolean(attribute);
+    }
+
+    /*
+     * Reads optional endpoint selection strategy of the service
+     */
+    private void readEndpointSelection(XMLStreamReader reader, OrchestratedService service) {
+        service.setEndpointSelection(readOptionalEnum(reader, ATTR_ENDPOINT_SELECTION,
+                OrchestratedService.EndpointSelection.class, OrchestratedService.EndpointSelection.ROUND_ROBIN),
+                readOptionalEnum(reader, ATTR_HASH_KEY, OrchestratedService.HashKey.class,
+                        OrchestratedService.HashKey.CALLING));
+    }
+
+    /*
+     * Reads optional enumerated attribute, returns the default value if not present
+     */
+    private <E extends Enum<E>> E readOptionalEnum(XMLStreamReader reader, String name, Class<E> type,
+                                                   E defaultValue) {
+        String attribute = readAttribute(reader, name);
+        if (attribute.length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, attribute);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Broker config error: invalid value of attribute [" + name +
+                    "] within " + reader.getLocalName() + ": " + attribute, e);
         }
+    }
 
-        Element stopResponsesElem = getSingleElement(orchestrationRulesetElement, ELEM_ERROR_RESPONSES_TO_STOP);
-        NodeList stopResponsesList = stopResponsesElem.getElementsByTagName(ELEM_RESPONSE_CODE);
-        for (int j = 0; j < stopResponsesList.getLength(); j++) {
-            Element responseElem = (Element) stopResponsesList.item(j);
-            String responseCode = responseElem.getTextContent();
-            if (!"" .equals(responseCode)) {
-                ruleset.addErrorResponseHandling(Integer.valueOf(responseCode), OrchestrationRuleset.ErrorLogic.STOP);
+    /*
+     * Reads list of SIP error responses mapped to the orchestration handling.
+     */
+    private void readErrorResponseHandling(XMLStreamReader reader, OrchestrationRuleset ruleset,
+                                           OrchestrationRuleset.ErrorLogic logic) throws XMLStreamException {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (ELEM_RESPONSE_CODE.equals(reader.getLocalName())) {
+                String responseCode = reader.getElementText().trim();
+                if (!"" .equals(responseCode)) {
+                    ruleset.addErrorResponseHandling(Integer.valueOf(responseCode), logic);
+                }
+            } else {
+                skipElement(reader);
             }
         }
     }
 
-    public OrchestrationRuleset getRulesForKey(String key) {
-        return rulesMap.get(key);
+    /**
+     * Finds the ruleset for the servicekey (exact key, longest prefix, range or default ruleset)
+     * whose conditions are met by the INVITE.
+     *
+     * @param key    - servicekey
+     * @param fields - INVITE fields
+     *
+     * @return matched ruleset or null if none matches
+     */
+    public OrchestrationRuleset getRulesForKey(String key, InviteFields fields) {
+        return rulesIndex.find(key, fields);
+    }
+
+    /**
+     * @return lower case names of the headers to be checked for presence in the INVITE
+     */
+    public Set<String> getConditionHeaders() {
+        return conditionHeaders;
     }
 
     public OrchestratedService getApplicationServiceForAlias(String alias){
         return applicationServices.get(alias);
     }
 
+    /**
+     * Returns the application or the IM-SCF pool (IM_SCF_POOL_ALIAS)
+     *
+     * @param alias - service alias
+     *
+     * @return service or null if not configured
+     */
+    public OrchestratedService getService(String alias) {
+        if (IM_SCF_POOL_ALIAS.equals(alias)) {
+            return imScfPool;
+        }
+        return applicationServices.get(alias);
+    }
+
+    /**
+     * @return all the configured services including the IM-SCF pool
+     */
+    public Collection<OrchestratedService> getServices() {
+        List<OrchestratedService> services = new ArrayList<>(applicationServices.values());
+        if (imScfPool != null) {
+            services.add(imScfPool);
+        }
+        return services;
+    }
+
+    /**
+     * Takes over the runtime settings (administrative state and weight) of the endpoints configured
+     * also in the previous configuration, so that the endpoint management survives the configuration reload.
+     *
+     * @param previous - configuration replaced by this one
+     */
+    public void inheritEndpointSettings(OrchestrationConfig previous) {
+        for (OrchestratedService service : getServices()) {
+            OrchestratedService previousService = previous.getService(service.getAlias());
+            if (previousService == null) {
+                continue;
+            }
+            Map<Endpoint, Integer> weights = new HashMap<>();
+            for (Endpoint endpoint : service.getEndpoints()) {
+                Endpoint previousEndpoint = previousService.getEndpoint(endpoint.getUriString());
+                if (previousEndpoint != null) {
+                    endpoint.setAdminState(previousEndpoint.getAdminState());
+                    weights.put(endpoint, previousEndpoint.getWeight());
+                }
+            }
+            service.setEndpointWeights(weights);
+        }
+    }
+
+    /**
+     * @return IM-SCF pool or null if not configured
+     */
+    public OrchestratedService getImScfPool() {
+        return imScfPool;
+    }
+
 }
@@ -20,6 +20,7 @@
 package pl.ovoo.slee.resource.sip.broker.service.config;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -36,6 +37,8 @@ public class OrchestrationRuleset {
 
     private final String serviceKey;
     private final List<OrchestratedService> applications = new ArrayList<>();
+    // services INVITEd in parallel with the primary one (the primary is in the applications list)
+    private final Map<OrchestratedService, List<OrchestratedService>> parallelApplications = new HashMap<>();
     private final Map<Integer, ErrorLogic> responseToErrorHandling = new HashMap<>();
     private ErrorLogic defaultRulesetHandling = ErrorLogic.STOP;
 
@@ -47,12 +50,44 @@ public class OrchestrationRuleset {
         applications.add(as);
     }
 
+    /**
+     * Adds the service INVITEd in parallel with the primary service of the group.
+     * The result of the primary service is passed along the chain, the parallel service results are merged
+     * by the ruleset error logic.
+     *
+     * @param primary - primary service of the group (already appended to the chain)
+     * @param as      - service to INVITE in parallel
+     */
+    public void appendParallelApplication(OrchestratedService primary, OrchestratedService as) {
+        List<OrchestratedService> group = parallelApplications.get(primary);
+        if (group == null) {
+            group = new ArrayList<>();
+            parallelApplications.put(primary, group);
+        }
+        group.add(as);
+    }
+
+    /**
+     * Returns the services INVITEd in parallel with the given one
+     *
+     * @param primary - service of the chain
+     *
+     * @return parallel services, empty if the service is chained sequentially
+     */
+    public List<OrchestratedService> getParallelApplications(OrchestratedService primary) {
+        List<OrchestratedService> group = parallelApplications.get(primary);
+        return group != null ? group : Collections.<OrchestratedService>emptyList();
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("Rules key: ").append(serviceKey).append("");
         for (OrchestratedService application : applications) {
             sb.append("->").append(application.getAlias());
+            for (OrchestratedService parallel : getParallelApplications(application)) {
+                sb.append("|").append(parallel.getAlias());
+            }
         }
         return sb.toString();
     }
@@ -0,0 +1,60 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.config;
+
+/**
+ * Counts events in one-second buckets and reports the average rate over the last seconds (sliding window).
+ */
+public class RateMeter {
+
+    // window of the reported rate in seconds
+    public static final int WINDOW = 10;
+
+    private final long[] counts = new long[WINDOW + 1];
+    private final long[] seconds = new long[WINDOW + 1];
+
+    /**
+     * Counts single event at the current time
+     */
+    public synchronized void mark() {
+        long second = System.currentTimeMillis() / 1000;
+        int index = (int) (second % counts.length);
+        if (seconds[index] != second) {
+            seconds[index] = second;
+            counts[index] = 0;
+        }
+        counts[index]++;
+    }
+
+    /**
+     * Returns the average number of events per second within the last complete seconds of the window
+     */
+    public synchronized double getRate() {
+        long second = System.currentTimeMillis() / 1000;
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            // the current (incomplete) second is not counted
+            if (seconds[i] < second && seconds[i] >= second - WINDOW) {
+                total += counts[i];
+            }
+        }
+        return (double) total / WINDOW;
+    }
+}
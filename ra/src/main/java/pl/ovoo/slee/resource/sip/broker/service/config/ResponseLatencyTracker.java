@@ -0,0 +1,82 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.config;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent INVITE response latencies of a service and provides the configured percentile of them.
+ * The percentile is recomputed periodically, not on every sample.
+ */
+public class ResponseLatencyTracker {
+
+    // number of the most recent samples kept
+    private static final int WINDOW_SIZE = 128;
+    // no percentile is reported until this number of samples is collected
+    private static final int MIN_SAMPLES = 20;
+    // number of new samples that trigger percentile recalculation
+    private static final int RECALCULATION_INTERVAL = 16;
+
+    private final int percentile;
+    private final long[] samples = new long[WINDOW_SIZE];
+    private int samplesCount;
+    private int nextSample;
+    private int samplesSinceRecalculation;
+    private long percentileValue = -1;
+
+    /**
+     * @param percentile - the percentile to report (1-99)
+     */
+    public ResponseLatencyTracker(int percentile) {
+        this.percentile = percentile;
+    }
+
+    /**
+     * Adds new latency sample
+     *
+     * @param latency - time in milliseconds from INVITE sending to the first response
+     */
+    public synchronized void addSample(long latency) {
+        samples[nextSample] = latency;
+        nextSample = (nextSample + 1) % WINDOW_SIZE;
+        if (samplesCount < WINDOW_SIZE) {
+            samplesCount++;
+        }
+
+        if (++samplesSinceRecalculation >= RECALCULATION_INTERVAL && samplesCount >= MIN_SAMPLES) {
+            long[] sorted = Arrays.copyOf(samples, samplesCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * samplesCount) - 1;
+            percentileValue = sorted[Math.max(0, Math.min(index, samplesCount - 1))];
+            samplesSinceRecalculation = 0;
+        }
+    }
+
+    /**
+     * Returns the latency percentile in milliseconds or -1 if not enough samples collected yet
+     */
+    public synchronized long getPercentileValue() {
+        return percentileValue;
+    }
+
+    public int getPercentile() {
+        return percentile;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.config;
+
+/**
+ * Round-trip time estimator of a single endpoint (RFC 6298 smoothed RTT and RTT variance).
+ * Provides the SIP retransmission timer (T1) adapted to the measured round-trip time.
+ */
+public class RttEstimator {
+
+    // RFC 6298 gains
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+    // clock granularity in milliseconds
+    private static final int GRANULARITY = 1;
+
+    private double smoothedRtt = -1;
+    private double rttVariance;
+    // estimated retransmission timer, -1 until the first sample or backoff
+    private long retransmitTimer = -1;
+
+    /**
+     * Adds new round-trip time sample.
+     * According to Karn's algorithm the sample is ambiguous if it is not shorter than the retransmission timer
+     * used (the request might have been retransmitted), such sample is not taken and the timer is backed off instead.
+     *
+     * @param rtt       - time in milliseconds from request sending to the first response
+     * @param timerUsed - retransmission timer the request was sent with
+     *
+     * @return true if the sample has been taken, false if the timer has been backed off
+     */
+    public synchronized boolean addSample(long rtt, int timerUsed) {
+        if (rtt >= timerUsed) {
+            backoff(timerUsed);
+            return false;
+        }
+
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2.0;
+        } else {
+            rttVariance = (1 - BETA) * rttVariance + BETA * Math.abs(smoothedRtt - rtt);
+            smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rtt;
+        }
+        retransmitTimer = Math.round(smoothedRtt + Math.max(GRANULARITY, K * rttVariance));
+        return true;
+    }
+
+    /**
+     * Doubles the retransmission timer after request retransmission or timeout, kept until the next valid sample.
+     *
+     * @param timerUsed - retransmission timer the request was sent with
+     */
+    public synchronized void backoff(int timerUsed) {
+        retransmitTimer = Math.max(retransmitTimer, 2L * timerUsed);
+    }
+
+    /**
+     * Returns retransmission timer (T1) within given bounds
+     *
+     * @param initial - timer to use until first sample is taken
+     * @param min     - lower bound
+     * @param max     - upper bound
+     */
+    public synchronized int getRetransmitTimer(int initial, int min, int max) {
+        long timer = retransmitTimer < 0 ? initial : retransmitTimer;
+        return (int) Math.max(min, Math.min(max, timer));
+    }
+
+    /**
+     * Returns smoothed round-trip time in milliseconds or -1 if no sample taken yet
+     */
+    public synchronized long getSmoothedRtt() {
+        return Math.round(smoothedRtt);
+    }
+
+    /**
+     * Returns round-trip time variance in milliseconds
+     */
+    public synchronized long getRttVariance() {
+        return Math.round(rttVariance);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RttEstimator{srtt=" + getSmoothedRtt() + ", rttvar=" + getRttVariance() + ", rto=" + retransmitTimer +
+                "}";
+    }
+}
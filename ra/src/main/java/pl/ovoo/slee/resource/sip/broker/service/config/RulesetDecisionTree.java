@@ -0,0 +1,243 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Conditional rulesets sharing the same servicekey match, compiled into a decision tree.
+ * The tree levels are: session case, Request-URI domain, Request-URI user prefix (trie). Rulesets without
+ * a condition on the level are merged into every branch of the level at compile time, so the selection
+ * follows a single path without backtracking. The leaf keeps the candidates in the configuration order,
+ * the first one with all the required headers present is selected.
+ */
+public class RulesetDecisionTree {
+
+    // tree roots for terminating (0) and originating (1) session case
+    private final DomainNode[] sessionCaseNodes = new DomainNode[2];
+
+    /**
+     * Compiles the rules into the decision tree
+     *
+     * @param rules - rules in the configuration order (priority)
+     */
+    public RulesetDecisionTree(List<Rule> rules) {
+        for (int i = 0; i < sessionCaseNodes.length; i++) {
+            boolean originating = i == 1;
+            List<Rule> matching = new ArrayList<>();
+            for (Rule rule : rules) {
+                if (rule.originating == null || rule.originating == originating) {
+                    matching.add(rule);
+                }
+            }
+            sessionCaseNodes[i] = new DomainNode(matching);
+        }
+    }
+
+    /**
+     * Selects the ruleset for the INVITE
+     *
+     * @param fields - INVITE fields
+     *
+     * @return selected ruleset or null if no ruleset conditions are met
+     */
+    public OrchestrationRuleset select(InviteFields fields) {
+        DomainNode domainNode = sessionCaseNodes[fields.isOriginating() ? 1 : 0];
+        PrefixNode prefixNode = domainNode.get(fields.getRequestUriDomain());
+
+        String user = fields.getRequestUriUser();
+        if (user != null) {
+            for (int i = 0; i < user.length(); i++) {
+                PrefixNode child = prefixNode.getChild(user.charAt(i));
+                if (child == null) {
+                    break;
+                }
+                prefixNode = child;
+            }
+        }
+
+        for (Rule candidate : prefixNode.candidates) {
+            if (candidate.headersPresent(fields)) {
+                return candidate.ruleset;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Request-URI domain level
+     */
+    private static class DomainNode {
+        private final Map<String, PrefixNode> domains = new HashMap<>();
+        private final PrefixNode anyDomain;
+
+        DomainNode(List<Rule> rules) {
+            List<Rule> anyDomainRules = new ArrayList<>();
+            Map<String, List<Rule>> domainRules = new LinkedHashMap<>();
+            for (Rule rule : rules) {
+                if (rule.requestUriDomain == null) {
+                    anyDomainRules.add(rule);
+                } else if (!domainRules.containsKey(rule.requestUriDomain)) {
+                    domainRules.put(rule.requestUriDomain, new ArrayList<Rule>());
+                }
+            }
+            for (Map.Entry<String, List<Rule>> entry : domainRules.entrySet()) {
+                // keep the configuration order of the domain specific and any domain rules
+                for (Rule rule : rules) {
+                    if (rule.requestUriDomain == null || rule.requestUriDomain.equals(entry.getKey())) {
+                        entry.getValue().add(rule);
+                    }
+                }
+                domains.put(entry.getKey(), PrefixNode.compile(entry.getValue()));
+            }
+            anyDomain = PrefixNode.compile(anyDomainRules);
+        }
+
+        PrefixNode get(String domain) {
+            PrefixNode node = domain != null ? domains.get(domain) : null;
+            return node != null ? node : anyDomain;
+        }
+    }
+
+    /*
+     * Request-URI user prefix level, every trie node keeps the rules matching all the users passing the node
+     */
+    private static class PrefixNode {
+        private Map<Character, PrefixNode> children;
+        private List<Rule> candidates = Collections.emptyList();
+
+        static PrefixNode compile(List<Rule> rules) {
+            PrefixNode root = new PrefixNode();
+            Map<PrefixNode, List<Rule>> terminating = new HashMap<>();
+            for (Rule rule : rules) {
+                PrefixNode node = root;
+                if (rule.requestUriPrefix != null) {
+                    for (int i = 0; i < rule.requestUriPrefix.length(); i++) {
+                        node = node.addChild(rule.requestUriPrefix.charAt(i));
+                    }
+                }
+                List<Rule> nodeRules = terminating.get(node);
+                if (nodeRules == null) {
+                    nodeRules = new ArrayList<>();
+                    terminating.put(node, nodeRules);
+                }
+                nodeRules.add(rule);
+            }
+            root.assignCandidates(Collections.<Rule>emptyList(), terminating);
+            return root;
+        }
+
+        private void assignCandidates(List<Rule> inherited, Map<PrefixNode, List<Rule>> terminating) {
+            List<Rule> own = terminating.get(this);
+            if (own == null) {
+                candidates = inherited;
+            } else {
+                candidates = new ArrayList<>(inherited);
+                candidates.addAll(own);
+                // configuration order decides between the rules matching the same user
+                Collections.sort(candidates);
+            }
+            if (children != null) {
+                for (PrefixNode child : children.values()) {
+                    child.assignCandidates(candidates, terminating);
+                }
+            }
+        }
+
+        PrefixNode addChild(char c) {
+            if (children == null) {
+                children = new HashMap<>();
+            }
+            PrefixNode child = children.get(c);
+            if (child == null) {
+                child = new PrefixNode();
+                children.put(c, child);
+            }
+            return child;
+        }
+
+        PrefixNode getChild(char c) {
+            return children != null ? children.get(c) : null;
+        }
+    }
+
+    /**
+     * Ruleset with its conditions, all the conditions must be met (null means any value).
+     */
+    public static class Rule implements Comparable<Rule> {
+        private final int priority;
+        private final OrchestrationRuleset ruleset;
+        private final Boolean originating;
+        private final String requestUriDomain;
+        private final String requestUriPrefix;
+        // lower case header names
+        private final List<String> requiredHeaders;
+
+        /**
+         *
+         * @param priority         - configuration order, lower value takes precedence
+         * @param ruleset          - ruleset selected if the conditions are met
+         * @param originating      - required session case, null if any
+         * @param requestUriDomain - required Request-URI host, null if any
+         * @param requestUriPrefix - required Request-URI user prefix, null if any
+         * @param requiredHeaders  - names of the headers that must be present in the INVITE
+         */
+        public Rule(int priority, OrchestrationRuleset ruleset, Boolean originating, String requestUriDomain,
+                    String requestUriPrefix, List<String> requiredHeaders) {
+            this.priority = priority;
+            this.ruleset = ruleset;
+            this.originating = originating;
+            this.requestUriDomain = requestUriDomain != null ? requestUriDomain.toLowerCase() : null;
+            this.requestUriPrefix = requestUriPrefix;
+            this.requiredHeaders = new ArrayList<>(requiredHeaders.size());
+            for (String header : requiredHeaders) {
+                this.requiredHeaders.add(header.toLowerCase());
+            }
+        }
+
+        public boolean isUnconditional() {
+            return originating == null && requestUriDomain == null && requestUriPrefix == null
+                    && requiredHeaders.isEmpty();
+        }
+
+        public List<String> getRequiredHeaders() {
+            return requiredHeaders;
+        }
+
+        boolean headersPresent(InviteFields fields) {
+            for (String header : requiredHeaders) {
+                if (!fields.isHeaderPresent(header)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int compareTo(Rule other) {
+            return Integer.compare(priority, other.priority);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.config;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of the orchestration rulesets by servicekey.
+ * The ruleset is matched with the following precedence: exact servicekey, longest servicekey prefix (trie),
+ * numeric servicekey range (non-overlapping intervals), default ruleset. Every servicekey match holds the
+ * conditional rulesets compiled into the decision tree, if none of its rulesets conditions are met
+ * the next match is tried.
+ * The index is built once on configuration load and is read-only afterwards.
+ */
+public class ServiceKeyIndex {
+
+    private final Map<String, RulesetDecisionTree> exactKeys = new HashMap<>();
+    private final TrieNode prefixes = new TrieNode();
+    // ranges by their lower bound
+    private final TreeMap<Long, Range> ranges = new TreeMap<>();
+    private RulesetDecisionTree defaultRulesets;
+
+    /**
+     * Adds rulesets matching exact servicekey
+     *
+     * @param key      - servicekey
+     * @param rulesets - rulesets to match
+     */
+    public void addExact(String key, RulesetDecisionTree rulesets) {
+        if (exactKeys.put(key, rulesets) != null) {
+            throw new IllegalArgumentException("Broker config error: duplicated servicekey " + key);
+        }
+    }
+
+    /**
+     * Adds rulesets matching all servicekeys starting with the prefix
+     *
+     * @param prefix   - servicekey prefix
+     * @param rulesets - rulesets to match
+     */
+    public void addPrefix(String prefix, RulesetDecisionTree rulesets) {
+        TrieNode node = prefixes;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.addChild(prefix.charAt(i));
+        }
+        if (node.rulesets != null) {
+            throw new IllegalArgumentException("Broker config error: duplicated servicekey prefix " + prefix);
+        }
+        node.rulesets = rulesets;
+    }
+
+    /**
+     * Adds rulesets matching numeric servicekeys within the range
+     *
+     * @param from     - lower bound (inclusive)
+     * @param to       - upper bound (inclusive)
+     * @param rulesets - rulesets to match
+     */
+    public void addRange(long from, long to, RulesetDecisionTree rulesets) {
+        if (from > to) {
+            throw new IllegalArgumentException("Broker config error: invalid servicekey range " + from + "-" + to);
+        }
+        Map.Entry<Long, Range> lower = ranges.floorEntry(to);
+        if (lower != null && lower.getValue().to >= from) {
+            throw new IllegalArgumentException("Broker config error: servicekey range " + from + "-" + to +
+                    " overlaps " + lower.getValue().from + "-" + lower.getValue().to);
+        }
+        ranges.put(from, new Range(from, to, rulesets));
+    }
+
+    public void setDefault(RulesetDecisionTree rulesets) {
+        defaultRulesets = rulesets;
+    }
+
+    /**
+     * Finds the ruleset for the servicekey and the INVITE fields.
+     *
+     * @param key    - servicekey
+     * @param fields - INVITE fields for the rulesets conditions
+     *
+     * @return matched ruleset or null if no ruleset matches
+     */
+    public OrchestrationRuleset find(String key, InviteFields fields) {
+        RulesetDecisionTree rulesets = exactKeys.get(key);
+        if (rulesets != null) {
+            OrchestrationRuleset ruleset = rulesets.select(fields);
+            if (ruleset != null) {
+                return ruleset;
+            }
+        }
+
+        OrchestrationRuleset ruleset = null;
+        // the longest prefix first, the shorter ones only if none of the longer prefix rulesets conditions are met
+        int maxLength = key.length();
+        while (ruleset == null && maxLength > 0) {
+            TrieNode longest = null;
+            int longestLength = 0;
+            TrieNode node = prefixes;
+            for (int i = 0; i < maxLength && (node = node.getChild(key.charAt(i))) != null; i++) {
+                if (node.rulesets != null) {
+                    longest = node;
+                    longestLength = i + 1;
+                }
+            }
+            if (longest == null) {
+                break;
+            }
+            ruleset = longest.rulesets.select(fields);
+            maxLength = longestLength - 1;
+        }
+
+        if (ruleset == null) {
+            Range range = findRange(key);
+            if (range != null) {
+                ruleset = range.rulesets.select(fields);
+            }
+        }
+
+        if (ruleset == null && defaultRulesets != null) {
+            ruleset = defaultRulesets.select(fields);
+        }
+        return ruleset;
+    }
+
+    private Range findRange(String key) {
+        if (ranges.isEmpty()) {
+            return null;
+        }
+        long numericKey;
+        try {
+            numericKey = Long.parseLong(key);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        Map.Entry<Long, Range> candidate = ranges.floorEntry(numericKey);
+        return candidate != null && candidate.getValue().to >= numericKey ? candidate.getValue() : null;
+    }
+
+    /*
+     * Servicekey prefix trie node
+     */
+    private static class TrieNode {
+        private Map<Character, TrieNode> children;
+        private RulesetDecisionTree rulesets;
+
+        TrieNode addChild(char c) {
+            if (children == null) {
+                children = new HashMap<>();
+            }
+            TrieNode child = children.get(c);
+            if (child == null) {
+                child = new TrieNode();
+                children.put(c, child);
+            }
+            return child;
+        }
+
+        TrieNode getChild(char c) {
+            return children != null ? children.get(c) : null;
+        }
+    }
+
+    /*
+     * Numeric servicekey range
+     */
+    private static class Range {
+        private final long from;
+        private final long to;
+        private final RulesetDecisionTree rulesets;
+
+        Range(long from, long to, RulesetDecisionTree rulesets) {
+            this.from = from;
+            this.to = to;
+            this.rulesets = rulesets;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.eventqueue;
+
+import org.slf4j.Logger;
+import pl.ovoo.slee.resource.sip.broker.service.SipBrokerContext;
+
+import java.util.EventObject;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This is the broker-side timer facility.
+ * Expired timers are not handled by the timer thread, the timer event is put on the session events queue instead.
+ * This way timer handling is synchronized with other session events and does not block any worker thread.
+ */
+public class BrokerTimer {
+
+    private final Logger logger;
+    private final EventsQueue eventsQueue;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * @param brokerContext - sip broker context
+     * @param eventsQueue   - events queue to put expired timer events on
+     */
+    public BrokerTimer(SipBrokerContext brokerContext, EventsQueue eventsQueue) {
+        this.eventsQueue = eventsQueue;
+        logger = brokerContext.getLogger(getClass());
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        // canceled timers are the common case, do not keep them until expiry
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Schedules the timer event for the session.
+     *
+     * @param event          - timer event to enqueue on expiry
+     * @param sessionHandler - session handler to correlate
+     * @param delay          - delay in milliseconds
+     *
+     * @return future to cancel the timer
+     */
+    public ScheduledFuture<?> schedule(EventObject event, SessionEventHandler sessionHandler, long delay) {
+        logger.trace("Scheduling {} in {} ms for {}", new Object[]{event.getClass().getSimpleName(), delay,
+                sessionHandler.getID()});
+        return scheduler.schedule(() -> eventsQueue.enqueueEvent(event, EventKind.TIMER, sessionHandler), delay,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels all the pending timers
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.eventqueue;
+
+import javax.sip.header.ExtensionHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * Kind of the session event. It is computed once by the listener (on the SIP stack thread), is carried with
+ * the event on the session queue and lets the session handlers dispatch the event with a switch
+ * instead of instanceof checks, method comparisons and special headers lookups.
+ */
+public enum EventKind {
+    // INVITE without To tag
+    INITIAL_INVITE,
+    // INVITE within the dialog
+    REINVITE,
+    // INVITE with x-mrf or x-ica header set, no orchestration for this session
+    AUX_INVITE,
+    ACK,
+    BYE,
+    PRACK,
+    CANCEL,
+    OPTIONS,
+    INFO,
+    // INFO with x-fci header set, sent to IM-SCF instead of chaining
+    FCI_INFO,
+    UPDATE,
+    // INFO or UPDATE on a dialog of the established session, forwarded by the dialog relay instead of the FSM
+    RELAYED_REQUEST,
+    // request of the method not supported by the broker
+    OTHER_REQUEST,
+    RESPONSE,
+    // provisional response with x-as header set
+    AS_RESPONSE,
+    TIMEOUT,
+    DIALOG_TIMEOUT,
+    DIALOG_TERMINATED,
+    TIMER;
+
+    private static final String X_MRF = "x-mrf";
+    private static final String X_ICA = "x-ica";
+    private static final String X_FCI = "x-fci";
+    private static final String X_AS = "x-as";
+
+    /**
+     * Returns true for the request kinds
+     */
+    public boolean isRequest() {
+        return ordinal() <= OTHER_REQUEST.ordinal();
+    }
+
+    /**
+     * Classifies the incoming request
+     *
+     * @param request - incoming request
+     *
+     * @return request event kind
+     */
+    public static EventKind forRequest(Request request) {
+        switch (request.getMethod()) {
+            case Request.INVITE:
+                if (isHeaderTrue(request, X_MRF) || isHeaderTrue(request, X_ICA)) {
+                    return AUX_INVITE;
+                }
+                ToHeader to = (ToHeader) request.getHeader(ToHeader.NAME);
+                return to != null && to.getTag() != null ? REINVITE : INITIAL_INVITE;
+            case Request.ACK:
+                return ACK;
+            case Request.BYE:
+                return BYE;
+            case Request.PRACK:
+                return PRACK;
+            case Request.CANCEL:
+                return CANCEL;
+            case Request.OPTIONS:
+                return OPTIONS;
+            case Request.INFO:
+                return isHeaderTrue(request, X_FCI) ? FCI_INFO : INFO;
+            case Request.UPDATE:
+                return UPDATE;
+            default:
+                return OTHER_REQUEST;
+        }
+    }
+
+    /**
+     * Classifies the incoming response
+     *
+     * @param response - incoming response
+     *
+     * @return response event kind
+     */
+    public static EventKind forResponse(Response response) {
+        int statusCode = response.getStatusCode();
+        if (statusCode > Response.TRYING && statusCode < Response.OK) {
+            // special provisional response unless x-as is missing or false
+            ExtensionHeader xAs = (ExtensionHeader) response.getHeader(X_AS);
+            if (xAs != null && !"false".equals(xAs.getValue())) {
+                return AS_RESPONSE;
+            }
+        }
+        return RESPONSE;
+    }
+
+    private static boolean isHeaderTrue(Request request, String name) {
+        ExtensionHeader header = (ExtensionHeader) request.getHeader(name);
+        return header != null && "true".equals(header.getValue());
+    }
+}
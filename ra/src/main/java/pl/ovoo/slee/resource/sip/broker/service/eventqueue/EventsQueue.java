@@ -64,15 +64,16 @@ public class EventsQueue {
      * If there is a pending thread executing this session executor, the event is added to that running executor.
      *
      * @param event   - an event to enqueue
+     * @param kind    - kind of the event
      * @param sessionHandler - session handler to correlate
      */
-    public void enqueueEvent(EventObject event, SessionEventHandler sessionHandler) {
+    public void enqueueEvent(EventObject event, EventKind kind, SessionEventHandler sessionHandler) {
         if(sessionHandler == null){
             logger.warn("No session handler found for event {}", event.getClass().getSimpleName());
             return;
         }
         SessionTasks sessionTasks = sessionHandler.getItsSessionTasks();
-        sessionTasks.enqueueAndExecute(event, eventsExecutor);
+        sessionTasks.enqueueAndExecute(event, kind, eventsExecutor);
         if(logger.isDebugEnabled()){
             Object[] args = new Object[]{sessionHandler.getID(),
                     eventsBlockingQueue.size(),
@@ -37,7 +37,13 @@ public abstract class SessionEventHandler {
         itsSessionTasks = new SessionTasksImpl(this);
     }
 
-    public abstract void handleNextEvent(EventObject event);
+    /**
+     * Handles the event taken from the session queue
+     *
+     * @param event - an event to handle
+     * @param kind  - kind of the event, as classified by the listener
+     */
+    public abstract void handleNextEvent(EventObject event, EventKind kind);
 
     public abstract String getID();
 
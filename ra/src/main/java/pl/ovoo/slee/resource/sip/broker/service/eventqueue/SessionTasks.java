@@ -35,8 +35,9 @@ public interface SessionTasks extends Runnable {
      * It adds event for execution.
      *
      * @param message  - sip message to enqueue
+     * @param kind     - kind of the event
      * @param executor - executor instance that runs the tasks
      */
-    void enqueueAndExecute(EventObject message, ThreadPoolExecutor executor);
+    void enqueueAndExecute(EventObject message, EventKind kind, ThreadPoolExecutor executor);
 
 }
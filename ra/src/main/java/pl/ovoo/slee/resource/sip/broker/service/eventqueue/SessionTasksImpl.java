@@ -21,8 +21,8 @@ package pl.ovoo.slee.resource.sip.broker.service.eventqueue;
 
 import org.slf4j.Logger;
 
+import java.util.ArrayDeque;
 import java.util.EventObject;
-import java.util.LinkedList;
 import java.util.Queue;
 import java.util.concurrent.ThreadPoolExecutor;
 
@@ -41,7 +41,11 @@ public class SessionTasksImpl implements SessionTasks {
 
     private RunStatus itsStatus = RunStatus.EMPTY;
     private final SessionEventHandler eventHandler;
-    private final Queue<EventObject> queue = new LinkedList<>();
+    // events and their kinds, enqueued and polled together
+    private final Queue<EventObject> queue = new ArrayDeque<>();
+    private final Queue<EventKind> kinds = new ArrayDeque<>();
+    // kind of the event returned by the last getNextEvent call
+    private EventKind nextEventKind;
     private final Logger logger;
 
     public SessionTasksImpl(SessionEventHandler eventHandler) {
@@ -50,14 +54,15 @@ public class SessionTasksImpl implements SessionTasks {
     }
 
     @Override
-    public synchronized void enqueueAndExecute(EventObject event, ThreadPoolExecutor executor) {
+    public synchronized void enqueueAndExecute(EventObject event, EventKind kind, ThreadPoolExecutor executor) {
         boolean firstEvent = false;
         if (itsStatus == RunStatus.EMPTY) {
             itsStatus = RunStatus.ENQUEUED;
             firstEvent = true;
         }
         queue.add(event);
-        logger.debug("Event {} enqueued, current queue status: {}", event.getClass().getSimpleName(), itsStatus);
+        kinds.add(kind);
+        logger.debug("Event {} enqueued, current queue status: {}", kind, itsStatus);
 
         if (firstEvent) {
             // status changed from empty to enqueued,
@@ -74,6 +79,7 @@ public class SessionTasksImpl implements SessionTasks {
      */
     private synchronized EventObject getNextEvent() {
         EventObject event = queue.poll();
+        nextEventKind = kinds.poll();
         if (event == null) {
             // no more messages to process
             // status updated here in order to be possible to enqueue message
@@ -90,8 +96,9 @@ public class SessionTasksImpl implements SessionTasks {
         logger.debug("Starting executor");
         EventObject event = getNextEvent();
         while (event != null) {
-            logger.debug("Starting event processing: {}", event.getClass().getSimpleName());
-            eventHandler.handleNextEvent(event);
+            // nextEventKind is only written by the thread running this task
+            logger.debug("Starting event processing: {}", nextEventKind);
+            eventHandler.handleNextEvent(event, nextEventKind);
             event = getNextEvent();
         }
     }
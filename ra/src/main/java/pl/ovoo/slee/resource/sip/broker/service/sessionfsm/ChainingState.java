@@ -19,13 +19,18 @@
  */
 package pl.ovoo.slee.resource.sip.broker.service.sessionfsm;
 
+import pl.ovoo.slee.resource.sip.broker.service.ASHandler;
 import pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler;
 import pl.ovoo.slee.resource.sip.broker.service.HandlerReferenceWrapper;
+import pl.ovoo.slee.resource.sip.broker.service.HandlerTimerEvent;
+import pl.ovoo.slee.resource.sip.broker.service.ImScfHandler;
 import pl.ovoo.slee.resource.sip.broker.service.OrchestratedSession;
+import pl.ovoo.slee.resource.sip.broker.service.ParallelGroup;
 import pl.ovoo.slee.resource.sip.broker.service.SendResponseError;
 import pl.ovoo.slee.resource.sip.broker.service.UnexpectedSipMessageError;
 import pl.ovoo.slee.resource.sip.broker.service.UnrecoverableError;
 import pl.ovoo.slee.resource.sip.broker.service.config.OrchestrationRuleset;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventKind;
 
 import javax.sip.Dialog;
 import javax.sip.RequestEvent;
@@ -33,7 +38,6 @@ import javax.sip.ResponseEvent;
 import javax.sip.ServerTransaction;
 import javax.sip.TimeoutEvent;
 import javax.sip.header.CSeqHeader;
-import javax.sip.header.ExtensionHeader;
 import javax.sip.header.ReasonHeader;
 import javax.sip.header.RequireHeader;
 import javax.sip.header.ViaHeader;
@@ -103,15 +107,22 @@ public class ChainingState extends SessionStateBase {
      */
     @Override
     protected State handleInvite(RequestEvent event) throws SendResponseError {
+        B2BDialogsHandler invitingHandler = context.getCurrentHandler();
+        if (!invitingHandler.isImScf()) {
+            // INVITE coming from the AS resolves its hedged INVITE attempts
+            ((ASHandler) invitingHandler).processIncomingInvite(event.getRequest());
+        }
+
         // read next handler to INVITE (from the context)
-        B2BDialogsHandler nextHandler = context.getCurrentHandler().getNextHandler();
+        B2BDialogsHandler nextHandler = invitingHandler.getNextHandler();
         return continueSetupWithNextAsOrImScf(event.getRequest(), nextHandler);
     }
 
 
     /**
      * Process the CANCEL Request
-     * It sends CANCEL to the next handler in the chain, waits for provisional response to send CANCEL
+     * CANCEL of the calling party tears down all the legs at once.
+     * CANCEL of an AS is sent to the next handler in the chain, waits for provisional response to send CANCEL
      * or forwards the response back (in case next AS already canceled).
      * The session stays in this state in order to pass 487 response back (rollback)
      * and handle potential new INVITE from AS (initiating CANCEL).
@@ -125,7 +136,14 @@ public class ChainingState extends SessionStateBase {
         B2BDialogsHandler cancelSender = fetchB2BHandlerFromDialog(event.getDialog());
         B2BDialogsHandler nextHandler = cancelSender.getNextHandler();
 
-        if(nextHandler.getHandlerState() == INVITED) {
+        if (isCallingPartyCancel(cancelSender)) {
+            return cancelAllLegs();
+
+        } else if (cancelSender.getHandlerState() == TERMINATED) {
+            // setup of this node already stopped by the broker (parallel group member failure)
+            logger.debug("CANCEL from terminated handler: {}, no action", cancelSender);
+
+        } else if(nextHandler.getHandlerState() == INVITED) {
             logger.debug("Next handler: {} waiting for any response before sending CANCEL");
             nextHandler.setHandlerState(SET_TO_CANCEL);
 
@@ -203,12 +221,13 @@ public class ChainingState extends SessionStateBase {
      * This method process the sip INFO Request
      *
      * @param event - request event
+     * @param kind  - INFO kind
      */
     @Override
-    protected State handleInfo(RequestEvent event) throws UnrecoverableError {
+    protected State handleInfo(RequestEvent event, EventKind kind) throws UnrecoverableError {
         logger.trace("handleInfo");
 
-        return handleCommonInfoLogic(event);
+        return handleCommonInfoLogic(event, kind);
     }
 
 
@@ -216,9 +235,10 @@ public class ChainingState extends SessionStateBase {
      * This method process the sip Response
      *
      * @param event - response event
+     * @param kind  - response kind
      */
     @Override
-    protected State handleResponse(ResponseEvent event) throws SendResponseError, UnrecoverableError {
+    protected State handleResponse(ResponseEvent event, EventKind kind) throws SendResponseError, UnrecoverableError {
         logger.debug("handleResponse, statusCode: {}", event.getResponse().getStatusCode());
         Response response = event.getResponse();
         int statusCode = response.getStatusCode();
@@ -241,15 +261,23 @@ public class ChainingState extends SessionStateBase {
             return this;
         }
 
+        boolean isInviteResponse = cseq.getMethod().equals(Request.INVITE);
+        if (isInviteResponse && statusCode > Response.TRYING && statusCode < Response.MULTIPLE_CHOICES
+                && !respondingHandler.isImScf()) {
+            // alternative endpoint (if failed over) responded
+            ((ASHandler) respondingHandler).confirmFailover();
+        }
+
         if (statusCode == Response.OK) {
             return processResponseOK(event);
 
         } else if (statusCode == Response.SESSION_PROGRESS) {
             respondingHandler.setHandlerState(PROVISIONAL);
-            return processResponseSessionProgress(event, respondingHandler, previousHandler);
+            return processResponseSessionProgress(event, kind, respondingHandler, previousHandler);
 
         } else if (response.getHeader(ReasonHeader.NAME) != null ) { // Reason header present
             respondingHandler.setHandlerState(TERMINATED);
+            terminateParallelMembers(respondingHandler);
             // unconditional stop logic
             // reset current handler to the one that would get the response
             context.setCurrentHandler(previousHandler);
@@ -258,20 +286,27 @@ public class ChainingState extends SessionStateBase {
 
         } else if (statusCode >= Response.MULTIPLE_CHOICES) {
             respondingHandler.setHandlerState(TERMINATED);
+            if (isInviteResponse && statusCode == Response.SERVICE_UNAVAILABLE
+                    && tryEndpointFailover(respondingHandler)) {
+                // parallel members are kept, the primary setup continues on the alternative endpoint
+                return this;
+            }
             // check if stop or skip logic for this ruleset
             OrchestrationRuleset.ErrorLogic logic = context.itsRuleset.getResponseHandling(statusCode);
             logger.debug("Error response, applying logic: {}", logic);
             if(logic == OrchestrationRuleset.ErrorLogic.STOP){
+                terminateParallelMembers(respondingHandler);
                 // reset current handler to the one that would get the response
                 context.setCurrentHandler(previousHandler);
                 checkAndApplyRollback(previousHandler);
                 return forwardErrorResponseBack(previousHandler, event.getResponse());
 
             } else if(skipNotPossible(respondingHandler)) {
+                terminateParallelMembers(respondingHandler);
                 return forwardErrorResponseBack(previousHandler, event.getResponse());
 
             } else {
-                // SKIP logic
+                // SKIP logic, the parallel members (if any) are kept
                 return executeSkipLogic(respondingHandler);
             }
 
@@ -290,6 +325,37 @@ public class ChainingState extends SessionStateBase {
     }
 
 
+    /**
+     * Handles AS timers if the AS has not responded yet:
+     * on hedge timer INVITE is sent to the alternative endpoint,
+     * on setup deadline INVITE is abandoned and the AS is handled as timed out.
+     *
+     * @param event - timer event
+     */
+    @Override
+    protected State handleTimer(HandlerTimerEvent event) throws SendResponseError {
+        B2BDialogsHandler handler = event.getHandler();
+        boolean pending = handler == context.getCurrentHandler()
+                && (handler.getHandlerState() == INVITED || handler.getHandlerState() == PROVISIONAL);
+
+        if (pending && event.getTimerType() == HandlerTimerEvent.TimerType.HEDGE) {
+            ((ASHandler) handler).sendHedgedInvite();
+
+        } else if (pending && event.getTimerType() == HandlerTimerEvent.TimerType.SETUP_DEADLINE
+                && ((ASHandler) handler).isSetupDeadlineExpired(event)) {
+            logger.info("Setup timeout of {}", handler);
+            ((ASHandler) handler).abandonInvite();
+            handler.setHandlerState(TERMINATED);
+            return processInviteTimeout(handler);
+
+        } else {
+            logger.debug("Timer {} expired for {} in state {}, ignoring", new Object[]{event.getTimerType(), handler,
+                    handler.getHandlerState()});
+        }
+        return this;
+    }
+
+
     @Override
     protected State processTimeout(TimeoutEvent timeoutEvent)
             throws SendResponseError, UnexpectedSipMessageError {
@@ -314,34 +380,106 @@ public class ChainingState extends SessionStateBase {
                     return this;
                 }
 
-                // check if stop or skip logic for this ruleset
-                OrchestrationRuleset.ErrorLogic logic =
-                                            context.itsRuleset.getResponseHandling(Response.REQUEST_TIMEOUT);
-                logger.debug("Timeout event, applying logic: {}", logic);
+                return processInviteTimeout(respondingHandler);
+            } else {
+                logger.error("Timeout on client transaction for {}", request.getMethod());
+                throw new UnexpectedSipMessageError("ClientTransaction timeout " + request.getMethod());
+            }
+        }
 
-                // find session handler from client transaction
-                B2BDialogsHandler handlerToRespond = respondingHandler.getPreviousHandler();
+    }
 
-                if (logic == OrchestrationRuleset.ErrorLogic.STOP) {
-                    // reset current handler to the one that would get the response
-                    context.setCurrentHandler(handlerToRespond);
-                    checkAndApplyRollback(handlerToRespond);
-                    return sendNewResponseBack(handlerToRespond, Response.REQUEST_TIMEOUT);
 
-                } else if (skipNotPossible(respondingHandler)) {
+    /**
+     * Handles INVITE timeout (either client transaction timeout or AS setup timeout) as 408 (Request Timeout):
+     * tries failover first, then applies the ruleset error logic.
+     *
+     * @param respondingHandler - handler that timed out
+     *
+     * @return next state
+     */
+    private State processInviteTimeout(B2BDialogsHandler respondingHandler) throws SendResponseError {
+        if (tryEndpointFailover(respondingHandler)) {
+            return this;
+        }
 
-                    return sendNewResponseBack(handlerToRespond, Response.REQUEST_TIMEOUT);
+        // check if stop or skip logic for this ruleset
+        OrchestrationRuleset.ErrorLogic logic = context.itsRuleset.getResponseHandling(Response.REQUEST_TIMEOUT);
+        logger.debug("Timeout event, applying logic: {}", logic);
 
-                } else {
-                    // SKIP logic
-                    return executeSkipLogic(respondingHandler);
-                }
-            } else {
-                logger.error("Timeout on client transaction for {}", request.getMethod());
-                throw new UnexpectedSipMessageError("ClientTransaction timeout " + request.getMethod());
+        B2BDialogsHandler handlerToRespond = respondingHandler.getPreviousHandler();
+
+        if (logic == OrchestrationRuleset.ErrorLogic.STOP) {
+            terminateParallelMembers(respondingHandler);
+            // reset current handler to the one that would get the response
+            context.setCurrentHandler(handlerToRespond);
+            checkAndApplyRollback(handlerToRespond);
+            return sendNewResponseBack(handlerToRespond, Response.REQUEST_TIMEOUT);
+
+        } else if (skipNotPossible(respondingHandler)) {
+            terminateParallelMembers(respondingHandler);
+            return sendNewResponseBack(handlerToRespond, Response.REQUEST_TIMEOUT);
+
+        } else {
+            // SKIP logic, the parallel members (if any) are kept
+            return executeSkipLogic(respondingHandler);
+        }
+    }
+
+
+    /**
+     * Tries to resend INVITE of the failed service to its alternative endpoint (intra-service failover).
+     * The failover is limited by the service retry budget and deadline.
+     * IM-SCF is failed over only to the alternative IM-SCF pool node.
+     *
+     * @param failedHandler - handler that timed out or responded with 503
+     *
+     * @return true if INVITE was sent to the alternative endpoint
+     */
+    private boolean tryEndpointFailover(B2BDialogsHandler failedHandler) {
+        if (failedHandler.getHandlerState() == SET_TO_CANCEL) {
+            return false;
+        }
+        if (failedHandler.isImScf()) {
+            return tryImScfFailover((ImScfHandler) failedHandler);
+        }
+
+        ASHandler failedAs = (ASHandler) failedHandler;
+        while (failedAs.selectFailoverEndpoint()) {
+            try {
+                failedAs.processOutgoingInvite(failedAs.getPassedInvite());
+                failedAs.setHandlerState(INVITED);
+                context.addDialog(failedAs.getOutgoingDialog());
+                return true;
+
+            } catch (UnrecoverableError e) {
+                logger.warn("Error when sending INVITE request to alternative endpoint", e);
             }
         }
+        return false;
+    }
+
 
+    /**
+     * Tries to resend B leg INVITE to the alternative IM-SCF pool node.
+     *
+     * @param failedImScf - IM-SCF handler that timed out or responded with 503
+     *
+     * @return true if INVITE was sent to the alternative node
+     */
+    private boolean tryImScfFailover(ImScfHandler failedImScf) {
+        while (failedImScf.selectFailoverEndpoint()) {
+            try {
+                failedImScf.processOutgoingInvite(failedImScf.getPassedInvite());
+                failedImScf.setHandlerState(INVITED);
+                context.addDialog(failedImScf.getOutgoingDialog());
+                return true;
+
+            } catch (UnrecoverableError e) {
+                logger.warn("Error when sending INVITE request to alternative IM-SCF", e);
+            }
+        }
+        return false;
     }
 
 
@@ -361,6 +499,7 @@ public class ChainingState extends SessionStateBase {
 
     /**
      * Executes skip logic for the response.
+     * The parallel group of the skipped handler continues, anchored at the handler preceding the skipped one.
      */
     private State executeSkipLogic(B2BDialogsHandler respondingAs) throws SendResponseError {
         logger.debug("Excluding Handler {} from orchestration within this session", respondingAs);
@@ -371,6 +510,7 @@ public class ChainingState extends SessionStateBase {
         // exclude failed AS from the chain, make the adjacent ASs point to each other
         previousAs.setNextHandler(nextAs);
         nextAs.setPreviousHandler(previousAs);
+        context.reanchorParallelGroups(respondingAs, previousAs);
 
         // failedAs removed from the chain, indicate its successor as next handler
         return continueSetupWithNextAsOrImScf(context.getLastIncomingInvite(), nextAs);
@@ -385,7 +525,7 @@ public class ChainingState extends SessionStateBase {
      *
      * @return next state
      */
-    private State continueSetupWithNextAsOrImScf(Request incomingRequest, B2BDialogsHandler nextHandler)
+    State continueSetupWithNextAsOrImScf(Request incomingRequest, B2BDialogsHandler nextHandler)
                         throws SendResponseError {
         logger.trace("continueSetupWithNextAsOrImScf");
 
@@ -400,9 +540,18 @@ public class ChainingState extends SessionStateBase {
             nextHandler.setHandlerState(INVITED);
             context.addDialog(nextHandler.getOutgoingDialog());
 
+            ParallelGroup group = nextHandler.getParallelGroup();
+            if (group != null) {
+                return inviteParallelMembers(incomingRequest, group);
+            }
+
         } catch (UnrecoverableError e) {
             logger.warn("Error when sending INVITE request", e);
 
+            if (tryEndpointFailover(nextHandler)) {
+                return this;
+            }
+
             // Response.SERVICE_UNAVAILABLE - default error code for fatal errors like request sending exception
             OrchestrationRuleset.ErrorLogic logic = context.itsRuleset.getResponseHandling(Response.SERVICE_UNAVAILABLE);
             logger.debug("Request Error, applying logic: {}", logic);
@@ -432,7 +581,28 @@ public class ChainingState extends SessionStateBase {
     }
 
 
-    private State processResponseSessionProgress(ResponseEvent responseEvent,
+    /**
+     * Sends the INVITE to the members of the primary parallel group, the chain continues with the primary.
+     *
+     * @param incomingRequest - the request passed to the primary
+     * @param group           - parallel group of the primary
+     *
+     * @return next state
+     */
+    private State inviteParallelMembers(Request incomingRequest, ParallelGroup group) throws SendResponseError {
+        State nextState = this;
+        for (ASHandler failedMember : group.inviteMembers(incomingRequest)) {
+            // Response.SERVICE_UNAVAILABLE - default error code for request sending exception
+            nextState = mergeParallelMemberFailure(failedMember, null, Response.SERVICE_UNAVAILABLE);
+            if (!group.isSetupPending()) {
+                break;
+            }
+        }
+        return nextState;
+    }
+
+
+    private State processResponseSessionProgress(ResponseEvent responseEvent, EventKind kind,
                                                  B2BDialogsHandler respondingHandler,
                                                  B2BDialogsHandler previousHandler)
                                 throws SendResponseError, UnrecoverableError {
@@ -442,8 +612,7 @@ public class ChainingState extends SessionStateBase {
         RequireHeader requireHeader = (RequireHeader) response.getHeader(RequireHeader.NAME);
         boolean isReliable = requireHeader != null && requireHeader.getOptionTag().equalsIgnoreCase(TAG_100_REL);
 
-        ExtensionHeader xAsHeader = (ExtensionHeader) response.getHeader(X_AS);
-        if(xAsHeader == null || "false".equals(xAsHeader.getValue()) ){
+        if(kind != EventKind.AS_RESPONSE){
             // this is a regular 183 response, send it back without special treatment
             if(isReliable) {
                 logger.debug("Reliable 183 response, forward to handler: {}", respondingHandler.getPreviousHandler());
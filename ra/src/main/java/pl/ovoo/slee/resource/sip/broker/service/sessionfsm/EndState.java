@@ -22,6 +22,7 @@ package pl.ovoo.slee.resource.sip.broker.service.sessionfsm;
 import pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler;
 import pl.ovoo.slee.resource.sip.broker.service.OrchestratedSession;
 import pl.ovoo.slee.resource.sip.broker.service.SendResponseError;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventKind;
 
 import javax.sip.RequestEvent;
 import javax.sip.ResponseEvent;
@@ -73,15 +74,17 @@ public class EndState extends SessionStateBase {
      * This allows the chain to complete, for instance by passing response from IM-SCF B leg to CANCEL initiator.
      *
      * @param event - response event
+     * @param kind  - response kind
      */
     @Override
-    protected State handleResponse(ResponseEvent event) throws SendResponseError {
+    protected State handleResponse(ResponseEvent event, EventKind kind) throws SendResponseError {
         logger.debug("handleResponse, statusCode: {}", event.getResponse().getStatusCode());
         B2BDialogsHandler respondingHandler = fetchB2BHandlerFromClientTx(event.getClientTransaction());
         B2BDialogsHandler previousHandler = respondingHandler.getPreviousHandler();
 
         logger.debug("Forwarding response back to {}", previousHandler);
         respondingHandler.setHandlerState(TERMINATED);
+        terminateParallelMembers(respondingHandler);
         previousHandler.forwardResponse( event.getResponse(), previousHandler.getIncomingDialog());
 
         return this;
@@ -21,13 +21,12 @@ package pl.ovoo.slee.resource.sip.broker.service.sessionfsm;
 
 import pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler;
 import pl.ovoo.slee.resource.sip.broker.service.OrchestratedSession;
-import pl.ovoo.slee.resource.sip.broker.service.UnrecoverableError;
+import pl.ovoo.slee.resource.sip.broker.service.SendResponseError;
 
 import javax.sip.RequestEvent;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 
-import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.HandlerState.INVITED;
 import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.HandlerState.SESSION_PROGRESS_REPORTED;
 
 /**
@@ -52,7 +51,7 @@ public class InitialState extends SessionStateBase {
         try {
             // continue handling requests/responses with session setup state
             return sendFirstASRequest(requestEvent);
-        } catch (UnrecoverableError e) {
+        } catch (SendResponseError e) {
             logger.error("Unable to send first INVITE", e);
             sendImmediateErrorResponse(Response.SERVER_INTERNAL_ERROR, requestEvent,
                     "ServiceBroker error: " + e.getMessage());
@@ -60,21 +59,17 @@ public class InitialState extends SessionStateBase {
         }
     }
 
-    private State sendFirstASRequest(RequestEvent requestEvent) throws UnrecoverableError {
+    private State sendFirstASRequest(RequestEvent requestEvent) throws SendResponseError {
         logger.trace("sendFirstASRequest");
 
         Request incomingRequest = requestEvent.getRequest();
 
         // initial INVITE -> current handler reference set first AS
         B2BDialogsHandler handlerToInvite = context.getFirstChainedAs();
-        context.setCurrentHandler(handlerToInvite);
         logger.debug("Found next AS to handle: {}", handlerToInvite);
 
-        handlerToInvite.processOutgoingInvite(incomingRequest);
-        context.addDialog(handlerToInvite.getOutgoingDialog());
-        handlerToInvite.setHandlerState(INVITED);
-
-        return new ChainingState(session);
+        // first AS is INVITEd as any other AS, the error logic applies if the INVITE can not be sent
+        return new ChainingState(session).continueSetupWithNextAsOrImScf(incomingRequest, handlerToInvite);
     }
 
 
@@ -23,8 +23,10 @@ import org.slf4j.Logger;
 import pl.ovoo.slee.resource.sip.broker.dispatcher.ServiceProvider;
 import pl.ovoo.slee.resource.sip.broker.service.ASHandler;
 import pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler;
+import pl.ovoo.slee.resource.sip.broker.service.DialogRelay;
 import pl.ovoo.slee.resource.sip.broker.service.ImScfHandler;
 import pl.ovoo.slee.resource.sip.broker.service.OrchestratedSession;
+import pl.ovoo.slee.resource.sip.broker.service.ParallelGroup;
 import pl.ovoo.slee.resource.sip.broker.service.SessionManager;
 import pl.ovoo.slee.resource.sip.broker.service.SipBrokerContext;
 import pl.ovoo.slee.resource.sip.broker.service.config.Endpoint;
@@ -38,11 +40,15 @@ import javax.sip.header.HeaderFactory;
 import javax.sip.header.ViaHeader;
 import javax.sip.message.MessageFactory;
 import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Session context to be used during the whole SIP session.
@@ -59,6 +65,8 @@ public class SessionContext {
     private final Logger logger;
     // first ASHandler in the chain
     private ASHandler firstAsHandler;
+    // all ASHandlers created within the session, including the ones excluded from the chain
+    private final List<ASHandler> asHandlers = new ArrayList<>();
     // this is the reference to the current ASHandler served
     private B2BDialogsHandler currentHandler;
     // INVITE request received from last AS (or ImScf)
@@ -71,6 +79,20 @@ public class SessionContext {
     private Set<Dialog> pendingDialogs = new HashSet<>();
     // CallIdHeader to ViaHeader mapping to identify the incoming INVITEs as potential retransmissions
     private transient Map<CallIdHeader, ViaHeader> initialInvitesIdentifiers = new HashMap<>();
+    // sequence of hedged INVITE attempts identifiers
+    private int attemptSequence;
+    // hedged INVITE attempts that lost the race, mapped to their handlers
+    private Map<String, ASHandler> discardedAttempts = new HashMap<>();
+    // IM-SCF pool node the session is pinned to, null if not selected yet
+    private Endpoint imScfEndpoint;
+    // indicates that the handlers dialog relays are set up
+    private boolean dialogRelaysArmed;
+    // teardown of all the legs, null if not started
+    private TeardownCoordinator teardown;
+    // indicates the session has been removed from the session manager
+    private boolean ended;
+    // relayed in-dialog requests not answered yet (answered by the listener threads)
+    private final Set<DialogRelay.RelayedTransaction> openRelayedTransactions = ConcurrentHashMap.newKeySet();
 
     public SessionContext(SipBrokerContext brokerContext, OrchestratedSession session, OrchestrationRuleset
             ruleset) {
@@ -100,6 +122,44 @@ public class SessionContext {
         return pendingDialogs.size();
     }
 
+    /**
+     * Removes the session from the session manager and releases its endpoints.
+     * Only the first call is effective.
+     *
+     * @return true if the session was removed by this call
+     */
+    public boolean endSession() {
+        if (ended) {
+            return false;
+        }
+        ended = true;
+        terminateRelayedTransactions();
+        getSessionManager().removeSession(itsSession.info.getSessionId());
+        brokerContext.getUsageParameters().incrementRunningOrchestratedSessionsCount(-1);
+        releaseEndpoints();
+        return true;
+    }
+
+    /**
+     * Starts the teardown of all the session legs, unless already started
+     *
+     * @param callingPartyStatusCode - status code of the response to the INVITE of IM-SCF A leg if still pending
+     *
+     * @return the teardown coordinator
+     */
+    public TeardownCoordinator startTeardown(int callingPartyStatusCode) {
+        if (teardown == null) {
+            terminateRelayedTransactions();
+            teardown = new TeardownCoordinator(this);
+            teardown.start(callingPartyStatusCode);
+        }
+        return teardown;
+    }
+
+    public TeardownCoordinator getTeardown() {
+        return teardown;
+    }
+
     public B2BDialogsHandler getCurrentHandler(){
         return currentHandler;
     }
@@ -108,6 +168,45 @@ public class SessionContext {
         currentHandler = handler;
     }
 
+    public void addRelayedTransaction(DialogRelay.RelayedTransaction relayedTransaction) {
+        openRelayedTransactions.add(relayedTransaction);
+    }
+
+    public void removeRelayedTransaction(DialogRelay.RelayedTransaction relayedTransaction) {
+        openRelayedTransactions.remove(relayedTransaction);
+    }
+
+    /**
+     * Responds with 487 to the relayed in-dialog requests not answered yet (RFC 3261 15.1.2).
+     * To be called when the session is terminated.
+     */
+    public void terminateRelayedTransactions() {
+        for (DialogRelay.RelayedTransaction relayedTransaction : openRelayedTransactions) {
+            relayedTransaction.respondTerminated();
+        }
+    }
+
+    /**
+     * Arms or disarms the dialog relays of all the handlers in the chain (from IM-SCF A to IM-SCF B)
+     *
+     * @param armed - true to relay the in-dialog requests without the FSM
+     */
+    public void setDialogRelaysArmed(boolean armed) {
+        if (armed == dialogRelaysArmed) {
+            return;
+        }
+        Logger relayLogger = armed ? getSessionLogger(DialogRelay.class) : null;
+        for (B2BDialogsHandler handler = imScfHandlerA; handler != null; handler = handler.getNextHandler()) {
+            if (armed) {
+                handler.armDialogRelays(relayLogger);
+            } else {
+                handler.disarmDialogRelays();
+            }
+        }
+        dialogRelaysArmed = armed;
+        logger.debug("Dialog relays armed: {}", armed);
+    }
+
 
     /*
      * Creates ASHandlers with physical endpoints from configured services.
@@ -118,17 +217,7 @@ public class SessionContext {
         Iterator<OrchestratedService> it = itsRuleset.getServicesIterator();
         ASHandler previousAs = null;
         while (it.hasNext()) {
-            OrchestratedService service = it.next();
-
-            ServiceProvider handler = brokerContext.internalServiceProvider;
-            if(service.isExternal()){
-                logger.trace("Internal ServiceProvider assigned");
-                // internal service handler
-                handler = brokerContext.externalServiceProvider;
-            }
-
-            Endpoint endpoint = service.nextEndpoint();
-            ASHandler asHandler = new ASHandler(endpoint, this, handler);
+            ASHandler asHandler = createAsHandler(it.next());
 
             if(firstAsHandler == null){
                 firstAsHandler = asHandler;
@@ -157,6 +246,125 @@ public class SessionContext {
         imScfHandlerB.setPreviousHandler(lastAs);
     }
 
+    /*
+     * Creates ASHandler of the chained service, together with the members of its parallel group (if any)
+     */
+    private ASHandler createAsHandler(OrchestratedService service) {
+        ASHandler asHandler = newAsHandler(service);
+
+        List<OrchestratedService> parallelServices = itsRuleset.getParallelApplications(service);
+        if (!parallelServices.isEmpty()) {
+            ParallelGroup group = new ParallelGroup(asHandler, this);
+            asHandler.setParallelGroup(group);
+            for (OrchestratedService parallelService : parallelServices) {
+                ASHandler member = newAsHandler(parallelService);
+                member.setParallelGroup(group);
+                group.addMember(member);
+            }
+            logger.trace("Added {}", group);
+        }
+        return asHandler;
+    }
+
+    private ASHandler newAsHandler(OrchestratedService service) {
+        ServiceProvider handler = brokerContext.internalServiceProvider;
+        if(service.isExternal()){
+            logger.trace("Internal ServiceProvider assigned");
+            // internal service handler
+            handler = brokerContext.externalServiceProvider;
+        }
+
+        Endpoint endpoint = service.nextEndpoint(getAffinityKey(service));
+        ASHandler asHandler = new ASHandler(service, endpoint, this, handler);
+        asHandlers.add(asHandler);
+        return asHandler;
+    }
+
+    /**
+     * Returns the parallel group member the INVITE attempt belongs to
+     *
+     * @param attemptId - attempt identifier of the INVITE passed back to the broker, might be null
+     *
+     * @return member or null if the INVITE does not come from a parallel group member
+     */
+    public ASHandler findParallelMember(String attemptId) {
+        if (attemptId == null) {
+            return null;
+        }
+        for (ASHandler asHandler : asHandlers) {
+            ParallelGroup group = asHandler.getParallelGroup();
+            if (group != null && group.getPrimary() == asHandler) {
+                ASHandler member = group.findMember(attemptId);
+                if (member != null) {
+                    return member;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Answers the members of the parallel groups anchored at the handler with the final response
+     * the handler has passed back
+     *
+     * @param handler  - handler the final response to INVITE has been passed to
+     * @param response - final response
+     */
+    public void mirrorFinalResponse(B2BDialogsHandler handler, Response response) {
+        for (ASHandler asHandler : asHandlers) {
+            ParallelGroup group = asHandler.getParallelGroup();
+            if (group != null && group.getPrimary() == asHandler && group.getAnchor() == handler) {
+                group.mirrorFinalResponse(response);
+            }
+        }
+    }
+
+    /**
+     * Moves the parallel groups anchored at the skipped handler to the handler preceding it in the chain
+     *
+     * @param skippedHandler - handler excluded from the chain
+     * @param previous       - handler preceding the skipped one
+     */
+    public void reanchorParallelGroups(B2BDialogsHandler skippedHandler, B2BDialogsHandler previous) {
+        for (ASHandler asHandler : asHandlers) {
+            ParallelGroup group = asHandler.getParallelGroup();
+            if (group != null && group.getPrimary() == asHandler && group.getAnchor() == skippedHandler) {
+                group.setAnchor(previous);
+            }
+        }
+    }
+
+    /**
+     * Tears down the members of the parallel groups which primary has been skipped, when the chained handler
+     * the group is anchored at (or the one following it) is being disconnected
+     *
+     * @param handler - handler being disconnected
+     */
+    public void terminateSkippedParallelGroups(B2BDialogsHandler handler) {
+        for (ASHandler asHandler : asHandlers) {
+            ParallelGroup group = asHandler.getParallelGroup();
+            if (group != null && group.getPrimary() == asHandler && group.isPrimarySkipped()
+                    && (group.getAnchor() == handler || group.getAnchor().getNextHandler() == handler)) {
+                group.terminateMembers();
+            }
+        }
+    }
+
+    /**
+     * Returns the members of the parallel groups which primary has been skipped,
+     * they are not reachable through the chain
+     */
+    public List<ASHandler> getSkippedParallelMembers() {
+        List<ASHandler> skippedMembers = new ArrayList<>(0);
+        for (ASHandler asHandler : asHandlers) {
+            ParallelGroup group = asHandler.getParallelGroup();
+            if (group != null && group.getPrimary() == asHandler && group.isPrimarySkipped()) {
+                skippedMembers.addAll(group.getMembers());
+            }
+        }
+        return skippedMembers;
+    }
+
     /**
      * Rollbacks the AS handlers references.
      * This resets the state of the responding AS and all the ASs that are behind the responding one in the chain.
@@ -178,17 +386,7 @@ public class SessionContext {
 
         ASHandler previousAs = lastSuccessAs;
         while (it.hasNext()) {
-            OrchestratedService service = it.next();
-
-            ServiceProvider handler = brokerContext.internalServiceProvider;
-            if(service.isExternal()){
-                logger.trace("Internal ServiceProvider assigned");
-                // internal service handler
-                handler = brokerContext.externalServiceProvider;
-            }
-
-            Endpoint endpoint = service.nextEndpoint();
-            ASHandler asHandler = new ASHandler(endpoint, this, handler);
+            ASHandler asHandler = createAsHandler(it.next());
 
             // link AS handlers
             previousAs.setNextHandler(asHandler);
@@ -208,6 +406,64 @@ public class SessionContext {
 
     }
 
+    /**
+     * Returns the subscriber identity the service endpoint selection sticks to.
+     *
+     * @param service - orchestrated service
+     *
+     * @return identity or null if the service does not use consistent hashing or the identity is not known
+     */
+    public String getAffinityKey(OrchestratedService service) {
+        OrchestratedService.HashKey hashKey = service.getHashKey();
+        if (hashKey == null) {
+            return null;
+        }
+        return hashKey == OrchestratedService.HashKey.CALLED ? itsSession.info.getCalledUser()
+                : itsSession.info.getCallingUser();
+    }
+
+    /**
+     * Returns IM-SCF pool node the session is pinned to, the node is selected on the first call.
+     *
+     * @return IM-SCF node or null if IM-SCF pool not configured
+     */
+    public Endpoint getImScfEndpoint() {
+        if (imScfEndpoint == null) {
+            OrchestratedService pool = brokerContext.getImScfPool();
+            if (pool != null) {
+                setImScfEndpoint(pool.nextEndpoint(getAffinityKey(pool)));
+                logger.debug("Session pinned to IM-SCF {}", imScfEndpoint);
+            }
+        }
+        return imScfEndpoint;
+    }
+
+    /**
+     * Pins the session to another IM-SCF pool node (on failover)
+     *
+     * @param imScfEndpoint - IM-SCF node
+     */
+    public void setImScfEndpoint(Endpoint imScfEndpoint) {
+        if (this.imScfEndpoint != null) {
+            this.imScfEndpoint.unbindSession();
+        }
+        if (imScfEndpoint != null) {
+            imScfEndpoint.bindSession();
+        }
+        this.imScfEndpoint = imScfEndpoint;
+    }
+
+    /**
+     * Releases endpoint INVITE limiter permits still held by the AS handlers of this session
+     * and the endpoints serving the session. To be called when the session is removed.
+     */
+    public void releaseEndpoints() {
+        for (ASHandler asHandler : asHandlers) {
+            asHandler.releaseEndpoints();
+        }
+        setImScfEndpoint(null);
+    }
+
     /**
      * Returns SipBrokerLogger instance.
      * Use this within session context in order to keep particular session traceable.
@@ -286,4 +542,32 @@ public class SessionContext {
     public ViaHeader findInitialInviteLastVia(CallIdHeader callIdToCheck) {
         return initialInvitesIdentifiers.get(callIdToCheck);
     }
+
+    /**
+     * Returns new INVITE attempt identifier, unique within this session
+     */
+    public String nextAttemptId() {
+        return Integer.toString(++attemptSequence);
+    }
+
+    /**
+     * Stores identifier of the INVITE attempt that lost the race
+     *
+     * @param attemptId - attempt identifier
+     * @param handler   - handler that sent the attempt
+     */
+    public void addDiscardedAttempt(String attemptId, ASHandler handler) {
+        discardedAttempts.put(attemptId, handler);
+    }
+
+    /**
+     * Returns the handler of the discarded INVITE attempt
+     *
+     * @param attemptId - attempt identifier to check, might be null
+     *
+     * @return handler that sent the attempt or null if the attempt was not discarded
+     */
+    public ASHandler findDiscardedAttemptHandler(String attemptId) {
+        return attemptId == null ? null : discardedAttempts.get(attemptId);
+    }
 }
@@ -24,6 +24,7 @@ import pl.ovoo.slee.resource.sip.broker.service.HandlerReferenceWrapper;
 import pl.ovoo.slee.resource.sip.broker.service.OrchestratedSession;
 import pl.ovoo.slee.resource.sip.broker.service.SendResponseError;
 import pl.ovoo.slee.resource.sip.broker.service.UnrecoverableError;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventKind;
 
 import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
@@ -85,9 +86,10 @@ public class SessionEndingState extends SessionStateBase {
      * This method process the sip Response from IM-SCF (in this state)
      *
      * @param event - response event
+     * @param kind  - response kind
      */
     @Override
-    protected State handleResponse(ResponseEvent event) throws SendResponseError {
+    protected State handleResponse(ResponseEvent event, EventKind kind) throws SendResponseError {
         logger.debug("handleResponse, statusCode: {}", event.getResponse().getStatusCode());
         Response response = event.getResponse();
 
@@ -25,6 +25,7 @@ import pl.ovoo.slee.resource.sip.broker.service.OrchestratedSession;
 import pl.ovoo.slee.resource.sip.broker.service.SendResponseError;
 import pl.ovoo.slee.resource.sip.broker.service.UnexpectedSipMessageError;
 import pl.ovoo.slee.resource.sip.broker.service.UnrecoverableError;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventKind;
 import pl.ovoo.slee.resource.sip.broker.utils.MessageUtils;
 
 import javax.sip.Dialog;
@@ -49,11 +50,17 @@ public class SessionOngoingState extends SessionStateBase {
         super(session);
     }
 
+    @Override
+    public boolean isDialogRelayState() {
+        return true;
+    }
+
     protected State handleBye(RequestEvent event) throws UnrecoverableError {
         logger.trace("handleBye");
 
         Request incomingBye = event.getRequest();
         logger.debug("Incoming BYE:\n{}", incomingBye);
+        context.terminateRelayedTransactions();
 
         ServerTransaction serverTransaction = event.getServerTransaction();
         B2BDialogsHandler byeSendingHandler = fetchB2BHandlerFromDialog(event.getDialog());
@@ -95,11 +102,12 @@ public class SessionOngoingState extends SessionStateBase {
      * This method process the sip INFO Request
      *
      * @param event - INFO request event
+     * @param kind  - INFO kind
      */
     @Override
-    protected State handleInfo(RequestEvent event) throws UnrecoverableError {
+    protected State handleInfo(RequestEvent event, EventKind kind) throws UnrecoverableError {
         logger.trace("handleInfo");
-        return handleCommonInfoLogic(event);
+        return handleCommonInfoLogic(event, kind);
     }
 
 
@@ -107,9 +115,10 @@ public class SessionOngoingState extends SessionStateBase {
      * This method process the sip Response
      *
      * @param event - Response event
+     * @param kind  - response kind
      */
     @Override
-    protected State handleResponse(ResponseEvent event) throws SendResponseError, UnexpectedSipMessageError {
+    protected State handleResponse(ResponseEvent event, EventKind kind) throws SendResponseError, UnexpectedSipMessageError {
         logger.debug("handleResponse, statusCode: {}", event.getResponse().getStatusCode());
         Response response = event.getResponse();
 
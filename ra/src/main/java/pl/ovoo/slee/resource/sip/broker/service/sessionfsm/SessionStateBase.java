@@ -25,10 +25,15 @@ import pl.ovoo.slee.resource.sip.broker.dispatcher.InternalServiceProvider;
 import pl.ovoo.slee.resource.sip.broker.service.ASHandler;
 import pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler;
 import pl.ovoo.slee.resource.sip.broker.service.HandlerReferenceWrapper;
+import pl.ovoo.slee.resource.sip.broker.service.HandlerTimerEvent;
+import pl.ovoo.slee.resource.sip.broker.service.ImScfHandler;
 import pl.ovoo.slee.resource.sip.broker.service.OrchestratedSession;
+import pl.ovoo.slee.resource.sip.broker.service.ParallelGroup;
 import pl.ovoo.slee.resource.sip.broker.service.SendResponseError;
 import pl.ovoo.slee.resource.sip.broker.service.UnexpectedSipMessageError;
 import pl.ovoo.slee.resource.sip.broker.service.UnrecoverableError;
+import pl.ovoo.slee.resource.sip.broker.service.config.OrchestrationRuleset;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventKind;
 import pl.ovoo.slee.resource.sip.broker.utils.MessageUtils;
 
 import javax.sip.ClientTransaction;
@@ -42,8 +47,9 @@ import javax.sip.SipException;
 import javax.sip.TimeoutEvent;
 import javax.sip.TransactionAlreadyExistsException;
 import javax.sip.TransactionUnavailableException;
+import javax.sip.header.CSeqHeader;
 import javax.sip.header.CallIdHeader;
-import javax.sip.header.ExtensionHeader;
+import javax.sip.header.ReasonHeader;
 import javax.sip.header.ViaHeader;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
@@ -65,8 +71,6 @@ import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.Handler
 public abstract class SessionStateBase implements State {
 
     protected static final String TAG_100_REL = "100rel";
-    protected static final String X_FCI = "x-fci";
-    protected static final String X_AS = "x-as";
     protected final OrchestratedSession session;
     protected final SessionContext context;
     protected final Logger logger;
@@ -78,44 +82,74 @@ public abstract class SessionStateBase implements State {
     }
 
     @Override
-    public State handleEvent(EventObject event) {
-
-        if (event instanceof RequestEvent) {
-
-            try {
-                return handleRequest((RequestEvent) event);
-            } catch (SendResponseError | UnrecoverableError e) {
-                return handleInternalError("Request processing error - " + e.getMessage(), e);
-            }
-
-        } else if (event instanceof ResponseEvent) {
+    public State handleEvent(EventObject event, EventKind kind) {
+
+        switch (kind) {
+            case RESPONSE:
+            case AS_RESPONSE:
+                try {
+                    ResponseEvent responseEvent = (ResponseEvent) event;
+                    if (isInviteAttemptResponse(responseEvent)) {
+                        return this;
+                    }
+                    B2BDialogsHandler respondingHandler = fetchB2BHandlerFromClientTx(
+                            responseEvent.getClientTransaction());
+                    if (respondingHandler.isParallelMember()) {
+                        return handleParallelMemberResponse(responseEvent, (ASHandler) respondingHandler);
+                    }
+                    return handleResponse(responseEvent, kind);
+                } catch (Exception e){
+                    return handleInternalError("Response processing error - " + e.getMessage(), e);
+                }
 
-            try {
-                return handleResponse((ResponseEvent) event);
-            } catch (Exception e){
-                return handleInternalError("Response processing error - " + e.getMessage(), e);
-            }
+            case TIMEOUT:
+                try {
+                    TimeoutEvent timeoutEvent = (TimeoutEvent) event;
+                    if (isInviteAttemptTimeout(timeoutEvent)) {
+                        return this;
+                    }
+                    ASHandler timeoutMember = findParallelMember(timeoutEvent);
+                    if (timeoutMember != null) {
+                        return handleParallelMemberTimeout(timeoutEvent, timeoutMember);
+                    }
+                    return processTimeout(timeoutEvent);
+                } catch (SendResponseError | UnexpectedSipMessageError e) {
+                    return handleInternalError("Timeout processing error - " + e.getMessage(), e);
+                }
 
-        } else if (event instanceof TimeoutEvent) {
+            case DIALOG_TIMEOUT:
+                logger.debug("Received DialogTimeoutEvent in state: {}", getClass().getSimpleName());
+                checkAndRemoveSession(((DialogTimeoutEvent) event).getDialog());
+                return this;
 
-            try {
-                return processTimeout((TimeoutEvent) event);
-            } catch (SendResponseError | UnexpectedSipMessageError e) {
-                return handleInternalError("Timeout processing error - " + e.getMessage(), e);
-            }
+            case DIALOG_TERMINATED:
+                logger.debug("Received DialogTerminatedEvent in state: {}", getClass().getSimpleName());
+                checkAndRemoveSession(((DialogTerminatedEvent) event).getDialog());
+                return this;
 
-        } else if (event instanceof DialogTimeoutEvent) {
-            logger.debug("Received DialogTimeoutEvent in state: {}", getClass().getSimpleName());
-            checkAndRemoveSession(((DialogTimeoutEvent) event).getDialog());
-            return this;
+            case TIMER:
+                try {
+                    HandlerTimerEvent timerEvent = (HandlerTimerEvent) event;
+                    if (timerEvent.getHandler().isParallelMember()) {
+                        return handleParallelMemberTimer(timerEvent, (ASHandler) timerEvent.getHandler());
+                    }
+                    return handleTimer(timerEvent);
+                } catch (SendResponseError e) {
+                    return handleInternalError("Timer processing error - " + e.getMessage(), e);
+                }
 
-        } else if (event instanceof DialogTerminatedEvent) {
-            logger.debug("Received DialogTerminatedEvent in state: {}", getClass().getSimpleName());
-            checkAndRemoveSession(((DialogTerminatedEvent) event).getDialog());
-            return this;
+            default:
+                try {
+                    RequestEvent requestEvent = (RequestEvent) event;
+                    ASHandler requestingMember = findParallelMember(requestEvent, kind);
+                    if (requestingMember != null) {
+                        return handleParallelMemberRequest(requestEvent, kind, requestingMember);
+                    }
+                    return handleRequest(requestEvent, kind);
+                } catch (SendResponseError | UnrecoverableError e) {
+                    return handleInternalError("Request processing error - " + e.getMessage(), e);
+                }
         }
-
-        throw new UnsupportedOperationException("Unsupported event: " + getClass().getName());
     }
 
     /**
@@ -131,9 +165,13 @@ public abstract class SessionStateBase implements State {
             if(context.getDialogsCount() == 0){
                 logger.trace("Last dialog terminated, removing the session for key: {}",
                         context.itsSession.info.getSessionId());
-                context.getSessionManager().removeSession(context.itsSession.info.getSessionId());
-                context.brokerContext.getUsageParameters().incrementRunningOrchestratedSessionsCount(-1);
-                return true;
+                TeardownCoordinator teardown = context.getTeardown();
+                if(teardown != null && !teardown.isFinished()){
+                    // all the legs are gone, no more teardown responses to wait for
+                    teardown.abort();
+                    return true;
+                }
+                return context.endSession();
             } else {
                 // still some dialog to complete
                 logger.trace("Still {} dialogs pending", context.getDialogsCount());
@@ -147,52 +185,60 @@ public abstract class SessionStateBase implements State {
     }
 
 
-    protected State handleRequest(RequestEvent event)
+    protected State handleRequest(RequestEvent event, EventKind kind)
             throws SendResponseError, UnrecoverableError {
         logger.trace("handleRequest");
         Request request = event.getRequest();
 
-        if(request.getMethod().equals(Request.INVITE)){
-
-            // do common peprocessing for all the INVITE requests, check if retransmission not happened
-            if(preprocessInviteRequest(event)){
-                return handleInvite(event);
-            } else {
-                // it was a retransmission of the INVITE, nothing to do
-                return this;
-            }
-
-        } else if (request.getMethod().equals(Request.ACK)){
-
-            return handleAck(event);
-
-        } else if (request.getMethod().equals(Request.BYE)){
+        switch (kind) {
+            case INITIAL_INVITE:
+            case REINVITE:
+            case AUX_INVITE:
+                return handleInviteRequest(event);
 
-            return handleBye(event);
+            case ACK:
+                return handleAck(event);
 
-        } else if (request.getMethod().equals(Request.PRACK)){
+            case BYE:
+                return handleBye(event);
 
-            return handlePrack(event);
+            case PRACK:
+                return handlePrack(event);
 
-        } else if (request.getMethod().equals(Request.CANCEL)){
+            case CANCEL:
+                sendOkToCancel(request,event.getServerTransaction());
+                return handleCancel(event);
 
-            sendOkToCancel(request,event.getServerTransaction());
+            case OPTIONS:
+                return handleOptions(event);
 
-            return handleCancel(event);
+            case INFO:
+            case FCI_INFO:
+                return handleInfo(event, kind);
 
-        } else if (request.getMethod().equals(Request.OPTIONS)){
-
-            return handleOptions(event);
+            default:
+                // TODO: add support for other methods
+                logger.warn("Unsupported method: {}", request.getMethod());
+                sendImmediateErrorResponse(Response.METHOD_NOT_ALLOWED, event, "Method not supported");
+                return this;
+        }
+    }
 
-        } else if (request.getMethod().equals(Request.INFO)){
+    private State handleInviteRequest(RequestEvent event) throws SendResponseError, UnrecoverableError {
+        Request request = event.getRequest();
 
-            return handleInfo(event);
+        ASHandler attemptHandler = context.findDiscardedAttemptHandler(MessageUtils.getAttemptId(request));
+        if (attemptHandler != null) {
+            logger.debug("INVITE from the discarded attempt of {}, rejecting", attemptHandler);
+            attemptHandler.rejectDiscardedAttemptInvite(event);
+            return this;
+        }
 
+        // do common peprocessing for all the INVITE requests, check if retransmission not happened
+        if(preprocessInviteRequest(event)){
+            return handleInvite(event);
         } else {
-            // TODO: add support for other methods
-            logger.warn("Unsupported method: {}", request.getMethod());
-            sendImmediateErrorResponse(Response.METHOD_NOT_ALLOWED, event, "Method not supported");
-
+            // it was a retransmission of the INVITE, nothing to do
             return this;
         }
     }
@@ -200,10 +246,10 @@ public abstract class SessionStateBase implements State {
 
     /*
      * This does the following preprocessing of the request:
-     * - crates ServerTransaction and stores it in the handler
+     * - crates ServerTransaction (unless already created by the listener) and stores it in the handler
      * - stores incoming Dialog in the handler (if not exists)
      * - stores received Request in the handler
-     * - in case of INVITE: sends 100 Trying provisional response
+     * - in case of INVITE: sends 100 Trying provisional response (unless already sent by the listener)
      * - in case of INVITE: stores the request
      *
      * @param requestEvent
@@ -230,7 +276,7 @@ public abstract class SessionStateBase implements State {
                     return false;
                 }
 
-                serverTransaction = context.imScfHandlerA.getNewServerTransaction(incomingRequest);
+                serverTransaction = getServerTransaction(requestEvent, context.imScfHandlerA);
 
                 context.imScfHandlerA.setLastIncomingRequest(incomingRequest);
                 context.imScfHandlerA.setIncomingDialog(serverTransaction.getDialog());
@@ -252,7 +298,7 @@ public abstract class SessionStateBase implements State {
                 B2BDialogsHandler invitingHandler = context.getCurrentHandler();
                 logger.trace("INVITE from {}, assign dialog/transaction data to the current handler", invitingHandler);
 
-                serverTransaction = invitingHandler.getNewServerTransaction(incomingRequest);
+                serverTransaction = getServerTransaction(requestEvent, invitingHandler);
 
                 invitingHandler.setLastIncomingRequest(incomingRequest);
                 invitingHandler.setIncomingDialog(serverTransaction.getDialog());
@@ -265,7 +311,9 @@ public abstract class SessionStateBase implements State {
             context.addDialog(serverTransaction.getDialog());
 
             context.setLastIncomingInvite(incomingRequest);
-            sendTryingResponse(incomingRequest, serverTransaction);
+            if (requestEvent.getServerTransaction() == null) {
+                sendTryingResponse(incomingRequest, serverTransaction);
+            }
 
         } catch (TransactionAlreadyExistsException | TransactionUnavailableException e){
             logger.warn("Error while processing incoming INVITE", e);
@@ -276,11 +324,343 @@ public abstract class SessionStateBase implements State {
 
     }
 
+    /*
+     * Returns the server transaction created by the listener for the initial INVITE or creates new one
+     */
+    private ServerTransaction getServerTransaction(RequestEvent requestEvent, B2BDialogsHandler handler)
+            throws TransactionAlreadyExistsException, TransactionUnavailableException {
+        ServerTransaction serverTransaction = requestEvent.getServerTransaction();
+        if (serverTransaction == null) {
+            serverTransaction = handler.getNewServerTransaction(requestEvent.getRequest());
+        }
+        return serverTransaction;
+    }
+
+    /**
+     * Handles broker timer expiry. By default timers are ignored, the state expecting the timer should override it.
+     *
+     * @param event - timer event
+     *
+     * @return next state
+     */
+    protected State handleTimer(HandlerTimerEvent event) throws SendResponseError {
+        logger.debug("Timer {} expired in state: {}, ignoring", event.getTimerType(), getClass().getSimpleName());
+        return this;
+    }
+
+    /**
+     * Checks if the response belongs to hedged INVITE attempt that is not part of the chain.
+     * Such response is handled by its AS handler only.
+     *
+     * @param event - response event
+     *
+     * @return true if the response must not be processed by the state
+     */
+    protected boolean isInviteAttemptResponse(ResponseEvent event) {
+        B2BDialogsHandler handler = fetchB2BHandlerFromClientTx(event.getClientTransaction());
+        if (handler.isImScf()) {
+            ((ImScfHandler) handler).processInviteResponse(event.getClientTransaction(), event.getResponse());
+            return false;
+        }
+        return ((ASHandler) handler).processAttemptResponse(event.getClientTransaction(), event.getResponse());
+    }
+
+    /**
+     * Checks if the client transaction timeout belongs to hedged INVITE attempt that is not part of the chain.
+     *
+     * @param event - timeout event
+     *
+     * @return true if the timeout must not be processed by the state
+     */
+    protected boolean isInviteAttemptTimeout(TimeoutEvent event) {
+        if (event.isServerTransaction()) {
+            return false;
+        }
+
+        ClientTransaction ct = event.getClientTransaction();
+        B2BDialogsHandler handler = fetchB2BHandlerFromClientTx(ct);
+        if (handler.isImScf()) {
+            ((ImScfHandler) handler).processInviteTimeout(ct);
+            return false;
+        }
+        if (((ASHandler) handler).processAttemptTimeout(ct)) {
+            if (ct.getRequest().getMethod().equals(Request.INVITE)) {
+                // no DialogTerminated event for timed out INVITE
+                checkAndRemoveSession(ct.getDialog());
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Returns the parallel group member that sent the request, null if the request is to be handled by the state
+     */
+    private ASHandler findParallelMember(RequestEvent event, EventKind kind) {
+        Dialog dialog = event.getDialog();
+        if (dialog != null && dialog.getApplicationData() instanceof HandlerReferenceWrapper) {
+            B2BDialogsHandler handler = fetchB2BHandlerFromDialog(dialog);
+            return handler != null && handler.isParallelMember() ? (ASHandler) handler : null;
+        }
+        if (kind == EventKind.INITIAL_INVITE) {
+            return context.findParallelMember(MessageUtils.getAttemptId(event.getRequest()));
+        }
+        return null;
+    }
+
+    /*
+     * Returns the parallel group member the timed out transaction belongs to, null if not a member transaction
+     */
+    private ASHandler findParallelMember(TimeoutEvent event) {
+        Object data = event.isServerTransaction() ? event.getServerTransaction().getApplicationData()
+                : event.getClientTransaction().getApplicationData();
+        if (data instanceof HandlerReferenceWrapper) {
+            B2BDialogsHandler handler = ((HandlerReferenceWrapper) data).getDialogHandler();
+            return handler != null && handler.isParallelMember() ? (ASHandler) handler : null;
+        }
+        return null;
+    }
+
+    /**
+     * Handles the request of the parallel group member. The member INVITE is held by its group,
+     * other requests are answered by the group as the member dialogs are not chained.
+     *
+     * @param event  - request event
+     * @param kind   - request kind
+     * @param member - member that sent the request
+     *
+     * @return this state
+     */
+    private State handleParallelMemberRequest(RequestEvent event, EventKind kind, ASHandler member) {
+        if (kind == EventKind.INITIAL_INVITE) {
+            member.getParallelGroup().acceptMemberInvite(member, event);
+        } else {
+            member.getParallelGroup().processMemberRequest(member, event, kind);
+        }
+        return this;
+    }
+
+    /**
+     * Handles the response of the parallel group member. The member is ACKed (PRACKed) by the broker,
+     * its error response is merged by the ruleset error logic.
+     *
+     * @param event  - response event
+     * @param member - responding member
+     *
+     * @return next state
+     */
+    private State handleParallelMemberResponse(ResponseEvent event, ASHandler member) throws SendResponseError {
+        Response response = event.getResponse();
+        CSeqHeader cseq = (CSeqHeader) response.getHeader(CSeqHeader.NAME);
+        if (!cseq.getMethod().equals(Request.INVITE)) {
+            logger.trace("{} response from parallel {}, no action", cseq.getMethod(), member);
+            return this;
+        }
+
+        ParallelGroup group = member.getParallelGroup();
+        int statusCode = response.getStatusCode();
+        if (statusCode < Response.OK) {
+            group.processMemberProvisional(member, response);
+            return this;
+        }
+
+        if (statusCode < Response.MULTIPLE_CHOICES) {
+            member.confirmFailover();
+            group.acknowledgeMemberAnswer(member, response, event.getDialog());
+            return this;
+        }
+
+        B2BDialogsHandler.HandlerState state = member.getHandlerState();
+        member.setHandlerState(TERMINATED);
+        if (state != INVITED && state != PROVISIONAL) {
+            logger.debug("Error response {} from terminated parallel {}", statusCode, member);
+            return this;
+        }
+        if (statusCode == Response.SERVICE_UNAVAILABLE && group.failoverMember(member)) {
+            return this;
+        }
+        return mergeParallelMemberFailure(member, response, statusCode);
+    }
+
+    /**
+     * Handles the transaction timeout of the parallel group member, INVITE timeout is merged as 408.
+     *
+     * @param event  - timeout event
+     * @param member - member the transaction belongs to
+     *
+     * @return next state
+     */
+    private State handleParallelMemberTimeout(TimeoutEvent event, ASHandler member) throws SendResponseError {
+        if (event.isServerTransaction() || !event.getClientTransaction().getRequest().getMethod()
+                .equals(Request.INVITE)) {
+            logger.debug("Transaction timeout of parallel {}, ignoring", member);
+            return this;
+        }
+
+        Dialog timeoutDialog = event.getClientTransaction().getDialog();
+        logger.info("INVITE timeout of parallel {}, callID: {}", member, timeoutDialog.getCallId());
+        B2BDialogsHandler.HandlerState state = member.getHandlerState();
+        member.setHandlerState(TERMINATED);
+        // no DialogTerminated event for timed out INVITE
+        if (checkAndRemoveSession(timeoutDialog) || (state != INVITED && state != PROVISIONAL)) {
+            return this;
+        }
+        if (member.getParallelGroup().failoverMember(member)) {
+            return this;
+        }
+        return mergeParallelMemberFailure(member, null, Response.REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Handles timers of the parallel group member (hedged INVITE, setup deadline) while it has not responded yet.
+     *
+     * @param event  - timer event
+     * @param member - member the timer was scheduled for
+     *
+     * @return next state
+     */
+    private State handleParallelMemberTimer(HandlerTimerEvent event, ASHandler member) throws SendResponseError {
+        boolean pending = member.getHandlerState() == INVITED || member.getHandlerState() == PROVISIONAL;
+
+        if (pending && event.getTimerType() == HandlerTimerEvent.TimerType.HEDGE) {
+            member.sendHedgedInvite();
+
+        } else if (pending && event.getTimerType() == HandlerTimerEvent.TimerType.SETUP_DEADLINE
+                && member.isSetupDeadlineExpired(event)) {
+            logger.info("Setup timeout of parallel {}", member);
+            member.abandonInvite();
+            member.setHandlerState(TERMINATED);
+            return mergeParallelMemberFailure(member, null, Response.REQUEST_TIMEOUT);
+
+        } else {
+            logger.debug("Timer {} expired for parallel {} in state {}, ignoring", new Object[]{event.getTimerType(),
+                    member, member.getHandlerState()});
+        }
+        return this;
+    }
+
+    /**
+     * Merges the failure of the parallel group member with the session setup.
+     * The STOP error logic (or Reason header present) stops the setup as if the group primary failed,
+     * provided the primary has not got the final response yet. Otherwise the member is just left out.
+     *
+     * @param member     - failed member
+     * @param response   - error response of the member, null for timeout or sending error
+     * @param statusCode - status code the failure is handled as
+     *
+     * @return next state
+     */
+    protected State mergeParallelMemberFailure(ASHandler member, Response response, int statusCode)
+            throws SendResponseError {
+        ParallelGroup group = member.getParallelGroup();
+        OrchestrationRuleset.ErrorLogic logic = response != null && response.getHeader(ReasonHeader.NAME) != null
+                ? OrchestrationRuleset.ErrorLogic.STOP : context.itsRuleset.getResponseHandling(statusCode);
+
+        if (logic == OrchestrationRuleset.ErrorLogic.SKIP || !group.isSetupPending()) {
+            logger.debug("Parallel {} failed with {}, continuing without it", member, statusCode);
+            return this;
+        }
+
+        // the setup is stopped from the primary, or from the node following the group anchor if the primary is skipped
+        B2BDialogsHandler first = group.isPrimarySkipped() ? group.getAnchor().getNextHandler() : group.getPrimary();
+        logger.info("Parallel {} failed with {}, stopping the setup of {}", new Object[]{member, statusCode, first});
+        context.brokerContext.getUsageParameters().incrementParallelStopsCount(1);
+
+        B2BDialogsHandler handlerToRespond = first.getPreviousHandler();
+        // the first node and the nodes it has passed the INVITE to are torn down together with their parallel members
+        for (B2BDialogsHandler handler = first; handler != null; handler = handler.getNextHandler()) {
+            disconnectSetupLeg(handler);
+        }
+
+        // reset current handler to the one that would get the response
+        context.setCurrentHandler(handlerToRespond);
+        checkAndApplyRollback(handlerToRespond);
+        if (response != null) {
+            return forwardErrorResponseBack(handlerToRespond, response);
+        } else {
+            return sendNewResponseBack(handlerToRespond, statusCode);
+        }
+    }
+
+    /*
+     * Disconnects the chained node which setup is being stopped, its INVITE still held by the broker is answered
+     * with 487 (Request Terminated)
+     */
+    private void disconnectSetupLeg(B2BDialogsHandler handler) {
+        switch (handler.getHandlerState()) {
+            case INVITED:
+                // CANCEL not allowed before provisional response, any response is ignored from now on
+                handler.setHandlerState(TERMINATED);
+                break;
+            case PROVISIONAL:
+            case SET_TO_CANCEL:
+                handler.sendTerminatingCancel();
+                break;
+            case SESSION_PROGRESS_REPORTED:
+            case SESSION_PROGRESS_CONFIRMED:
+            case ANSWERED:
+            case ACKED:
+                handler.sendTerminatingBye();
+                break;
+            default:
+                break;
+        }
+        terminateParallelMembers(handler);
+
+        Request pendingInvite = handler.getLastIncomingRequest();
+        if (!handler.isImScf() && handler.isLastServerTransaction() && pendingInvite != null
+                && pendingInvite.getMethod().equals(Request.INVITE)) {
+            try {
+                handler.sendNewResponse(createNewResponse(Response.REQUEST_TERMINATED, pendingInvite));
+            } catch (SendResponseError e) {
+                logger.warn("Unable to terminate INVITE of {}", handler, e);
+            }
+        }
+    }
+
+    /**
+     * Tears down the parallel group members of the handler if it is the group primary.
+     * To be called once the primary has finally failed, i.e. after its endpoint failover has not succeeded.
+     *
+     * @param handler - terminated handler
+     */
+    protected void terminateParallelMembers(B2BDialogsHandler handler) {
+        ParallelGroup group = handler.getParallelGroup();
+        if (group != null && group.getPrimary() == handler) {
+            group.terminateMembers();
+        }
+    }
+
     protected State handleInvite(RequestEvent event) throws SendResponseError {
         throw new UnsupportedOperationException("INVITE request not expected in this state: " + getClass()
                 .getName());
     }
 
+    /**
+     * Checks if the CANCEL comes from the calling party (IM-SCF A leg) which INVITE is still held by the broker.
+     *
+     * @param cancelSender - handler of the dialog the CANCEL was received on
+     *
+     * @return true if all the legs are to be torn down at once
+     */
+    protected boolean isCallingPartyCancel(B2BDialogsHandler cancelSender) {
+        Request invite = cancelSender.getLastIncomingRequest();
+        return cancelSender == context.imScfHandlerA && cancelSender.isLastServerTransaction()
+                && invite != null && invite.getMethod().equals(Request.INVITE);
+    }
+
+    /**
+     * Tears down all the legs at once on the calling party CANCEL, rather than passing CANCEL along the chain.
+     * The calling party INVITE is answered with 487 (Request Terminated).
+     *
+     * @return TeardownState to complete the teardown in
+     */
+    protected State cancelAllLegs() {
+        logger.debug("CANCEL from calling party, tearing down all the legs at once");
+        context.startTeardown(Response.REQUEST_TERMINATED);
+        return new TeardownState(session);
+    }
+
     /**
      * This process the postponed CANCEL request (from previous handler).
      * If response is not final it's time to send CANCEL.
@@ -320,6 +700,7 @@ public abstract class SessionStateBase implements State {
             context.setCurrentHandler(previousHandler);
             checkAndApplyRollback(previousHandler);
             respondingHandler.setHandlerState(TERMINATED);
+            terminateParallelMembers(respondingHandler);
             return sendNewResponseBack(previousHandler, Response.REQUEST_TERMINATED);
 
         }
@@ -352,12 +733,12 @@ public abstract class SessionStateBase implements State {
                 .getName());
     }
 
-    protected State handleInfo(RequestEvent event) throws UnrecoverableError {
+    protected State handleInfo(RequestEvent event, EventKind kind) throws UnrecoverableError {
         throw new UnsupportedOperationException("INFO request not expected in this state: " + getClass()
                 .getName());
     }
 
-    protected State handleResponse(ResponseEvent responseEvent)
+    protected State handleResponse(ResponseEvent responseEvent, EventKind kind)
             throws SendResponseError, UnexpectedSipMessageError, UnrecoverableError{
         throw new UnsupportedOperationException("ResponseEvent not expected in this state: " + getClass().getName());
     }
@@ -401,7 +782,7 @@ public abstract class SessionStateBase implements State {
         return this;
     }
 
-    protected State handleCommonInfoLogic(RequestEvent event) throws UnrecoverableError {
+    protected State handleCommonInfoLogic(RequestEvent event, EventKind kind) throws UnrecoverableError {
         Request info = event.getRequest();
         HandlerReferenceWrapper wrapper = (HandlerReferenceWrapper) event.getDialog().getApplicationData();
         B2BDialogsHandler infoSender = wrapper.getDialogHandler();
@@ -412,8 +793,7 @@ public abstract class SessionStateBase implements State {
 
         boolean infoFromOutgoingLeg = (event.getDialog() == infoSender.getOutgoingDialog());
 
-        ExtensionHeader xfci = (ExtensionHeader) info.getHeader(X_FCI);
-        if (xfci != null && "true" .equals(xfci.getValue())) {
+        if (kind == EventKind.FCI_INFO) {
             logger.debug("This is a special INFO - not chained");
 
             if(infoFromOutgoingLeg){
@@ -649,13 +1029,13 @@ public abstract class SessionStateBase implements State {
     /**
      * This is the common entry method to execute in case of unrecoverable error or exception
      * that cannot be processed otherwise.
-     * It disconnects all the outgoing dialogs, log error messages
+     * It disconnects all the dialogs at once (see TeardownCoordinator), log error messages
      *
      * It proceeds to InternalErrorState in order to handle upcoming Requets/Responses
-     * till end of the session (all dialogs removed)
+     * till end of the session (all legs disconnected)
      *
      * When removeSession parameter set to true, it also removes the session from the map.
-     * Otherwise the session would be eventually removed when both IM-SCF dialogs are terminated
+     * Otherwise the session would be eventually removed when all the legs have responded to the teardown
      *
      * @param errorMessage  - error message to log
      * @param exception     - exception
@@ -668,12 +1048,12 @@ public abstract class SessionStateBase implements State {
 
         logger.error("Cleanup session after error: {}", errorMessage, exception);
 
-        // release all dialogs
-        disconnectAllDialogsOnError();
+        // release all dialogs, pending IM-SCF A leg INVITE is rejected
+        TeardownCoordinator teardown = context.startTeardown(Response.SERVER_INTERNAL_ERROR);
 
         if(removeSession){
-            context.getSessionManager().removeSession(session.getID());
-            context.brokerContext.getUsageParameters().incrementRunningOrchestratedSessionsCount(-1);
+            // the legs responses are not awaited
+            teardown.abort();
             // no session - no more events to come
             return null;
         }
@@ -685,55 +1065,6 @@ public abstract class SessionStateBase implements State {
     }
 
 
-    /**
-     * Clears all outgoing dialogs.
-     * It sends either BYE or CANCEL towards all INVITED services and IM-SCF.
-     */
-    private void disconnectAllDialogsOnError(){
-        logger.debug("disconnectAllDialogsOnError");
-
-        B2BDialogsHandler handler = context.imScfHandlerA.getNextHandler();
-        do {
-            switch (handler.getHandlerState()) {
-                case INITIAL:
-                    logger.trace("Handler {} not invited, no need to clear", handler);
-                    break;
-                case INVITED:
-                    logger.trace("Mark as SET TO CANCEL", handler);
-                    break;
-                case PROVISIONAL:
-                    logger.trace("Disconnecting {} with CANCEL", handler);
-                    handler.sendTerminatingCancel();
-                    break;
-                case SESSION_PROGRESS_REPORTED:
-                case SESSION_PROGRESS_CONFIRMED:
-                case ANSWERED:
-                    logger.trace("Disconnecting {} with BYE", handler);
-                    handler.sendTerminatingBye();
-            }
-
-            // get next handler to clear
-            handler = handler.getNextHandler();
-
-        } while (!handler.isImScf());
-
-        // for IM-SCF send BYE to B leg if required, incoming leg from IM-SCF will timeout eventually
-        if(context.imScfHandlerB.getHandlerState() == SESSION_PROGRESS_REPORTED ||
-                context.imScfHandlerB.getHandlerState() == SESSION_PROGRESS_CONFIRMED ||
-                context.imScfHandlerB.getHandlerState() == ANSWERED) {
-            // send BYE only in case of Early or Confirmed dialog state
-            logger.trace("Disconnecting {} with BYE", handler);
-            context.imScfHandlerB.sendTerminatingBye();
-        } else if(context.imScfHandlerB.getHandlerState() == PROVISIONAL){
-            logger.trace("Disconnecting {} with CANCEL", handler);
-            handler.sendTerminatingCancel();
-        } else if(context.imScfHandlerB.getHandlerState() == INVITED){
-            logger.trace("Mark as SET TO CANCEL", handler);
-        }
-
-        logger.debug("All dialogs disconnected or marked to disconnect");
-    }
-
     /**
      * This performs the rollback of the AS handlers in the chain
      * Applicable only to AS Handlers, i.e. no sense to rollback if the next handler
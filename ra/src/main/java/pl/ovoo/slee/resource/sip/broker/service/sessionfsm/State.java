@@ -19,11 +19,20 @@
  */
 package pl.ovoo.slee.resource.sip.broker.service.sessionfsm;
 
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventKind;
+
 import java.util.EventObject;
 
 /**
  * Simple state interface
  */
 public interface State {
-    State handleEvent(EventObject event);
+    State handleEvent(EventObject event, EventKind kind);
+
+    /**
+     * Returns true if the in-dialog requests might be passed by the dialog relays in this state
+     */
+    default boolean isDialogRelayState() {
+        return false;
+    }
 }
@@ -0,0 +1,376 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.sessionfsm;
+
+import org.slf4j.Logger;
+import pl.ovoo.slee.resource.sip.broker.SipBrokerUsageParameters;
+import pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler;
+import pl.ovoo.slee.resource.sip.broker.service.HandlerReferenceWrapper;
+import pl.ovoo.slee.resource.sip.broker.service.HandlerTimerEvent;
+import pl.ovoo.slee.resource.sip.broker.service.ParallelGroup;
+import pl.ovoo.slee.resource.sip.broker.service.SendResponseError;
+import pl.ovoo.slee.resource.sip.broker.service.UnrecoverableError;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.DialogState;
+import javax.sip.InvalidArgumentException;
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
+import javax.sip.TimeoutEvent;
+import javax.sip.header.CSeqHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+
+import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.HandlerState.ANSWERED;
+import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.HandlerState.SET_TO_CANCEL;
+import static pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler.HandlerState.TERMINATING;
+
+/**
+ * Tears down all the legs of the session at once, rather than hop by hop along the chain.
+ * CANCEL or BYE (depending on the handler state) is sent to every service, parallel group member and IM-SCF,
+ * the INVITEs still held by the broker are answered. The session is removed once all the legs have responded
+ * to the teardown, or when the teardown deadline expires.
+ */
+public class TeardownCoordinator {
+
+    private final SessionContext context;
+    private final Logger logger;
+    // legs the teardown response is still awaited from
+    private final Set<B2BDialogsHandler> pendingLegs = Collections.newSetFromMap(new IdentityHashMap<>());
+    // legs the BYE has been sent to by the teardown after their late 2xx response
+    private final Set<B2BDialogsHandler> answeredLegs = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private HandlerTimerEvent deadlineEvent;
+    private ScheduledFuture<?> deadlineTimer;
+    private long startTime;
+    private int legsCount;
+    private int timedOutLegs;
+    private boolean finished;
+
+    /**
+     * @param context - context of the session to tear down
+     */
+    TeardownCoordinator(SessionContext context) {
+        this.context = context;
+        logger = context.getSessionLogger(getClass());
+    }
+
+    /**
+     * Sends CANCEL/BYE to all the live legs and answers the held INVITEs.
+     * The IM-SCF A leg INVITE is answered with the given status code, the services INVITEs with 487.
+     *
+     * @param callingPartyStatusCode - status code of the response to the INVITE of IM-SCF A leg if still pending
+     */
+    void start(int callingPartyStatusCode) {
+        startTime = System.currentTimeMillis();
+
+        List<B2BDialogsHandler> legs = collectLegs();
+        legsCount = legs.size();
+        // states taken before any leg is disconnected, the primary teardown cascades to its parallel group members
+        Map<B2BDialogsHandler, B2BDialogsHandler.HandlerState> initialStates = new IdentityHashMap<>();
+        for (B2BDialogsHandler leg : legs) {
+            initialStates.put(leg, leg.getHandlerState());
+        }
+        for (B2BDialogsHandler leg : legs) {
+            if (disconnectLeg(leg, initialStates.get(leg))) {
+                pendingLegs.add(leg);
+            }
+            if (!leg.isImScf()) {
+                respondToHeldRequest(leg, Response.REQUEST_TERMINATED);
+            }
+        }
+        disconnectCallingParty(callingPartyStatusCode);
+
+        logger.debug("Teardown of {} legs started, {} responses awaited", legs.size(), pendingLegs.size());
+        if (pendingLegs.isEmpty()) {
+            finish();
+        } else if (context.brokerContext.teardownTimeout > 0) {
+            deadlineEvent = new HandlerTimerEvent(context.imScfHandlerA, HandlerTimerEvent.TimerType.TEARDOWN_DEADLINE);
+            deadlineTimer = context.brokerContext.getBrokerTimer().schedule(deadlineEvent, context.itsSession,
+                    context.brokerContext.teardownTimeout);
+        }
+    }
+
+    /**
+     * Processes the response of a leg: postponed CANCEL is sent on provisional response, late 2xx is ACKed and BYEd.
+     * The leg teardown is complete on the final response to its INVITE or BYE.
+     *
+     * @param event - response event
+     */
+    public void processResponse(ResponseEvent event) {
+        ClientTransaction ct = event.getClientTransaction();
+        B2BDialogsHandler leg = ((HandlerReferenceWrapper) ct.getApplicationData()).getDialogHandler();
+        Response response = event.getResponse();
+        int statusCode = response.getStatusCode();
+        String method = ((CSeqHeader) response.getHeader(CSeqHeader.NAME)).getMethod();
+
+        if (Request.INVITE.equals(method)) {
+            if (statusCode < Response.OK) {
+                if (leg.getHandlerState() == SET_TO_CANCEL) {
+                    logger.trace("Provisional response, disconnecting {} with CANCEL", leg);
+                    leg.sendTerminatingCancel();
+                }
+                return;
+            }
+            if (statusCode < Response.MULTIPLE_CHOICES) {
+                acknowledgeAnswer(leg, response, event.getDialog());
+                return;
+            }
+            completeLeg(leg, false);
+
+        } else if (Request.BYE.equals(method)) {
+            completeLeg(leg, false);
+
+        } else {
+            logger.trace("{} response from {} in teardown, no action", method, leg);
+        }
+    }
+
+    /**
+     * Processes the client transaction timeout, the INVITE or BYE timeout completes the leg teardown.
+     *
+     * @param event - timeout event
+     */
+    public void processTimeout(TimeoutEvent event) {
+        if (event.isServerTransaction()) {
+            logger.debug("Server transaction timeout in teardown, ignoring");
+            return;
+        }
+        ClientTransaction ct = event.getClientTransaction();
+        String method = ct.getRequest().getMethod();
+        if (Request.INVITE.equals(method) || Request.BYE.equals(method)) {
+            completeLeg(((HandlerReferenceWrapper) ct.getApplicationData()).getDialogHandler(), true);
+        }
+    }
+
+    /**
+     * Processes the broker timer, on teardown deadline the session is removed regardless of the pending legs.
+     *
+     * @param event - timer event
+     */
+    public void processTimer(HandlerTimerEvent event) {
+        if (event != deadlineEvent) {
+            logger.debug("Timer {} expired in teardown, ignoring", event.getTimerType());
+            return;
+        }
+        logger.debug("Teardown deadline expired, {} legs not responded: {}", pendingLegs.size(), pendingLegs);
+        timedOutLegs += pendingLegs.size();
+        pendingLegs.clear();
+        finish();
+    }
+
+    /**
+     * Finishes the teardown at once, without waiting for the legs still pending: the deadline timer is cancelled,
+     * the teardown time sampled and the session removed.
+     */
+    public void abort() {
+        if (!finished) {
+            logger.debug("Teardown aborted, {} legs not awaited: {}", pendingLegs.size(), pendingLegs);
+            pendingLegs.clear();
+        }
+        finish();
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /*
+     * Returns all the legs the broker is the client of: the chained services, their parallel group members
+     * and IM-SCF B leg
+     */
+    private List<B2BDialogsHandler> collectLegs() {
+        List<B2BDialogsHandler> legs = new ArrayList<>();
+        B2BDialogsHandler handler = context.imScfHandlerA.getNextHandler();
+        while (handler != null) {
+            legs.add(handler);
+            ParallelGroup group = handler.getParallelGroup();
+            if (group != null && group.getPrimary() == handler) {
+                legs.addAll(group.getMembers());
+            }
+            if (handler.isImScf()) {
+                break;
+            }
+            handler = handler.getNextHandler();
+        }
+        // the members of the groups which primary has been skipped are not reachable through the chain
+        legs.addAll(context.getSkippedParallelMembers());
+        return legs;
+    }
+
+    /*
+     * Sends CANCEL/BYE to the leg according to its state, returns true if the leg response is to be awaited
+     */
+    private boolean disconnectLeg(B2BDialogsHandler leg, B2BDialogsHandler.HandlerState initialState) {
+        if (leg.getHandlerState() == initialState) {
+            switch (initialState) {
+                case INVITED:
+                    // CANCEL not allowed before provisional response
+                    logger.trace("Mark {} as SET TO CANCEL", leg);
+                    leg.setHandlerState(SET_TO_CANCEL);
+                    break;
+                case PROVISIONAL:
+                    logger.trace("Disconnecting {} with CANCEL", leg);
+                    leg.sendTerminatingCancel();
+                    break;
+                case SESSION_PROGRESS_REPORTED:
+                case SESSION_PROGRESS_CONFIRMED:
+                case ANSWERED:
+                case ACKED:
+                    logger.trace("Disconnecting {} with BYE", leg);
+                    leg.sendTerminatingBye();
+                    break;
+                default:
+                    break;
+            }
+        }
+        // already disconnected legs (TERMINATED) might not respond at all
+        return initialState != B2BDialogsHandler.HandlerState.INITIAL
+                && initialState != B2BDialogsHandler.HandlerState.TERMINATED;
+    }
+
+    /*
+     * Answers the request of IM-SCF A leg if still pending, otherwise BYEs the leg if its dialog is confirmed
+     */
+    private void disconnectCallingParty(int statusCode) {
+        B2BDialogsHandler callingParty = context.imScfHandlerA;
+        if (respondToHeldRequest(callingParty, statusCode)) {
+            return;
+        }
+
+        Dialog dialog = callingParty.getIncomingDialog();
+        if (dialog != null && dialog.getState() == DialogState.CONFIRMED) {
+            logger.trace("Disconnecting {} with BYE", callingParty);
+            try {
+                callingParty.sendRequestOnDialog(dialog.createRequest(Request.BYE), dialog, null);
+                pendingLegs.add(callingParty);
+            } catch (SipException | UnrecoverableError e) {
+                logger.warn("Unable to send BYE towards {}", callingParty, e);
+            }
+        }
+    }
+
+    /*
+     * Answers the INVITE (with given status code) or BYE (with 200) the broker holds for the handler,
+     * returns true if there was one
+     */
+    private boolean respondToHeldRequest(B2BDialogsHandler handler, int inviteStatusCode) {
+        Request request = handler.getLastIncomingRequest();
+        if (!handler.isLastServerTransaction() || request == null) {
+            return false;
+        }
+
+        int statusCode;
+        if (Request.INVITE.equals(request.getMethod())) {
+            statusCode = inviteStatusCode;
+        } else if (Request.BYE.equals(request.getMethod())) {
+            statusCode = Response.OK;
+        } else {
+            return false;
+        }
+        try {
+            handler.sendNewResponse(context.getMessageFactory().createResponse(statusCode, request));
+        } catch (SendResponseError | ParseException e) {
+            logger.warn("Unable to answer {} of {}", new Object[]{request.getMethod(), handler, e});
+        }
+        return true;
+    }
+
+    /*
+     * ACKs the 2xx the leg sent despite the CANCEL (or before the postponed CANCEL) and BYEs it
+     */
+    private void acknowledgeAnswer(B2BDialogsHandler leg, Response response, Dialog dialog) {
+        try {
+            long cseqNumber = ((CSeqHeader) response.getHeader(CSeqHeader.NAME)).getSeqNumber();
+            dialog.sendAck(dialog.createAck(cseqNumber));
+        } catch (SipException | InvalidArgumentException e) {
+            logger.warn("Unable to ACK {}", leg, e);
+        }
+
+        if (answeredLegs.add(leg) && leg.getHandlerState() != TERMINATING) {
+            logger.trace("2xx response in teardown, disconnecting {} with BYE", leg);
+            leg.setHandlerState(ANSWERED);
+            leg.sendTerminatingBye();
+            if (finished) {
+                // teardown already completed, the BYE response is not awaited
+                return;
+            }
+            pendingLegs.add(leg);
+        }
+    }
+
+    /*
+     * Marks the leg teardown as complete, the session is removed with the last one
+     */
+    private void completeLeg(B2BDialogsHandler leg, boolean timedOut) {
+        if (!pendingLegs.remove(leg)) {
+            return;
+        }
+        if (timedOut) {
+            logger.debug("Teardown of {} timed out", leg);
+            timedOutLegs++;
+        }
+        logger.trace("Teardown of {} complete, {} legs pending", leg, pendingLegs.size());
+        if (pendingLegs.isEmpty()) {
+            finish();
+        }
+    }
+
+    /*
+     * Removes the session once all the legs have responded or timed out
+     */
+    private void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (deadlineTimer != null) {
+            deadlineTimer.cancel(false);
+        }
+
+        long teardownTime = System.currentTimeMillis() - startTime;
+        SipBrokerUsageParameters usageParameters = context.brokerContext.getUsageParameters();
+        usageParameters.sampleTeardownTime(teardownTime);
+        // teardown time per chain length
+        if (legsCount <= 2) {
+            usageParameters.sampleTeardownTimeUpTo2Legs(teardownTime);
+        } else if (legsCount <= 4) {
+            usageParameters.sampleTeardownTime3To4Legs(teardownTime);
+        } else {
+            usageParameters.sampleTeardownTime5OrMoreLegs(teardownTime);
+        }
+        if (timedOutLegs > 0) {
+            usageParameters.incrementTeardownLegsTimedOutCount(timedOutLegs);
+        }
+        logger.debug("Teardown of {} legs finished in {} ms, {} legs timed out", new Object[]{legsCount,
+                teardownTime, timedOutLegs});
+
+        context.endSession();
+    }
+}
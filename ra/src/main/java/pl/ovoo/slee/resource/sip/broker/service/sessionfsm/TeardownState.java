@@ -0,0 +1,158 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.service.sessionfsm;
+
+import gov.nist.javax.sip.DialogTimeoutEvent;
+import pl.ovoo.slee.resource.sip.broker.service.B2BDialogsHandler;
+import pl.ovoo.slee.resource.sip.broker.service.HandlerReferenceWrapper;
+import pl.ovoo.slee.resource.sip.broker.service.HandlerTimerEvent;
+import pl.ovoo.slee.resource.sip.broker.service.OrchestratedSession;
+import pl.ovoo.slee.resource.sip.broker.service.SendResponseError;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventKind;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.InvalidArgumentException;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipException;
+import javax.sip.TimeoutEvent;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.util.EventObject;
+
+/**
+ * In this state all the session legs are being torn down at once by the TeardownCoordinator.
+ * Responses, timeouts and the teardown deadline are passed to the coordinator, the requests of the parties
+ * (BYE or CANCEL of the services tearing down their other leg) are answered by the broker.
+ */
+public class TeardownState extends SessionStateBase {
+
+    public TeardownState(OrchestratedSession session) {
+        super(session);
+    }
+
+    public State handleEvent(EventObject event, EventKind kind) {
+        TeardownCoordinator teardown = context.getTeardown();
+
+        switch (kind) {
+            case RESPONSE:
+            case AS_RESPONSE:
+                ResponseEvent responseEvent = (ResponseEvent) event;
+                if (isInviteAttemptResponse(responseEvent)) {
+                    logger.debug("Response of the discarded INVITE attempt handled");
+                } else {
+                    teardown.processResponse(responseEvent);
+                }
+                break;
+
+            case TIMEOUT:
+                TimeoutEvent timeoutEvent = (TimeoutEvent) event;
+                if (isInviteAttemptTimeout(timeoutEvent)) {
+                    logger.debug("Timeout of the discarded INVITE attempt");
+                } else {
+                    // the leg timeout is counted before the session might be removed below
+                    teardown.processTimeout(timeoutEvent);
+                    if (!timeoutEvent.isServerTransaction()
+                            && timeoutEvent.getClientTransaction().getRequest().getMethod().equals(Request.INVITE)) {
+                        // no DialogTerminated event for timed out INVITE
+                        checkAndRemoveSession(timeoutEvent.getClientTransaction().getDialog());
+                    }
+                }
+                break;
+
+            case TIMER:
+                teardown.processTimer((HandlerTimerEvent) event);
+                break;
+
+            case DIALOG_TIMEOUT:
+                logger.debug("Received DialogTimeoutEvent in state: {}", getClass().getSimpleName());
+                checkAndRemoveSession(((DialogTimeoutEvent) event).getDialog());
+                break;
+
+            case DIALOG_TERMINATED:
+                logger.debug("Received DialogTerminatedEvent in state: {}", getClass().getSimpleName());
+                checkAndRemoveSession(((DialogTerminatedEvent) event).getDialog());
+                break;
+
+            default:
+                processRequest((RequestEvent) event, kind);
+        }
+        return this;
+    }
+
+    /*
+     * Answers the request of a party, its INVITE still held by the broker is answered with 487 on CANCEL
+     */
+    private void processRequest(RequestEvent event, EventKind kind) {
+        logger.debug("{} received in teardown", event.getRequest().getMethod());
+
+        switch (kind) {
+            case ACK:
+                break;
+
+            case BYE:
+                respond(event, Response.OK);
+                break;
+
+            case CANCEL:
+                respond(event, Response.OK);
+                if (event.getDialog() != null
+                        && event.getDialog().getApplicationData() instanceof HandlerReferenceWrapper) {
+                    B2BDialogsHandler cancelSender = fetchB2BHandlerFromDialog(event.getDialog());
+                    Request invite = cancelSender.getLastIncomingRequest();
+                    if (cancelSender.isLastServerTransaction() && invite != null
+                            && invite.getMethod().equals(Request.INVITE)) {
+                        try {
+                            cancelSender.sendNewResponse(createNewResponse(Response.REQUEST_TERMINATED, invite));
+                        } catch (SendResponseError e) {
+                            logger.warn("Unable to terminate INVITE of {}", cancelSender, e);
+                        }
+                    }
+                }
+                break;
+
+            case INITIAL_INVITE:
+            case REINVITE:
+            case AUX_INVITE:
+                respond(event, Response.REQUEST_TERMINATED);
+                break;
+
+            default:
+                respond(event, Response.CALL_OR_TRANSACTION_DOES_NOT_EXIST);
+        }
+    }
+
+    /*
+     * Responds to the request within its server transaction, statelessly if there is none
+     */
+    private void respond(RequestEvent event, int statusCode) {
+        ServerTransaction st = event.getServerTransaction();
+        if (st == null) {
+            sendImmediateErrorResponse(statusCode, event, null);
+            return;
+        }
+        try {
+            st.sendResponse(createNewResponse(statusCode, event.getRequest()));
+        } catch (SipException | InvalidArgumentException e) {
+            logger.warn("Unable to respond to {} in teardown", event.getRequest().getMethod(), e);
+        }
+    }
+}
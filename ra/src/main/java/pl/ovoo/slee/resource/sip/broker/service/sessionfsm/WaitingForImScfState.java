@@ -24,6 +24,7 @@ import pl.ovoo.slee.resource.sip.broker.service.HandlerReferenceWrapper;
 import pl.ovoo.slee.resource.sip.broker.service.OrchestratedSession;
 import pl.ovoo.slee.resource.sip.broker.service.SendResponseError;
 import pl.ovoo.slee.resource.sip.broker.service.UnrecoverableError;
+import pl.ovoo.slee.resource.sip.broker.service.eventqueue.EventKind;
 import pl.ovoo.slee.resource.sip.broker.utils.MessageUtils;
 
 import javax.sip.Dialog;
@@ -34,7 +35,6 @@ import javax.sip.ServerTransaction;
 import javax.sip.SipException;
 import javax.sip.TimeoutEvent;
 import javax.sip.header.CSeqHeader;
-import javax.sip.header.ExtensionHeader;
 import javax.sip.header.ReasonHeader;
 import javax.sip.header.RequireHeader;
 import javax.sip.message.Request;
@@ -66,7 +66,8 @@ public class WaitingForImScfState extends SessionStateBase {
 
     /**
      * This method process the CANCEL Request
-     * It sends CANCEL to the next handler in the chain, waits for provisional response to send CANCEL
+     * CANCEL of the calling party tears down all the legs at once.
+     * CANCEL of an AS is sent to the next handler in the chain, waits for provisional response to send CANCEL
      * or forwards the response back (in case next AS already canceled).
      * The session stays in this state in order to pass 487 response back (rollback)
      * and handle potential new INVITE from AS (initiating CANCEL).
@@ -80,7 +81,10 @@ public class WaitingForImScfState extends SessionStateBase {
         B2BDialogsHandler cancelSender = fetchB2BHandlerFromDialog(event.getDialog());
         B2BDialogsHandler nextHandler = cancelSender.getNextHandler();
 
-        if(nextHandler.getHandlerState() == INVITED) {
+        if (isCallingPartyCancel(cancelSender)) {
+            return cancelAllLegs();
+
+        } else if(nextHandler.getHandlerState() == INVITED) {
             logger.debug("Next handler: {} waiting for any response before sending CANCEL");
             nextHandler.setHandlerState(SET_TO_CANCEL);
 
@@ -148,9 +152,10 @@ public class WaitingForImScfState extends SessionStateBase {
      * This method process the sip Response from IM-SCF (in this state)
      *
      * @param event - Request event
+     * @param kind  - response kind
      */
     @Override
-    protected State handleResponse(ResponseEvent event) throws SendResponseError, UnrecoverableError {
+    protected State handleResponse(ResponseEvent event, EventKind kind) throws SendResponseError, UnrecoverableError {
         logger.debug("handleResponse, statusCode: {}", event.getResponse().getStatusCode());
         Response response = event.getResponse();
         int statusCode = response.getStatusCode();
@@ -186,7 +191,7 @@ public class WaitingForImScfState extends SessionStateBase {
 
         } else if (statusCode == Response.SESSION_PROGRESS) {
 
-            return processResponseSessionProgress(event);
+            return processResponseSessionProgress(event, kind);
 
         } else if (statusCode == Response.TRYING) {
             logger.debug("Received provisional response: {}, no action", statusCode);
@@ -206,11 +211,12 @@ public class WaitingForImScfState extends SessionStateBase {
      * This method process the sip INFO Request
      *
      * @param event - Request event
+     * @param kind  - INFO kind
      */
     @Override
-    protected State handleInfo(RequestEvent event) throws UnrecoverableError {
+    protected State handleInfo(RequestEvent event, EventKind kind) throws UnrecoverableError {
         logger.trace("handleInfo");
-        return handleCommonInfoLogic(event);
+        return handleCommonInfoLogic(event, kind);
     }
 
     private State processResponseOK(ResponseEvent responseEvent) throws SendResponseError {
@@ -324,7 +330,8 @@ public class WaitingForImScfState extends SessionStateBase {
     }
 
 
-    private State processResponseSessionProgress(ResponseEvent responseEvent) throws SendResponseError {
+    private State processResponseSessionProgress(ResponseEvent responseEvent, EventKind kind)
+            throws SendResponseError {
         // find session handler from client transaction
         B2BDialogsHandler respondingHandler = fetchB2BHandlerFromClientTx(responseEvent.getClientTransaction());
         B2BDialogsHandler previousHandler = respondingHandler.getPreviousHandler();
@@ -334,8 +341,7 @@ public class WaitingForImScfState extends SessionStateBase {
         Response response = responseEvent.getResponse();
         RequireHeader requireHeader = (RequireHeader) response.getHeader(RequireHeader.NAME);
 
-        ExtensionHeader xAsHeader = (ExtensionHeader) response.getHeader(X_AS);
-        if(xAsHeader == null || "false".equals(xAsHeader.getValue()) ){
+        if(kind != EventKind.AS_RESPONSE){
 
             // this is a regular 183 response, simply send it back
             logger.debug("Regular 183 response, forward to handler: {}", respondingHandler.getPreviousHandler());
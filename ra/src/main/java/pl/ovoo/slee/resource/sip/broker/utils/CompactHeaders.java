@@ -0,0 +1,114 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.utils;
+
+import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.header.SIPHeaderList;
+import gov.nist.javax.sip.message.SIPMessage;
+
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.ContentLengthHeader;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.SubjectHeader;
+import javax.sip.header.SupportedHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.Message;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Switches the headers of outgoing messages to the RFC 3261 compact form (v, f, t, i, m, l, c, k, s), which keeps
+ * the chained INVITEs sent over UDP below the MTU. Only the header names are changed, the values are encoded
+ * by the SIP stack as usual.
+ */
+public final class CompactHeaders {
+
+    // full header name followed by its compact form
+    private static final String[][] COMPACT_FORMS = {{ViaHeader.NAME, "v"}, {FromHeader.NAME, "f"},
+            {ToHeader.NAME, "t"}, {CallIdHeader.NAME, "i"}, {ContactHeader.NAME, "m"},
+            {ContentLengthHeader.NAME, "l"}, {ContentTypeHeader.NAME, "c"}, {SupportedHeader.NAME, "k"},
+            {SubjectHeader.NAME, "s"}};
+
+
+    private CompactHeaders() {
+        // only static access
+    }
+
+    /**
+     * Changes the names of the message headers having the compact form. The single headers might be shared with
+     * other messages (like From/To of the incoming request), so they are replaced by renamed copies. The multiple
+     * headers (Via, Contact, Supported) are held by lists created for this message only, so the lists are renamed.
+     *
+     * @param message - outgoing message, not sent yet
+     *
+     * @return number of bytes the encoded message is shorter by
+     */
+    public static int compact(Message message) {
+        SIPMessage sipMessage = (SIPMessage) message;
+        List<SIPHeader> singleHeaders = null;
+        int savedBytes = 0;
+
+        Iterator<SIPHeader> headers = sipMessage.getHeaders();
+        while (headers.hasNext()) {
+            SIPHeader header = headers.next();
+            String compactName = getCompactForm(header.getHeaderName());
+            if (compactName == null) {
+                continue;
+            }
+            savedBytes += header.getHeaderName().length() - compactName.length();
+            if (header instanceof SIPHeaderList) {
+                header.setHeaderName(compactName);
+            } else {
+                if (singleHeaders == null) {
+                    singleHeaders = new ArrayList<>(8);
+                }
+                singleHeaders.add(header);
+            }
+        }
+
+        if (singleHeaders != null) {
+            for (SIPHeader header : singleHeaders) {
+                // the copy replaces the original under the full name first, then it is renamed
+                SIPHeader copy = (SIPHeader) header.clone();
+                sipMessage.setHeader(copy);
+                copy.setHeaderName(getCompactForm(header.getHeaderName()));
+            }
+        }
+        return savedBytes;
+    }
+
+    /**
+     * Returns compact form of the header name, null if there is no compact form (or the name is compact already)
+     *
+     * @param name - header name
+     */
+    static String getCompactForm(String name) {
+        for (String[] form : COMPACT_FORMS) {
+            if (form[0].equalsIgnoreCase(name)) {
+                return form[1];
+            }
+        }
+        return null;
+    }
+}
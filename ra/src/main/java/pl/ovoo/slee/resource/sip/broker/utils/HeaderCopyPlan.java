@@ -0,0 +1,117 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.utils;
+
+import javax.sip.header.Header;
+import javax.sip.message.Message;
+import java.util.ListIterator;
+
+/**
+ * Precompiled plan of copying headers from the incoming message to the outgoing one.
+ * Header names are matched case-insensitively against the excluded names with a small open-addressing
+ * hash table, so no lookup allocates.
+ * The copied header instances are shared with the incoming message and must be treated as read-only:
+ * the headers the SIP stack writes to (RSeq, RAck of reliable provisional responses and PRACKs) are cloned,
+ * the headers the dialogs/transactions maintain (From, To, Call-ID, CSeq, Via, Route, Contact...) are
+ * excluded from copying, and the broker code changing a header of an outgoing message replaces it with a copy
+ * (see CompactHeaders.compact and MessageUtils.markAttempt).
+ */
+final class HeaderCopyPlan {
+
+    // header names (lower case) written by the SIP stack, cloned instead of shared
+    private static final String[] CLONED_HEADERS = {"rseq", "rack"};
+
+    private final String[] excluded;
+    private final String[] cloned;
+
+    /**
+     * @param excludedHeaders - names of the headers not to be copied (full and compact forms)
+     */
+    HeaderCopyPlan(String... excludedHeaders) {
+        excluded = buildTable(excludedHeaders);
+        cloned = buildTable(CLONED_HEADERS);
+    }
+
+    /**
+     * Copies all the headers allowed by this plan, the outgoing headers of the same name are replaced.
+     *
+     * @param incoming - message to copy from
+     * @param outgoing - message to copy to
+     */
+    @SuppressWarnings("unchecked")
+    void copyHeaders(Message incoming, Message outgoing) {
+        ListIterator<String> headerNames = incoming.getHeaderNames();
+        while (headerNames.hasNext()) {
+            String name = headerNames.next();
+            if (contains(excluded, name)) {
+                continue;
+            }
+            if (outgoing.getHeader(name) != null) {
+                outgoing.removeHeader(name);
+            }
+            boolean clone = contains(cloned, name);
+            ListIterator<Header> headers = incoming.getHeaders(name);
+            while (headers.hasNext()) {
+                Header header = headers.next();
+                outgoing.addHeader(clone ? (Header) header.clone() : header);
+            }
+        }
+    }
+
+    /*
+     * Builds open-addressing table (power of two size, at most half full) of the lower case names
+     */
+    private static String[] buildTable(String[] names) {
+        int size = Integer.highestOneBit(Math.max(names.length, 1) * 4);
+        String[] table = new String[size];
+        for (String name : names) {
+            String lowerName = name.toLowerCase();
+            int index = hash(lowerName) & (size - 1);
+            while (table[index] != null && !table[index].equals(lowerName)) {
+                index = (index + 1) & (size - 1);
+            }
+            table[index] = lowerName;
+        }
+        return table;
+    }
+
+    private static boolean contains(String[] table, String name) {
+        int index = hash(name) & (table.length - 1);
+        while (table[index] != null) {
+            if (table[index].equalsIgnoreCase(name)) {
+                return true;
+            }
+            index = (index + 1) & (table.length - 1);
+        }
+        return false;
+    }
+
+    /*
+     * Case-insensitive hash of the header name (ASCII)
+     */
+    private static int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            hash = 31 * hash + (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.utils;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates Call-IDs and tags of the broker without any state shared by the threads (unlike the SIP stack
+ * generators, synchronized on common Random/MessageDigest). Every thread keeps its own counter, the identifiers
+ * are unique within the cluster thanks to the node identifier (instance start time and random number)
+ * and the thread number.
+ */
+public class IdGenerator {
+
+    private static final int RADIX = 36;
+
+    // Call-ID host part
+    private final String host;
+    // distinguishes broker instances (and their restarts) within the cluster
+    private final String nodeId;
+    private final AtomicInteger threadsCount = new AtomicInteger();
+    private final ThreadLocal<Sequence> sequences = ThreadLocal.withInitial(
+            () -> new Sequence(threadsCount.getAndIncrement()));
+
+    /**
+     * @param host - broker hostname, the host part of Call-IDs
+     */
+    public IdGenerator(String host) {
+        this.host = host;
+        nodeId = Long.toString(System.currentTimeMillis(), RADIX) +
+                Integer.toString(new SecureRandom().nextInt() & Integer.MAX_VALUE, RADIX);
+    }
+
+    /**
+     * Returns new Call-ID value (id@host)
+     */
+    public String newCallId() {
+        Sequence sequence = sequences.get();
+        return new StringBuilder(sequence.prefix.length() + host.length() + 14).append(sequence.prefix)
+                .append(Long.toString(sequence.next(), RADIX)).append('@').append(host).toString();
+    }
+
+    /**
+     * Returns new From/To tag
+     */
+    public String newTag() {
+        Sequence sequence = sequences.get();
+        return sequence.prefix + Long.toString(sequence.next(), RADIX);
+    }
+
+    /*
+     * Counter of the identifiers generated by single thread
+     */
+    private final class Sequence {
+
+        private final String prefix;
+        private long counter;
+
+        private Sequence(int threadNumber) {
+            prefix = nodeId + '-' + Integer.toString(threadNumber, RADIX) + '-';
+        }
+
+        private long next() {
+            return ++counter;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * SIP Service Broker Resource Adaptor
+ * Copyright (C) 2016-2017 "OVOO Sp. z o.o."
+ *
+ * This file is part of the SIP Service Broker RA.
+ *
+ * SIP Service Broker RA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * SIP Service Broker RA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.ovoo.slee.resource.sip.broker.utils;
+
+import org.slf4j.Logger;
+
+import javax.sip.InvalidArgumentException;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.MaxForwardsHeader;
+import javax.sip.header.RouteHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * Immutable template of the outgoing INVITE, built once for the broker.
+ * It keeps the constant headers (Max-Forwards, CSeq, Contact), so that creating the INVITE for the next hop
+ * of the chain only fills in the dynamic parts: the headers and body of the incoming INVITE, Call-ID
+ * and the Route stack (the hop Route followed by the incoming Route headers).
+ */
+public class InviteTemplate {
+
+    // Via is added by the SIP stack on sending
+    private static final List<ViaHeader> NO_VIA = Collections.emptyList();
+
+    private final MessageFactory messageFactory;
+    private final MaxForwardsHeader maxForwards;
+    private final CSeqHeader cSeq;
+    private final ContactHeader contact;
+
+    /**
+     * @param messageFactory - SIP MessageFactory
+     * @param headerFactory  - SIP HeaderFactory
+     * @param contact        - broker contact header, shared by all the INVITEs as it is never modified
+     */
+    public InviteTemplate(MessageFactory messageFactory, HeaderFactory headerFactory, ContactHeader contact) {
+        this.messageFactory = messageFactory;
+        this.contact = contact;
+        try {
+            maxForwards = headerFactory.createMaxForwardsHeader(MessageUtils.DEFAULT_MAX_FORWARDS);
+            cSeq = headerFactory.createCSeqHeader(MessageUtils.SEQ_NUMBER_BASE, Request.INVITE);
+        } catch (ParseException | InvalidArgumentException e) {
+            // will never happen for DEFAULT_MAX_FORWARDS constant and CSeq long
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Prepares a new INVITE request to send to the next AS (or outgoing IM-SCF dialog).
+     * It copies proper headers and body from Request incoming from other AS (or IM-SCF).
+     *
+     * @param incomingRequest - INVITE Request sent by the other AS (or IM-SCF)
+     * @param hopRoute        - Route header of the next hop put on the top, null if the incoming Route headers
+     *                          determine the next hop
+     * @param attemptId       - INVITE attempt identifier the broker's own Route (the first incoming Route
+     *                          following the hop Route) is marked with, null removes the mark
+     * @param callId          - Call-ID of the new INVITE
+     * @param logger          - logger
+     *
+     * @return a new Request to send
+     */
+    @SuppressWarnings("unchecked")
+    public Request createInvite(Request incomingRequest, RouteHeader hopRoute, String attemptId,
+                                CallIdHeader callId, Logger logger) throws ParseException {
+        logger.trace("createInvite");
+
+        // From and To are the dialog state of each side, so they are never shared with the incoming INVITE
+        FromHeader fromHeader = (FromHeader) incomingRequest.getHeader(FromHeader.NAME).clone();
+        ToHeader toHeader = (ToHeader) incomingRequest.getHeader(ToHeader.NAME).clone();
+        Request newInvite = messageFactory.createRequest(incomingRequest.getRequestURI(), Request.INVITE, callId,
+                (CSeqHeader) cSeq.clone(), fromHeader, toHeader, NO_VIA, (MaxForwardsHeader) maxForwards.clone());
+
+        // copy all non-required headers and body, add Contact header
+        MessageUtils.copyRequestHeaders(incomingRequest, newInvite, contact);
+
+        // hop Route goes first -> on the top, then all incoming Route headers
+        if (hopRoute != null) {
+            newInvite.addHeader(hopRoute);
+        }
+        ListIterator<RouteHeader> incomingRoutes = incomingRequest.getHeaders(RouteHeader.NAME);
+        boolean brokerRoute = hopRoute != null;
+        while (incomingRoutes.hasNext()) {
+            RouteHeader route = incomingRoutes.next();
+            if (brokerRoute && (attemptId != null || MessageUtils.getAttemptId(route) != null)) {
+                // broker's own Route is marked to correlate INVITE coming back with this attempt
+                route = MessageUtils.markAttempt(route, attemptId);
+            }
+            brokerRoute = false;
+            newInvite.addHeader(route);
+        }
+
+        logger.debug("New INVITE request prepared: \n{}", newInvite);
+        return newInvite;
+    }
+}
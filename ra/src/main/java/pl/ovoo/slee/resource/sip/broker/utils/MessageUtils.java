@@ -19,9 +19,9 @@
  */
 package pl.ovoo.slee.resource.sip.broker.utils;
 
-import gov.nist.javax.sip.Utils;
 import gov.nist.javax.sip.header.ContentLength;
 import gov.nist.javax.sip.header.HeaderExt;
+import gov.nist.javax.sip.message.SIPMessage;
 import org.slf4j.Logger;
 import pl.ovoo.slee.resource.sip.broker.service.SipBrokerContext;
 
@@ -32,6 +32,7 @@ import javax.sip.SipException;
 import javax.sip.address.Address;
 import javax.sip.address.AddressFactory;
 import javax.sip.address.SipURI;
+import javax.sip.address.TelURL;
 import javax.sip.address.URI;
 import javax.sip.header.CSeqHeader;
 import javax.sip.header.CallIdHeader;
@@ -40,18 +41,18 @@ import javax.sip.header.ContentTypeHeader;
 import javax.sip.header.FromHeader;
 import javax.sip.header.Header;
 import javax.sip.header.HeaderFactory;
+import javax.sip.header.Parameters;
 import javax.sip.header.MaxForwardsHeader;
 import javax.sip.header.RecordRouteHeader;
 import javax.sip.header.RouteHeader;
 import javax.sip.header.ToHeader;
 import javax.sip.header.ViaHeader;
+import javax.sip.message.Message;
 import javax.sip.message.MessageFactory;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.List;
-import java.util.ListIterator;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -60,47 +61,19 @@ import java.util.concurrent.atomic.AtomicLong;
 public class MessageUtils {
 
     private static final String P_ORIGINAL_DIALOG_ID = "P-Original-Dialog-ID";
-    private static final int DEFAULT_MAX_FORWARDS = 70;
-    private static final long SEQ_NUMBER_BASE = 1L;
-    private static final List<String> EXCLUDED_RESPONSE_HEADERS = new ArrayList<>();
-    private static final List<String> EXCLUDED_REQUEST_HEADERS = new ArrayList<>();
-    private static final List<String> EXCLUDED_ACK_HEADERS = new ArrayList<>();
+    private static final String X_ATTEMPT = "x-attempt";
+    static final int DEFAULT_MAX_FORWARDS = 70;
+    static final long SEQ_NUMBER_BASE = 1L;
     private static final String CALL_ID_EQ = "call-id";
     private static final String SEMI_FROM_TAG_EQ = ";FROM_TAG=";
     private static final String SEMI_TO_TAG_EQ = ";TO_TAG=";
 
 
-    static {
-        EXCLUDED_RESPONSE_HEADERS.add(FromHeader.NAME);
-        EXCLUDED_RESPONSE_HEADERS.add(ToHeader.NAME);
-        EXCLUDED_RESPONSE_HEADERS.add(CallIdHeader.NAME);
-        EXCLUDED_RESPONSE_HEADERS.add(CSeqHeader.NAME);
-        EXCLUDED_RESPONSE_HEADERS.add(ViaHeader.NAME);
-        EXCLUDED_RESPONSE_HEADERS.add(RouteHeader.NAME);
-        EXCLUDED_RESPONSE_HEADERS.add(RecordRouteHeader.NAME);
-        EXCLUDED_RESPONSE_HEADERS.add(ContentLength.NAME);
-        EXCLUDED_RESPONSE_HEADERS.add(ContactHeader.NAME);
-
-        EXCLUDED_REQUEST_HEADERS.add(FromHeader.NAME);
-        EXCLUDED_REQUEST_HEADERS.add(ToHeader.NAME);
-        EXCLUDED_REQUEST_HEADERS.add(CallIdHeader.NAME);
-        EXCLUDED_REQUEST_HEADERS.add(CSeqHeader.NAME);
-        EXCLUDED_REQUEST_HEADERS.add(ViaHeader.NAME);
-        EXCLUDED_REQUEST_HEADERS.add(RouteHeader.NAME);
-        EXCLUDED_REQUEST_HEADERS.add(RecordRouteHeader.NAME);
-        EXCLUDED_REQUEST_HEADERS.add(ContentLength.NAME);
-        EXCLUDED_REQUEST_HEADERS.add(ContactHeader.NAME);
-
-        EXCLUDED_ACK_HEADERS.add(FromHeader.NAME);
-        EXCLUDED_ACK_HEADERS.add(ToHeader.NAME);
-        EXCLUDED_ACK_HEADERS.add(CallIdHeader.NAME);
-        EXCLUDED_ACK_HEADERS.add(CSeqHeader.NAME);
-        EXCLUDED_ACK_HEADERS.add(ViaHeader.NAME);
-        EXCLUDED_ACK_HEADERS.add(RouteHeader.NAME);
-        EXCLUDED_ACK_HEADERS.add(RecordRouteHeader.NAME);
-        EXCLUDED_ACK_HEADERS.add(ContentLength.NAME);
-        EXCLUDED_ACK_HEADERS.add(ContactHeader.NAME);
-    }
+    // headers maintained by the dialogs/transactions of each side (full and compact names), never copied;
+    // the same for requests, responses and ACKs
+    private static final HeaderCopyPlan COPY_PLAN = new HeaderCopyPlan(FromHeader.NAME, "f", ToHeader.NAME, "t",
+            CallIdHeader.NAME, "i", CSeqHeader.NAME, ViaHeader.NAME, "v", RouteHeader.NAME, RecordRouteHeader.NAME,
+            ContentLength.NAME, "l", ContactHeader.NAME, "m");
 
 
     private MessageUtils(){
@@ -116,15 +89,16 @@ public class MessageUtils {
      * @param request             - request to respond to
      * @param messageFactory      - MessageFactory
      * @param brokerContactHeader - broker contact header
+     * @param idGenerator         - generator of the To tag (if not set by the dialog yet)
      * @param logger              - logger instance
      * @return a new Response to send
      */
     public static Response createForwardedResponse(Response incomingResponse, Dialog dialog, Request request,
                                                    MessageFactory messageFactory, ContactHeader brokerContactHeader,
-                                                   Logger logger) throws ParseException {
+                                                   IdGenerator idGenerator, Logger logger) throws ParseException {
 
         Response newResponse = messageFactory.createResponse(incomingResponse.getStatusCode(), request);
-        copyResponseHeaders(incomingResponse, newResponse, dialog, brokerContactHeader);
+        copyResponseHeaders(incomingResponse, newResponse, dialog, brokerContactHeader, idGenerator);
 
         logger.debug("Prepared Response:\n{}", newResponse);
         return newResponse;
@@ -138,76 +112,23 @@ public class MessageUtils {
      * @param incomingResponse    - response received from previous node
      * @param dialog              - dialog for the response
      * @param brokerContactHeader - broker contact header
+     * @param idGenerator         - generator of the To tag (if not set by the dialog yet)
      * @param logger              - logger instance
      * @return a new Response to send
      */
     public static Response createForwardedReliableResponse(Response incomingResponse, Dialog dialog,
-                                                           ContactHeader brokerContactHeader, Logger logger)
+                                                           ContactHeader brokerContactHeader,
+                                                           IdGenerator idGenerator, Logger logger)
                             throws ParseException, SipException, InvalidArgumentException {
 
         Response reliableResponse = dialog.createReliableProvisionalResponse(incomingResponse.getStatusCode());
-        copyResponseHeaders(incomingResponse, reliableResponse, dialog, brokerContactHeader);
+        copyResponseHeaders(incomingResponse, reliableResponse, dialog, brokerContactHeader, idGenerator);
 
         logger.debug("Prepared Response:\n{}", reliableResponse);
         return reliableResponse;
     }
 
 
-    /**
-     * Prepares a new INVITE request to send to the next AS (or outgoing IM-SCF dialog).
-     * It copies proper headers and body from Request incoming from other AS (or IM-SCF)
-     *
-     * @param context           - broker context
-     * @param incomingRequest   - INVITE Request sent by the other AS (or IM-SCF)
-     * @param logger            - logger
-     *
-     * @return a new Request to send
-     */
-    public static Request createInvite(SipBrokerContext context, Request incomingRequest,
-                                       List<RouteHeader> routeHeaders, Logger logger, CallIdHeader callId)
-                                throws ParseException {
-        logger.trace("createInvite");
-
-        FromHeader fromHeader = (FromHeader) incomingRequest.getHeader(FromHeader.NAME);
-        ToHeader toHeader = (ToHeader) incomingRequest.getHeader(ToHeader.NAME);
-        ContentTypeHeader contentTypeHeader = (ContentTypeHeader) incomingRequest.getHeader(ContentTypeHeader.NAME);
-        MaxForwardsHeader maxForwardsHeader;
-        CSeqHeader cSeqHeader;
-        Request newInvite;
-        try {
-            maxForwardsHeader = context.headerFactory.createMaxForwardsHeader(DEFAULT_MAX_FORWARDS);
-            cSeqHeader = context.headerFactory.createCSeqHeader(SEQ_NUMBER_BASE, Request.INVITE);
-
-            if(contentTypeHeader != null){
-                newInvite = context.messageFactory.createRequest(incomingRequest.getRequestURI(), Request.INVITE,
-                        callId, cSeqHeader, fromHeader, toHeader, new ArrayList<ViaHeader>(),
-                        maxForwardsHeader, contentTypeHeader, incomingRequest.getContent());
-            } else {
-                newInvite = context.messageFactory.createRequest(incomingRequest.getRequestURI(), Request.INVITE,
-                        callId, cSeqHeader, fromHeader, toHeader, new ArrayList<ViaHeader>(),
-                        maxForwardsHeader);
-            }
-
-        } catch (ParseException | InvalidArgumentException e) {
-            // either ParseException or InvalidArgumentException
-            // will never happen for DEFAULT_MAX_FORWARDS constant and CSeq long
-            throw new IllegalArgumentException(e);
-        }
-
-        // copy all non-required headers
-        copyRequestHeaders(incomingRequest, newInvite, context.getBrokerContactHeader());
-
-        // add proper Route headers to the bottom (from the incoming request)
-        for (RouteHeader routeHeader: routeHeaders) {
-            logger.trace("Adding Route header: {}", routeHeader);
-            newInvite.addHeader(routeHeader);
-        }
-
-        logger.debug("New INVITE request prepared: \n{}", newInvite);
-        return newInvite;
-    }
-
-
     /**
      * Prepares a new request to send to the next node
      *
@@ -280,6 +201,21 @@ public class MessageUtils {
     }
 
 
+    /**
+     * Returns size of the message as encoded by the SIP stack (without the Via header the stack adds
+     * to the outgoing requests)
+     *
+     * @param message - message to measure
+     *
+     * @return size in bytes
+     */
+    public static int getEncodedSize(Message message) {
+        byte[] content = message.getRawContent();
+        return ((SIPMessage) message).encodeMessage(new StringBuilder(1024)).length() +
+                (content != null ? content.length : 0);
+    }
+
+
     /**
      * Prepares default IM-SCF Route header to use in downstream INVITE requests
      *
@@ -336,36 +272,24 @@ public class MessageUtils {
      * @param outgoingResponse    - outgoing response to modify
      * @param dialog              - dialog for the response
      * @param brokerContactHeader - broker contact header
+     * @param idGenerator         - generator of the To tag (if not set by the dialog yet)
      *
      * @return modified outgoing response
      *
      * @throws ParseException
      */
-    @SuppressWarnings("unchecked")
     private static Response copyResponseHeaders(Response incomingResponse, Response outgoingResponse,
-                                               Dialog dialog, ContactHeader brokerContactHeader) throws ParseException {
+                                               Dialog dialog, ContactHeader brokerContactHeader,
+                                               IdGenerator idGenerator) throws ParseException {
 
         // copy headers (excluding the ones that are disallowed)
-        ListIterator<String> headerNames = incomingResponse.getHeaderNames();
-        while(headerNames.hasNext()){
-            String name = headerNames.next();
-            if(!EXCLUDED_RESPONSE_HEADERS.contains(name)){
-                outgoingResponse.removeHeader(name);
-                ListIterator<Header> newHeaders = incomingResponse.getHeaders(name);
-                while (newHeaders.hasNext()){
-                    Header h = (Header) newHeaders.next().clone();
-                    outgoingResponse.addHeader(h);
-                }
-            }
-        }
+        COPY_PLAN.copyHeaders(incomingResponse, outgoingResponse);
 
         // add body
-        if(incomingResponse.getContentLength() != null && incomingResponse.getContentLength().getContentLength() > 0){
-            outgoingResponse.setContent(new String(incomingResponse.getRawContent()),
-                    (ContentTypeHeader) incomingResponse.getHeader(ContentTypeHeader.NAME));
-        }
+        forwardBody(incomingResponse, outgoingResponse);
 
-        // apply new To header tag (if required/applicable)
+        // apply new To header tag (if required/applicable), the To header is the response's own copy
+        // (created by the message factory or the dialog, never copied from the incoming response)
         ToHeader to = (ToHeader) outgoingResponse.getHeader(ToHeader.NAME);
         if(to.getTag() == null &&
                 ((dialog.getState() == null || dialog.getState() == DialogState.EARLY) && dialog.isServer())){
@@ -374,7 +298,7 @@ public class MessageUtils {
                 if(dialog.getLocalTag() != null){
                     toTag = dialog.getLocalTag();
                 } else {
-                    toTag = Utils.getInstance().generateTag();
+                    toTag = idGenerator.newTag();
                 }
                 to.setTag(toTag);
         }
@@ -407,29 +331,14 @@ public class MessageUtils {
      *
      * @throws ParseException
      */
-    @SuppressWarnings("unchecked")
-    private static Request copyRequestHeaders(Request incomingRequest, Request outgoingRequest,
+    static Request copyRequestHeaders(Request incomingRequest, Request outgoingRequest,
                                                 ContactHeader brokerContactHeader) throws ParseException {
 
         // copy headers (excluding the ones that are disallowed)
-        ListIterator<String> headerNames = incomingRequest.getHeaderNames();
-        while(headerNames.hasNext()){
-            String name = headerNames.next();
-            if(!EXCLUDED_REQUEST_HEADERS.contains(name)){
-                outgoingRequest.removeHeader(name);
-                ListIterator<Header> newHeaders = incomingRequest.getHeaders(name);
-                while (newHeaders.hasNext()){
-                    Header h = (Header) newHeaders.next().clone();
-                    outgoingRequest.addHeader(h);
-                }
-            }
-        }
+        COPY_PLAN.copyHeaders(incomingRequest, outgoingRequest);
 
         // add body
-        if(incomingRequest.getContentLength() != null && incomingRequest.getContentLength().getContentLength() > 0){
-            outgoingRequest.setContent(new String(incomingRequest.getRawContent()),
-                    (ContentTypeHeader) incomingRequest.getHeader(ContentTypeHeader.NAME));
-        }
+        forwardBody(incomingRequest, outgoingRequest);
 
         // add Contact header
         outgoingRequest.setHeader(brokerContactHeader);
@@ -450,29 +359,14 @@ public class MessageUtils {
      *
      * @throws ParseException
      */
-    @SuppressWarnings("unchecked")
     private static Request copyAckHeaders(Request incomingAck, Request outgoingAck,
                                               ContactHeader brokerContactHeader) throws ParseException {
 
         // copy headers (excluding the ones that are disallowed)
-        ListIterator<String> headerNames = incomingAck.getHeaderNames();
-        while(headerNames.hasNext()){
-            String name = headerNames.next();
-            if(!EXCLUDED_ACK_HEADERS.contains(name)){
-                outgoingAck.removeHeader(name);
-                ListIterator<Header> newHeaders = incomingAck.getHeaders(name);
-                while (newHeaders.hasNext()){
-                    Header h = (Header) newHeaders.next().clone();
-                    outgoingAck.addHeader(h);
-                }
-            }
-        }
+        COPY_PLAN.copyHeaders(incomingAck, outgoingAck);
 
         // add body
-        if(incomingAck.getContentLength() != null && incomingAck.getContentLength().getContentLength() > 0){
-            outgoingAck.setContent(new String(incomingAck.getRawContent()),
-                    (ContentTypeHeader) incomingAck.getHeader(ContentTypeHeader.NAME));
-        }
+        forwardBody(incomingAck, outgoingAck);
 
         // add Contact header
         if(incomingAck.getHeader(ContactHeader.NAME) != null){
@@ -482,6 +376,22 @@ public class MessageUtils {
         return outgoingAck;
     }
 
+    /**
+     * Passes the body of the incoming message to the outgoing one.
+     * The raw bytes are shared (never modified), there is no charset decoding and encoding on the way.
+     *
+     * @param incomingMessage - message to take the body from
+     * @param outgoingMessage - message to set the body in
+     *
+     * @throws ParseException
+     */
+    private static void forwardBody(Message incomingMessage, Message outgoingMessage) throws ParseException {
+        if(incomingMessage.getContentLength() != null && incomingMessage.getContentLength().getContentLength() > 0){
+            outgoingMessage.setContent(incomingMessage.getRawContent(),
+                    (ContentTypeHeader) incomingMessage.getHeader(ContentTypeHeader.NAME));
+        }
+    }
+
     /**
      * Reads P-Original-Dialog-ID header value from the request
      * If not present a new header is created and set in the request.
@@ -514,5 +424,68 @@ public class MessageUtils {
     }
 
 
+    /**
+     * Reads INVITE attempt identifier from the top Route header of the request.
+     * The top Route header of the INVITE coming from the AS is the broker's own Route.
+     *
+     * @param request - incoming INVITE request
+     *
+     * @return attempt identifier or null if not present
+     */
+    public static String getAttemptId(Request request) {
+        RouteHeader route = (RouteHeader) request.getHeader(RouteHeader.NAME);
+        return route == null ? null : getAttemptId(route);
+    }
 
+    /**
+     * Reads INVITE attempt identifier from the Route header
+     *
+     * @param route - Route header to check
+     *
+     * @return attempt identifier or null if not present
+     */
+    public static String getAttemptId(RouteHeader route) {
+        URI uri = route.getAddress().getURI();
+        return uri instanceof Parameters ? ((Parameters) uri).getParameter(X_ATTEMPT) : null;
+    }
+
+    /**
+     * Creates a copy of the broker's Route header marked with the INVITE attempt identifier.
+     * The AS passes this Route back in its INVITE, which allows to correlate the INVITE with the attempt.
+     *
+     * @param brokerRoute - broker's Route header
+     * @param attemptId   - attempt identifier, null removes the mark
+     *
+     * @return new Route header
+     *
+     * @throws ParseException - in case of invalid parameter
+     */
+    public static RouteHeader markAttempt(RouteHeader brokerRoute, String attemptId) throws ParseException {
+        RouteHeader markedRoute = (RouteHeader) brokerRoute.clone();
+        URI uri = markedRoute.getAddress().getURI();
+        if (uri instanceof Parameters) {
+            if (attemptId == null) {
+                ((Parameters) uri).removeParameter(X_ATTEMPT);
+            } else {
+                ((Parameters) uri).setParameter(X_ATTEMPT, attemptId);
+            }
+        }
+        return markedRoute;
+    }
+
+    /**
+     * Returns the user part of SIP URI or the phone number of TEL URI
+     *
+     * @param uri - URI to read, might be null
+     *
+     * @return user or null if not present
+     */
+    public static String getUserPart(URI uri) {
+        if (uri instanceof SipURI) {
+            return ((SipURI) uri).getUser();
+        } else if (uri instanceof TelURL) {
+            return ((TelURL) uri).getPhoneNumber();
+        }
+        return null;
+    }
 }